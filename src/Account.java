@@ -6,30 +6,34 @@
  */
 public class Account implements Comparable<Account> {
     private AccountNumber number;
+    private int packedNumber; //the 9 digits of number as an int, so comparing accounts needs no strings
     private Profile holder;
-    private double balance;
+    private long balance; //in cents
+    private ActivityLedger activities; //deposits and withdrawals, oldest first; null until the first one
     /**
      * Constructs a new Account with the specified account number, holder, and initial balance.
      *
      * @param number the account number
      * @param holder the profile of the account holder
-     * @param balance the initial balance of the account
+     * @param balance the initial balance of the account, in cents
      * @author Aryaman Urs
      */
-    public Account(AccountNumber number, Profile holder, double balance) {
+    public Account(AccountNumber number, Profile holder, long balance) {
         this.number = number;
         this.holder = holder;
         this.balance = balance;
+        this.packedNumber = AccountNumbers.pack(number);
     }
     /**
      * Deposits the specified amount into the account.
      *
-     * @param amount the amount to deposit, must be positive
+     * @param amount the amount to deposit in cents, must be positive
      * @author Aryaman Urs
+     * @throws ArithmeticException if the balance would overflow; it is left unchanged
      */
-    public void deposit(double amount) {
+    public void deposit(long amount) {
         if (amount > 0) {
-            balance += amount;
+            balance = Math.addExact(balance, amount);
         } else {
             // System.out.println("Deposit amount must be positive.");
         }
@@ -37,9 +41,9 @@ public class Account implements Comparable<Account> {
     /**
      * Withdraws the specified amount from the account.
      * @author Aryaman Urs
-     * @param amount the amount to withdraw, must be positive and less than or equal to the balance
+     * @param amount the amount to withdraw in cents, must be positive and less than or equal to the balance
      */
-    public void withdraw(double amount) {
+    public void withdraw(long amount) {
         if (amount > 0 && amount <= balance) {
             balance -= amount;
         } else {
@@ -68,7 +72,7 @@ public class Account implements Comparable<Account> {
      */
     @Override
     public int compareTo(Account other) {
-        return this.number.compareTo(other.number);
+        return Integer.compare(this.packedNumber, other.packedNumber); //same order as the 9-digit strings
     }
     /**
      * Returns a string representation of the account.
@@ -77,10 +81,18 @@ public class Account implements Comparable<Account> {
      */
     @Override
     public String toString() {
-        return String.format(
-                "Account#[%s] Holder[%s] Balance[$%.2f] Branch [%s]",
-                number, holder, balance, number.getBranch().name()
-        );
+        return appendTo(new StringBuilder(96)).toString();
+    }
+    /**
+     * Appends the report line of the account, the same text as toString(), without
+     * going through String.format.
+     * @author Arjun Deshpande
+     * @param sb the builder to append to
+     * @return the builder
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        sb.append("Account#[").append(number).append("] Holder[").append(holder).append("] Balance[$");
+        return Money.append(sb, balance).append("] Branch [").append(number.getBranch().name()).append(']');
     }
 
     // Getters
@@ -100,16 +112,61 @@ public class Account implements Comparable<Account> {
     public Profile getHolder() {
         return holder;
     }
+    /**
+     * Switches the account to an equal profile that is shared with the holder's other
+     * accounts. Only ProfileTable calls this.
+     * @author Arjun Deshpande
+     * @param holder the interned profile, equal to the current one
+     */
+    void setHolder(Profile holder) {
+        this.holder = holder;
+    }
     /**
      * Gets the current balance of the account.
      * @author Aryaman Urs
-     * @return the current balance
+     * @return the current balance, in cents
      */
-    public double getBalance() {
+    public long getBalance() {
         return balance;
     }
 
 
+    /**
+     * Gets the transaction history of the account.
+     * @author Arjun Deshpande
+     * @return the activity ledger, or null if nothing has been recorded yet
+     */
+    public ActivityLedger getActivities() {
+        return activities;
+    }
+
+    /**
+     * Records an activity in the account's ledger, creating the ledger on the first one,
+     * so an account that is never posted to carries no ledger.
+     * @author Arjun Deshpande
+     * @param date the packed yyyymmdd date
+     * @param location the branch where it happened
+     * @param type D for deposit, W for withdrawal, I for interest or F for a fee
+     * @param amount the amount in cents
+     * @param atm true if it was made at an ATM
+     */
+    public void record(int date, Branch location, char type, long amount, boolean atm) {
+        if (activities == null) activities = new ActivityLedger();
+        activities.add(date, location, type, amount, atm);
+    }
+
+    /**
+     * Gets the balance at the end of a day: the current balance less the net of the
+     * activities dated after it, so it is right even if the history does not start
+     * with the opening deposit.
+     * @author Arjun Deshpande
+     * @param date the packed yyyymmdd date
+     * @return the balance as of that date, in cents
+     */
+    public long getBalanceAsOf(int date) {
+        return activities == null ? balance : balance - (activities.net() - activities.netThrough(date));
+    }
+
     /**
      * Obtains the account type through the Account Class
      * @author Arjun Deshpande
@@ -119,6 +176,26 @@ public class Account implements Comparable<Account> {
         return this.number.getType();
     }//getType
 
+    /**
+     * Gives the account another number, e.g. when a type change had to draw a new
+     * one. The old AccountNumber object is left as it was. Only AccountDatabase calls this.
+     * @author Arjun Deshpande
+     * @param packed the new number, packed
+     */
+    void renumber(int packed) {
+        number = AccountNumbers.unpack(packed);
+        packedNumber = packed;
+    }
+
+    /**
+     * Gets the account number packed into an int.
+     * @author Arjun Deshpande
+     * @return the 9 digits of the account number as an int
+     */
+    public int getPackedNumber() {
+        return packedNumber;
+    }
+
     /**
      * Testbed main method to demonstrate account functionality.
      * @author Aryaman Urs
@@ -130,17 +207,17 @@ public class Account implements Comparable<Account> {
         Profile jane = new Profile("Jane", "Smith", new Date(1995, 8, 25));
         AccountNumber accNum1 = new AccountNumber(Branch.BRIDGEWATER, AccountType.CHECKING);
         AccountNumber accNum2 = new AccountNumber(Branch.EDISON, AccountType.SAVINGS);
-        Account acc1 = new Account(accNum1, john, 600.00);
-        Account acc2 = new Account(accNum2, jane, 1200.00);
+        Account acc1 = new Account(accNum1, john, 60000);
+        Account acc2 = new Account(accNum2, jane, 120000);
         // Testing toString()
         System.out.println("Account 1: " + acc1);
         System.out.println("Account 2: " + acc2);
 
         // Testing deposit()
-        acc1.deposit(100);
+        acc1.deposit(10000);
         System.out.println("After depositing $100: " + acc1);
         // Testing withdraw()
-        acc1.withdraw(50);
+        acc1.withdraw(5000);
         System.out.println("After withdrawing $50: " + acc1);
         // Testing equals()
         System.out.println("Account 1 equals Account 2? " + acc1.equals(acc2)); // Should be false
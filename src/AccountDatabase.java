@@ -0,0 +1,1580 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+/**
+ * Holds the open accounts of the bank and the archive of closed accounts.
+ * Accounts are kept in a growable array, with a hash index from account number to
+ * account and a ProfileTable of interned holders, each listing its own accounts,
+ * so lookups from the transaction manager do not scan the whole book.
+ * The reports walk sorted views by number, branch, holder and type that are kept up
+ * to date on every open, close and downgrade, instead of sorting the book each time.
+ * The database is safe to share between threads: the array, indexes and archive are
+ * guarded by a read-write lock that only opens, closes and downgrades take for writing,
+ * and balances are guarded by striped locks, so deposits and withdrawals on different
+ * accounts run in parallel. Running totals by branch and type are kept in Aggregates
+ * by the same updates.
+ * With a TransactionLog attached, every posting also appends its record under the
+ * log's one monitor while holding its stripe lock and the read lock, so postings
+ * serialize on the append: it only copies about 30 bytes into the log buffer, and the
+ * write and fsync happen on the flusher thread, but posting throughput is bounded by
+ * that one lock however many stripes there are.
+ * @author Arjun Deshpande
+ * @author Aryaman Urs
+ */
+public class AccountDatabase implements AccountStore {
+    public static final long MONEY_MARKET_MINIMUM = 200000; //$2000 in cents
+    private static final int INITIAL_CAPACITY = 4;
+    private static final int INITIAL_BUCKETS = 16; //must be a power of 2
+    public static final long NOT_OPEN = -1; //posting result: no such open account
+    public static final long INSUFFICIENT_FUNDS = -2; //posting result: withdrawal larger than the balance
+    public static final long BLOCKED = -3; //posting result: withdrawal refused by the velocity guard
+    public static final long OVERFLOW = -4; //posting result: deposit would overflow the balance
+    public static final int KEPT = 0; //downgrade result: not a money market account under the minimum
+    public static final int DOWNGRADED = 1; //downgrade result: moved to savings
+    public static final int NO_SAVINGS_NUMBER = 2; //downgrade result: under the minimum, but every savings number of its branch is taken
+    private static final int NOT_FOUND = -1;
+    private static final int STRIPES = 64; //number of balance locks, must be a power of 2
+    private static final int SETTLE_GRAIN = 4096; //accounts per month-end task
+    private static final int AS_OF_GRAIN = 1024; //accounts per balance-as-of task
+    public static final char BY_NUMBER = 'N'; //report orders
+    public static final char BY_BRANCH = 'B';
+    public static final char BY_HOLDER = 'H';
+    public static final char BY_TYPE = 'T';
+
+    private Account[] accounts; //list of accounts
+    private int size; //number of accounts in the array
+    private Archive archive; //closed accounts, indexed and spilled to disk when old
+    private NumberNode[] numberIndex; //account number -> slot in accounts
+    private final ProfileTable holders = new ProfileTable(); //holder profile -> the holder's accounts
+    private final SortedView byNumber = new SortedView((a, b) -> compare(a, b, BY_NUMBER));
+    private final SortedView byBranch = new SortedView((a, b) -> compare(a, b, BY_BRANCH));
+    private final SortedView byHolder = new SortedView((a, b) -> compare(a, b, BY_HOLDER));
+    private final SortedView byType = new SortedView((a, b) -> compare(a, b, BY_TYPE));
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock(); //guards the array, indexes, views and archive
+    private final Object[] stripes = new Object[STRIPES]; //guards balances and ledgers
+    private TransactionLog log; //write-ahead log, or null if the database is not persistent
+    private final Object checkpointing = new Object(); //one snapshot is written at a time
+    private final Metrics metrics = new Metrics(); //counters and latencies, shared by every session
+    private final NumberSequence sequence = new NumberSequence(); //next account number of each branch
+    private final Aggregates aggregates = new Aggregates(); //running totals by branch and type
+    private volatile VelocityGuard guard; //velocity rules for withdrawals, or null if not checked
+
+    /**
+     * Index entry mapping an account number to its slot in the accounts array.
+     * @author Arjun Deshpande
+     */
+    private static class NumberNode {
+        int hash;
+        int slot;
+        NumberNode next;
+        NumberNode(int hash, int slot, NumberNode next) {
+            this.hash = hash;
+            this.slot = slot;
+            this.next = next;
+        }
+    }//end klasse
+
+    /**
+     * Creates an empty database with an empty archive.
+     * @author Arjun Deshpande
+     */
+    public AccountDatabase() {
+        accounts = new Account[INITIAL_CAPACITY];
+        archive = new Archive();
+        numberIndex = new NumberNode[INITIAL_BUCKETS];
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+    }//end constructor
+
+    /**
+     * Gets the number of open accounts.
+     * @author Arjun Deshpande
+     * @return the number of accounts in the database
+     */
+    @Override
+    public int size() {
+        structure.readLock().lock();
+        try {
+            return size;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if the database has no open accounts.
+     * @author Arjun Deshpande
+     * @return true if there are no accounts
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Hashes a packed account number. The multiply mixes the branch and type digits
+     * into the low bits as well as the sequence digits.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return the spread hash code
+     */
+    private static int hash(int packed) {
+        return spread(packed * 0x9E3779B9);
+    }
+
+    /**
+     * Mixes the high bits into the low bits so power of 2 tables use all of the hash.
+     * @author Arjun Deshpande
+     * @param h the raw hash code
+     * @return the spread hash code
+     */
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds the slot of the account with the given number.
+     * @author Arjun Deshpande
+     * @param number the account number
+     * @return the slot in the accounts array, or NOT_FOUND
+     */
+    private int find(AccountNumber number) {
+        return find(AccountNumbers.pack(number));
+    }
+
+    /**
+     * Finds the slot of the account with the given packed number.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return the slot in the accounts array, or NOT_FOUND
+     */
+    private int find(int packed) {
+        int h = hash(packed);
+        for (NumberNode node = numberIndex[h & (numberIndex.length - 1)]; node != null; node = node.next) {
+            if (node.hash == h && accounts[node.slot].getPackedNumber() == packed) return node.slot;
+        }
+        return NOT_FOUND;
+    }//find
+
+    /**
+     * Finds the index entry of an open account. Matches the Account object itself,
+     * since two accounts may have been given the same number.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @return the index node, or null if the account is not open
+     */
+    private NumberNode findNode(Account account) {
+        int h = hash(account.getPackedNumber());
+        for (NumberNode node = numberIndex[h & (numberIndex.length - 1)]; node != null; node = node.next) {
+            if (node.hash == h && accounts[node.slot] == account) return node;
+        }
+        return null;
+    }
+
+    /**
+     * Attaches a write-ahead log; every later change is appended to it.
+     * @author Arjun Deshpande
+     * @param log the log, or null to stop logging
+     */
+    public void setLog(TransactionLog log) {
+        structure.writeLock().lock();
+        try {
+            this.log = log;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the write-ahead log.
+     * @author Arjun Deshpande
+     * @return the log, or null if the database is not persistent
+     */
+    public TransactionLog getLog() {
+        return log;
+    }
+
+    /**
+     * Attaches velocity rules that every later withdrawal is checked against. Attach
+     * them after recovery, so replaying the log does not count old withdrawals again.
+     * @author Arjun Deshpande
+     * @param guard the rules, or null to stop checking
+     */
+    public void setGuard(VelocityGuard guard) {
+        this.guard = guard;
+    }
+
+    /**
+     * Gets the velocity rules withdrawals are checked against.
+     * @author Arjun Deshpande
+     * @return the guard, or null if withdrawals are not checked
+     */
+    public VelocityGuard getGuard() {
+        return guard;
+    }
+
+    /**
+     * Gets the metrics of this database and the sessions on it.
+     * @author Arjun Deshpande
+     * @return the metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the running totals of the open accounts by branch and type.
+     * @author Arjun Deshpande
+     * @return the aggregates
+     */
+    public Aggregates getAggregates() {
+        return aggregates;
+    }
+
+    /**
+     * Waits until every change made so far is durable in the log. Does nothing if
+     * the database is not persistent.
+     * @author Arjun Deshpande
+     * @throws IOException if the log cannot be written
+     */
+    public void sync() throws IOException {
+        TransactionLog current = log;
+        if (current != null) current.sync();
+    }
+
+    /**
+     * Writes a snapshot of the open and archived accounts and starts a new log
+     * generation. Holds the write lock only to capture a consistent cut, copying the
+     * numbers and balances and freezing the ledgers; the snapshot is written after
+     * it is released, while commands carry on.
+     * @author Arjun Deshpande
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointing) {
+            TransactionLog current;
+            TransactionLog.Capture capture;
+            structure.writeLock().lock();
+            try {
+                current = log;
+                if (current == null) return;
+                capture = current.capture(accounts, size, archive);
+            } finally {
+                structure.writeLock().unlock();
+            }
+            current.snapshot(capture, this::stripe);
+        }
+    }
+
+    /**
+     * Puts an already closed account straight into the archive, when restoring a snapshot.
+     * @author Arjun Deshpande
+     * @param account the closed account
+     * @throws IOException if the archive cannot spill to disk
+     */
+    public void restoreArchived(Account account) throws IOException {
+        structure.writeLock().lock();
+        try {
+            archive.add(account);
+            sequence.reserve(account.getPackedNumber()); //its history is found by number, so it is never drawn again
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Picks the balance lock of an account. The stripe follows the Account object
+     * rather than its number, so it stays the same across a type downgrade.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @return the lock guarding its balance and ledger
+     */
+    private Object stripe(Account account) {
+        return stripes[spread(System.identityHashCode(account)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Checks if this exact account object is still open. Caller holds the structure lock.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @return true if the account is in the database
+     */
+    private boolean isOpen(Account account) {
+        return findNode(account) != null;
+    }
+
+    /**
+     * Finds the account with the given number.
+     * @author Arjun Deshpande
+     * @param number the account number
+     * @return the account, or null if there is no such account
+     */
+    public Account numFind(AccountNumber number) {
+        structure.readLock().lock();
+        try {
+            int slot = find(number);
+            return slot == NOT_FOUND ? null : accounts[slot];
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the account with the given packed number, as parsed by AccountNumbers.parse.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return the account, or null if there is no such account
+     */
+    @Override
+    public Account numFind(int packed) {
+        structure.readLock().lock();
+        try {
+            int slot = find(packed);
+            return slot == NOT_FOUND ? null : accounts[slot];
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Draws a new account number that no open or archived account has. Closed accounts
+     * keep their numbers, since the archive and balance-as-of queries find them by
+     * number, so a branch and type run out after 10,000 opens. The number is taken until
+     * it is opened with open, which gives it back if the open is refused.
+     * @author Arjun Deshpande
+     * @param branch the branch
+     * @param type the account type
+     * @return the number, or null if every number of the branch and type is taken
+     */
+    @Override
+    public AccountNumber newNumber(Branch branch, AccountType type) {
+        int packed = sequence.next(branch, type);
+        return packed == AccountNumbers.INVALID ? null : AccountNumbers.unpack(packed);
+    }
+
+    /**
+     * Finds the account a holder has of the given type.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @param type the account type
+     * @return the account, or null if the holder has no account of that type
+     */
+    public Account holderFind(Profile holder, AccountType type) {
+        structure.readLock().lock();
+        try {
+            return findHolder(holder, type);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the account a holder has of the given type. Caller holds the structure lock.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @param type the account type
+     * @return the account, or null if the holder has no account of that type
+     */
+    private Account findHolder(Profile holder, AccountType type) {
+        return holders.find(holder, type);
+    }
+
+    /**
+     * Checks if the database contains the given account.
+     * @author Arjun Deshpande
+     * @param account the account to look for
+     * @return true if an account with the same number exists
+     */
+    public boolean contains(Account account) {
+        return numFind(account.getNumber()) != null;
+    }
+
+    /**
+     * Checks if a holder already has an account of the given type.
+     * @author Aryaman Urs
+     * @param holder the holder profile
+     * @param type the account type
+     * @return true if the holder has an account of that type
+     */
+    @Override
+    public boolean containsHolderAndType(Profile holder, AccountType type) {
+        return holderFind(holder, type) != null;
+    }
+
+    /**
+     * Adds an account to the end of the array and to both indexes.
+     * @author Arjun Deshpande
+     * @param account the account to add
+     * @return true if the account was added, false if an open account already has its number
+     */
+    public boolean add(Account account) {
+        structure.writeLock().lock();
+        try {
+            return insert(account);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    } //add
+
+    /**
+     * Adds an account unless its holder already has an account of the same type, or an
+     * open account already has its number. The check and the add happen under one lock,
+     * so two sessions opening the same holder and type at once cannot both succeed.
+     * @author Arjun Deshpande
+     * @param account the account to add
+     * @return true if the account was added
+     */
+    public boolean addIfAbsent(Account account) {
+        structure.writeLock().lock();
+        try {
+            if (findHolder(account.getHolder(), account.getType()) != null) return false;
+            return insert(account);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Opens a new account: records its balance as the opening deposit in its ledger,
+     * so balance-as-of queries see it, then adds it unless the holder already has an
+     * account of its type. A refused account's number, drawn by newNumber, is given back.
+     * @author Arjun Deshpande
+     * @param account the new account, not yet shared
+     * @param date the packed yyyymmdd date it is opened
+     * @return true if it was added
+     */
+    @Override
+    public boolean open(Account account, int date) {
+        if (account.getBalance() > 0) {
+            account.record(date, account.getNumber().getBranch(), 'D', account.getBalance(), false);
+        }
+        structure.writeLock().lock();
+        try {
+            if (findHolder(account.getHolder(), account.getType()) == null && insert(account)) return true;
+            if (find(account.getPackedNumber()) == NOT_FOUND) sequence.release(account.getPackedNumber()); //no open account has it
+            return false;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds an account to the array, both indexes and the sorted views, unless an open
+     * account already has its number: the number index finds one account per number.
+     * Caller holds the write lock.
+     * @author Arjun Deshpande
+     * @param account the account to add
+     * @return true if it was added, false if its number is taken
+     */
+    private boolean insert(Account account) {
+        if (find(account.getPackedNumber()) != NOT_FOUND) return false;
+        if (size == accounts.length) grow();
+        accounts[size] = account;
+        sequence.reserve(account.getPackedNumber());
+        indexNumber(account, size);
+        holders.add(account);
+        addToViews(account);
+        size++;
+        aggregates.add(account.getNumber().getBranch(), account.getType(), account.getBalance());
+        metrics.recordOpen();
+        if (log != null) log.logOpen(account);
+        return true;
+    }
+
+    /**
+     * Removes an account, moves it to the archive and sets its balance to 0.
+     * The last account in the array is moved into the freed slot.
+     * @author Arjun Deshpande
+     * @param account the account to remove
+     * @throws IOException if the archive cannot spill to disk
+     */
+    public void remove(Account account) throws IOException {
+        remove(account, Date.today().toInt());
+    } //remove
+
+    /**
+     * Removes an account as remove(account) does, dating the closing withdrawal.
+     * @author Arjun Deshpande
+     * @param account the account to remove
+     * @param date the packed yyyymmdd date it is closed
+     * @throws IOException if the archive cannot spill to disk
+     */
+    public void remove(Account account, int date) throws IOException {
+        structure.writeLock().lock();
+        try {
+            delete(account, date);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the account with the given packed number, as remove(account) does.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return true if the account was open
+     * @throws IOException if the archive cannot spill to disk
+     */
+    @Override
+    public boolean remove(int packed) throws IOException {
+        structure.writeLock().lock();
+        try {
+            int slot = find(packed);
+            if (slot == NOT_FOUND) return false;
+            delete(accounts[slot], Date.today().toInt());
+            return true;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an account and archives it. The balance paid out is recorded in its
+     * ledger as a withdrawal, so its balance as of any later date is 0. Caller holds
+     * the write lock.
+     * @author Arjun Deshpande
+     * @param account the account to remove
+     * @param date the packed yyyymmdd date it is closed
+     * @throws IOException if the archive cannot spill to disk
+     */
+    private void delete(Account account, int date) throws IOException {
+        NumberNode node = findNode(account);
+        if (node == null) return;
+        int slot = node.slot;
+        Account removed = accounts[slot];
+        unindexNumber(removed);
+        holders.remove(removed);
+        removeFromViews(removed);
+        size--;
+        if (slot != size) {
+            findNode(accounts[size]).slot = slot;
+            accounts[slot] = accounts[size];
+        }
+        accounts[size] = null; //its number stays taken in the sequence, as the archive finds it by number
+        metrics.recordClose();
+        synchronized (stripe(removed)) {
+            long balance = removed.getBalance();
+            if (log != null) log.logClose(removed, balance > 0 ? date : 0);
+            aggregates.remove(removed.getNumber().getBranch(), removed.getType(), balance);
+            if (balance > 0) removed.record(date, removed.getNumber().getBranch(), 'W', balance, false);
+            removed.withdraw(balance);
+        }
+        archive.add(removed);
+    }
+
+    /**
+     * Closes every account the holder has.
+     * @author Aryaman Urs
+     * @param holder the holder profile
+     * @return true if the holder had any accounts
+     * @throws IOException if the archive cannot spill to disk
+     */
+    @Override
+    public boolean removeByProfile(Profile holder) throws IOException {
+        structure.writeLock().lock();
+        try {
+            ProfileTable.Holder entry = holders.find(holder);
+            if (entry == null) return false;
+            int today = Date.today().toInt();
+            for (Account account : entry.getAccounts()) delete(account, today);
+            return true;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the type of an account, re-keying the number index and the sorted views
+     * since the type is part of the account number. The account keeps its sequence
+     * digits if that number of the new type is free, and gets a new number otherwise.
+     * The holder's entry is unchanged.
+     * @author Arjun Deshpande
+     * @param account the account to change
+     * @param type the new account type
+     * @return true if the type was changed, false if every number of the new type is open
+     */
+    public boolean changeType(Account account, AccountType type) {
+        return changeType(account, type, AccountNumbers.INVALID);
+    } //changeType
+
+    /**
+     * Changes the type of the account with the given packed number, as
+     * changeType(account, type) does.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param type the new account type
+     * @return true if the type was changed
+     */
+    @Override
+    public boolean changeType(int packed, AccountType type) {
+        structure.writeLock().lock();
+        try {
+            int slot = find(packed);
+            return slot != NOT_FOUND && retype(accounts[slot], type, AccountNumbers.INVALID);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the type of an account to a given number, as the log recorded it.
+     * @author Arjun Deshpande
+     * @param account the account to change
+     * @param type the new account type
+     * @param packed the new number, or AccountNumbers.INVALID to pick one as changeType(account, type) does
+     * @return true if the type was changed
+     */
+    boolean changeType(Account account, AccountType type, int packed) {
+        structure.writeLock().lock();
+        try {
+            return retype(account, type, packed);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Re-keys an account under a new type and number. Caller holds the write lock.
+     * @author Arjun Deshpande
+     * @param account the account to change
+     * @param type the new account type
+     * @param packed the new number, or AccountNumbers.INVALID to keep the sequence digits if free, else draw one
+     * @return true if the type was changed
+     */
+    private boolean retype(Account account, AccountType type, int packed) {
+        NumberNode node = findNode(account);
+        if (node == null || account.getType() == type) return false;
+        Branch branch = account.getNumber().getBranch();
+        if (packed == AccountNumbers.INVALID) {
+            packed = AccountNumbers.compose(branch, type, AccountNumbers.sequenceOf(account.getPackedNumber()));
+            if (!sequence.claim(packed)) packed = sequence.next(branch, type); //the same digits are taken by another account
+            if (packed == AccountNumbers.INVALID) return false;
+        } else {
+            sequence.reserve(packed);
+        }
+        int slot = node.slot;
+        if (log != null) log.logRetype(account, type, packed);
+        unindexNumber(account);
+        removeFromViews(account); //the type and number are sort keys, so re-key the views
+        aggregates.remove(branch, account.getType(), account.getBalance()); //no postings run under the write lock
+        sequence.release(account.getPackedNumber());
+        account.renumber(packed);
+        aggregates.add(branch, type, account.getBalance());
+        indexNumber(account, slot);
+        addToViews(account);
+        return true;
+    }
+
+    /**
+     * Adds an account to every sorted view. Caller holds the write lock.
+     * @author Arjun Deshpande
+     * @param account the account
+     */
+    private void addToViews(Account account) {
+        byNumber.add(account);
+        byBranch.add(account);
+        byHolder.add(account);
+        byType.add(account);
+    }
+
+    /**
+     * Removes an account from every sorted view, before any of its sort keys change.
+     * Caller holds the write lock.
+     * @author Arjun Deshpande
+     * @param account the account
+     */
+    private void removeFromViews(Account account) {
+        byNumber.remove(account);
+        byBranch.remove(account);
+        byHolder.remove(account);
+        byType.remove(account);
+    }
+
+    /**
+     * Downgrades a money market account to savings once its balance drops below the minimum.
+     * If every savings number of its branch is taken, the account stays a money market
+     * account under the minimum, and the caller has to report it.
+     * @author Arjun Deshpande
+     * @param account the account that was just withdrawn from
+     * @return DOWNGRADED, NO_SAVINGS_NUMBER, or KEPT if it is not a money market account under the minimum
+     */
+    public int downgradeIfBelowMinimum(Account account) {
+        if (account.getType() != AccountType.MONEY_MARKET) return KEPT;
+        structure.writeLock().lock();
+        try {
+            if (account.getType() != AccountType.MONEY_MARKET || !isOpen(account)) return KEPT;
+            synchronized (stripe(account)) {
+                if (account.getBalance() >= MONEY_MARKET_MINIMUM) return KEPT;
+            }
+            if (!retype(account, AccountType.SAVINGS, AccountNumbers.INVALID)) return NO_SAVINGS_NUMBER;
+            metrics.recordDowngrade();
+            return DOWNGRADED;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Downgrades the money market account with the given packed number, as
+     * downgradeIfBelowMinimum(account) does.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return DOWNGRADED, NO_SAVINGS_NUMBER or KEPT
+     */
+    @Override
+    public int downgradeIfBelowMinimum(int packed) {
+        Account account = numFind(packed);
+        return account == null ? KEPT : downgradeIfBelowMinimum(account);
+    }
+
+    /**
+     * Deposits into the account with the given number and records it in its ledger,
+     * dated today at the account's branch.
+     * @author Arjun Deshpande
+     * @param number the account number
+     * @param amount the amount to deposit, in cents
+     * @return the new balance, NOT_OPEN if there is no such account, or OVERFLOW
+     */
+    public long deposit(AccountNumber number, long amount) {
+        return deposit(AccountNumbers.pack(number), amount);
+    }
+
+    /**
+     * Deposits into the account with the given packed number, as parsed by
+     * AccountNumbers.parse, and records it in its ledger, dated today at the account's branch.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param amount the amount to deposit, in cents
+     * @return the new balance, NOT_OPEN if there is no such account, or OVERFLOW
+     */
+    @Override
+    public long deposit(int packed, long amount) {
+        structure.readLock().lock();
+        try {
+            int slot = find(packed);
+            if (slot == NOT_FOUND) return NOT_OPEN;
+            Account account = accounts[slot];
+            return post(account, 'D', amount, Date.today().toInt(), account.getNumber().getBranch(), false);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Deposits into an account and records the activity in its ledger.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @param amount the amount to deposit, in cents
+     * @param date the packed yyyymmdd date of the activity
+     * @param location the branch where it happened
+     * @param atm true if made at an ATM
+     * @return the new balance, NOT_OPEN if the account has been closed, or OVERFLOW
+     */
+    public long deposit(Account account, long amount, int date, Branch location, boolean atm) {
+        structure.readLock().lock();
+        try {
+            return isOpen(account) ? post(account, 'D', amount, date, location, atm) : NOT_OPEN;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Withdraws from the account with the given number and records it in its ledger,
+     * dated today at the account's branch.
+     * @author Arjun Deshpande
+     * @param number the account number
+     * @param amount the amount to withdraw, in cents
+     * @return the new balance, NOT_OPEN if there is no such account, INSUFFICIENT_FUNDS or BLOCKED
+     */
+    public long withdraw(AccountNumber number, long amount) {
+        return withdraw(AccountNumbers.pack(number), amount);
+    }
+
+    /**
+     * Withdraws from the account with the given packed number, as parsed by
+     * AccountNumbers.parse, and records it in its ledger, dated today at the account's branch.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param amount the amount to withdraw, in cents
+     * @return the new balance, NOT_OPEN if there is no such account, INSUFFICIENT_FUNDS or BLOCKED
+     */
+    @Override
+    public long withdraw(int packed, long amount) {
+        structure.readLock().lock();
+        try {
+            int slot = find(packed);
+            if (slot == NOT_FOUND) return NOT_OPEN;
+            Account account = accounts[slot];
+            return post(account, 'W', amount, Date.today().toInt(), account.getNumber().getBranch(), false);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Withdraws from an account and records the activity in its ledger.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @param amount the amount to withdraw, in cents
+     * @param date the packed yyyymmdd date of the activity
+     * @param location the branch where it happened
+     * @param atm true if made at an ATM
+     * @return the new balance, NOT_OPEN if the account has been closed, INSUFFICIENT_FUNDS or BLOCKED
+     */
+    public long withdraw(Account account, long amount, int date, Branch location, boolean atm) {
+        structure.readLock().lock();
+        try {
+            return isOpen(account) ? post(account, 'W', amount, date, location, atm) : NOT_OPEN;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Posts month-end interest or a fee to an account and records it in its ledger.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @param type I for interest or F for a fee
+     * @param amount the amount, in cents
+     * @param date the packed yyyymmdd date of the activity
+     * @param location the branch where it happened
+     * @return the new balance, NOT_OPEN if the account has been closed, INSUFFICIENT_FUNDS or OVERFLOW
+     */
+    public long postMonthEnd(Account account, char type, long amount, int date, Branch location) {
+        structure.readLock().lock();
+        try {
+            return isOpen(account) ? post(account, type, amount, date, location, false) : NOT_OPEN;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs month-end processing: pays interest and charges fees on every open account
+     * in one parallel pass over the accounts array, on the common fork-join pool. Opens
+     * and closes wait for the pass; postings to other accounts do not. Money market
+     * accounts left under the minimum are downgraded to savings afterwards; those with
+     * no savings number left are counted in the rules' totals.
+     * @author Arjun Deshpande
+     * @param rules the month-end rules, which also collect the totals
+     * @param date the packed yyyymmdd month-end date
+     */
+    public void monthEnd(MonthEnd rules, int date) {
+        Account[] belowMinimum = new Account[0];
+        int count = 0;
+        structure.readLock().lock();
+        try {
+            ForkJoinPool.commonPool().invoke(new Settlement(rules, date, 0, size));
+            for (int i = 0; i < size; i++) {
+                Account account = accounts[i];
+                if (account.getType() == AccountType.MONEY_MARKET && account.getBalance() < MONEY_MARKET_MINIMUM) {
+                    if (count == belowMinimum.length) belowMinimum = Arrays.copyOf(belowMinimum, count * 2 + 4);
+                    belowMinimum[count++] = account;
+                }
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+        for (int i = 0; i < count; i++) {
+            if (downgradeIfBelowMinimum(belowMinimum[i]) == NO_SAVINGS_NUMBER) rules.recordNotDowngraded();
+        }
+    } //monthEnd
+
+    /**
+     * Settles one slice of the accounts array, splitting it in half until it is small.
+     * @author Arjun Deshpande
+     */
+    @SuppressWarnings("serial") //a fork/join task, never serialized
+    private class Settlement extends RecursiveAction {
+        private final MonthEnd rules;
+        private final int date;
+        private final int from;
+        private final int to;
+
+        Settlement(MonthEnd rules, int date, int from, int to) {
+            this.rules = rules;
+            this.date = date;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SETTLE_GRAIN) {
+                for (int i = from; i < to; i++) settle(accounts[i], rules, date);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Settlement(rules, date, from, mid), new Settlement(rules, date, mid, to));
+        }
+    }//end klasse
+
+    /**
+     * Pays the month's interest and charges its fee on one account. Both are worked out
+     * from the balance before either is posted, and a fee larger than the balance takes
+     * the balance to zero. Caller holds the read lock.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @param rules the month-end rules
+     * @param date the packed yyyymmdd month-end date
+     */
+    private void settle(Account account, MonthEnd rules, int date) {
+        boolean holderHasChecking = account.getType() == AccountType.SAVINGS
+                && findHolder(account.getHolder(), AccountType.CHECKING) != null;
+        Branch branch = account.getNumber().getBranch();
+        synchronized (stripe(account)) {
+            long interest = rules.interest(account, holderHasChecking);
+            long fee = rules.fee(account, date);
+            if (interest > 0 && post(account, 'I', interest, date, branch, false) == OVERFLOW) interest = 0;
+            fee = Math.min(fee, account.getBalance());
+            if (fee > 0) post(account, 'F', fee, date, branch, false);
+            rules.record(interest, fee);
+        }
+    }
+
+    /**
+     * Posts a deposit, withdrawal, interest payment or fee under the account's stripe
+     * lock, so postings to different accounts run in parallel up to the log append, which
+     * takes the log's monitor. Caller holds the read lock.
+     * A withdrawal is checked for funds before the velocity guard sees it, so one refused
+     * for insufficient funds is not counted towards the guard's limits.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @param type D or W, or I or F at month end
+     * @param amount the amount, in cents
+     * @param date the packed yyyymmdd date of the activity
+     * @param location the branch where it happened
+     * @param atm true if made at an ATM
+     * @return the new balance, INSUFFICIENT_FUNDS, BLOCKED if the velocity guard refused a
+     *         withdrawal, or OVERFLOW if a deposit would take the balance past Long.MAX_VALUE
+     */
+    private long post(Account account, char type, long amount, int date, Branch location, boolean atm) {
+        synchronized (stripe(account)) {
+            long before = account.getBalance();
+            if (type == 'D' || type == 'I') {
+                try {
+                    account.deposit(amount);
+                } catch (ArithmeticException e) {
+                    return OVERFLOW; //refused, and nothing is logged
+                }
+            } else {
+                if (amount > account.getBalance()) {
+                    metrics.recordPosting(type, true);
+                    return INSUFFICIENT_FUNDS;
+                }
+                VelocityGuard rules = guard; //only withdrawals that would go through count towards its limits
+                if (type == 'W' && rules != null && rules.check(account, date, location, atm) == VelocityGuard.BLOCK) {
+                    return BLOCKED; //counted by the guard, not as a refusal for funds
+                }
+                account.withdraw(amount);
+            }
+            metrics.recordPosting(type, false);
+            aggregates.move(account.getNumber().getBranch(), account.getType(), before, account.getBalance());
+            account.record(date, location, type, amount, atm);
+            if (log != null) log.logPosting(account, type, amount, date, location, atm);
+            return account.getBalance();
+        }
+    } //post
+
+    /**
+     * Doubles the accounts array when it is full.
+     * @author Arjun Deshpande
+     */
+    private void grow() {
+        Account[] bigger = new Account[accounts.length * 2];
+        for (int i = 0; i < size; i++) bigger[i] = accounts[i];
+        accounts = bigger;
+    } //grow
+
+    /**
+     * Adds an account number to the number index, resizing at 3/4 load.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @param slot its slot in the accounts array
+     */
+    private void indexNumber(Account account, int slot) {
+        if (size + 1 > numberIndex.length * 3 / 4) {
+            NumberNode[] bigger = new NumberNode[numberIndex.length * 2];
+            for (NumberNode head : numberIndex) {
+                for (NumberNode node = head; node != null; ) {
+                    NumberNode next = node.next;
+                    int b = node.hash & (bigger.length - 1);
+                    node.next = bigger[b];
+                    bigger[b] = node;
+                    node = next;
+                }
+            }
+            numberIndex = bigger;
+        }
+        int h = hash(account.getPackedNumber());
+        int b = h & (numberIndex.length - 1);
+        numberIndex[b] = new NumberNode(h, slot, numberIndex[b]);
+    }
+
+    /**
+     * Removes an account from the number index.
+     * @author Arjun Deshpande
+     * @param account the account
+     */
+    private void unindexNumber(Account account) {
+        int h = hash(account.getPackedNumber());
+        int b = h & (numberIndex.length - 1);
+        NumberNode prev = null;
+        for (NumberNode node = numberIndex[b]; node != null; prev = node, node = node.next) {
+            if (node.hash == h && accounts[node.slot] == account) {
+                if (prev == null) numberIndex[b] = node.next;
+                else prev.next = node.next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compares two accounts on the given sort key, breaking ties by account number.
+     * @author Aryaman Urs
+     * @param a the first account
+     * @param b the second account
+     * @param key BY_NUMBER, BY_BRANCH, BY_HOLDER or BY_TYPE
+     * @return negative, zero or positive as a sorts before, with or after b
+     */
+    private static int compare(Account a, Account b, char key) {
+        int c = 0;
+        switch (key) {
+            case BY_BRANCH: c = a.getNumber().getBranch().compareTo(b.getNumber().getBranch()); break;
+            case BY_HOLDER: c = a.getHolder().compareTo(b.getHolder()); break;
+            case BY_TYPE: c = a.getType().compareTo(b.getType()); break;
+            default: break;
+        }
+        return c != 0 ? c : a.compareTo(b);
+    }
+
+    /**
+     * Gets the sorted view for a sort key.
+     * @author Arjun Deshpande
+     * @param key BY_NUMBER, BY_BRANCH, BY_HOLDER or BY_TYPE
+     * @return the view
+     */
+    private SortedView view(char key) {
+        switch (key) {
+            case BY_BRANCH: return byBranch;
+            case BY_HOLDER: return byHolder;
+            case BY_TYPE: return byType;
+            default: return byNumber;
+        }
+    }
+
+    /**
+     * Gets the header line of a report.
+     * @author Aryaman Urs
+     * @param key BY_NUMBER, BY_BRANCH, BY_HOLDER or BY_TYPE
+     * @return the header
+     */
+    private static String header(char key) {
+        switch (key) {
+            case BY_BRANCH: return "*List of accounts ordered by branch location.*";
+            case BY_HOLDER: return "*List of accounts ordered by account holder and number.*";
+            case BY_TYPE: return "*List of accounts ordered by account type and number.*";
+            default: return "*List of accounts ordered by account number.*";
+        }
+    }
+
+    /**
+     * Prints the accounts sorted on the given key between a header and footer, walking
+     * the view under the read lock so opens and closes wait until the report is done.
+     * @author Aryaman Urs
+     * @param key the sort key
+     * @param out the stream to print to
+     * @throws IOException if the report cannot be written
+     */
+    private void print(char key, PrintStream out) throws IOException {
+        structure.readLock().lock();
+        try {
+            ReportWriter writer = new ReportWriter(out);
+            if (size == 0) {
+                writer.writeLine("Account database is empty!");
+            } else {
+                writer.writeLine(header(key));
+                for (Account account : view(key)) writer.write(account);
+                writer.writeLine("*end of list.*");
+            }
+            writer.flush();
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Prints one page of a report: at most limit accounts, starting after a cursor
+     * account, then "*more after [number].*" if the report goes on, to be passed as
+     * the next cursor, or the usual end of list. Only the page is walked, so the read
+     * lock is held for the page, not the whole book. The cursor may be an account that
+     * has been closed since, as long as it is in the archive; in number order any
+     * number works.
+     * @author Arjun Deshpande
+     * @param key BY_NUMBER, BY_BRANCH, BY_HOLDER or BY_TYPE
+     * @param limit the most accounts to print
+     * @param after the number of the last account of the previous page, or null for the first page
+     * @param out the stream to print to
+     * @return false if the cursor account could not be found
+     * @throws IOException if the report cannot be written or the archive cannot be read
+     */
+    public boolean printPage(char key, int limit, AccountNumber after, PrintStream out) throws IOException {
+        structure.readLock().lock();
+        try {
+            Iterator<Account> page = view(key).iterator();
+            if (after != null) {
+                int slot = find(after);
+                Account cursor = slot != NOT_FOUND ? accounts[slot] : archive.find(after);
+                if (cursor == null && key == BY_NUMBER) cursor = new Account(after, null, 0); //only the number is compared
+                if (cursor == null) return false;
+                page = view(key).after(cursor);
+            }
+            ReportWriter writer = new ReportWriter(out);
+            if (size == 0) {
+                writer.writeLine("Account database is empty!");
+                writer.flush();
+                return true;
+            }
+            writer.writeLine(header(key));
+            Account last = null;
+            for (int n = 0; n < limit && page.hasNext(); n++) {
+                last = page.next();
+                writer.write(last);
+            }
+            if (page.hasNext() && last != null) writer.writeLine("*more after " + last.getNumber() + ".*");
+            else writer.writeLine("*end of list.*");
+            writer.flush();
+            return true;
+        } finally {
+            structure.readLock().unlock();
+        }
+    } //printPage
+
+    /**
+     * Prints the accounts ordered by account number.
+     * @author Aryaman Urs
+     * @param out the stream to print to
+     * @throws IOException if the report cannot be written
+     */
+    public void print(PrintStream out) throws IOException {
+        print(BY_NUMBER, out);
+    }
+
+    /**
+     * Prints the closed accounts in the archive, most recently closed first.
+     * @author Arjun Deshpande
+     * @param out the stream to print to
+     * @throws IOException if spilled accounts cannot be read back
+     */
+    public void printArchive(PrintStream out) throws IOException {
+        structure.readLock().lock();
+        try {
+            if (archive.isEmpty()) {
+                out.println("Archive is empty.");
+                return;
+            }
+            out.println("*List of closed accounts in the archive.*");
+            archive.print(out);
+            out.println("*end of list.*");
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the most recently closed account with the given number.
+     * @author Arjun Deshpande
+     * @param number the account number
+     * @return the closed account, or null if it was never closed
+     * @throws IOException if spilled accounts cannot be read back
+     */
+    public Account archivedFind(AccountNumber number) throws IOException {
+        structure.readLock().lock();
+        try {
+            return archive.find(number);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds every closed account of a holder.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @return the closed accounts, most recently closed first
+     * @throws IOException if spilled accounts cannot be read back
+     */
+    public Account[] archivedByHolder(Profile holder) throws IOException {
+        structure.readLock().lock();
+        try {
+            return archive.findByHolder(holder);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the balance of an account at the end of a day, from the nearest checkpoint
+     * of its ledger. A closed account is looked up in the archive.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param date the packed yyyymmdd date
+     * @return the balance, or NOT_OPEN if no such account was ever opened
+     * @throws IOException if the archive cannot be read
+     */
+    public long balanceAsOf(int packed, int date) throws IOException {
+        structure.readLock().lock();
+        try {
+            int slot = find(packed);
+            Account account = slot == NOT_FOUND ? archive.find(AccountNumbers.unpack(packed)) : accounts[slot];
+            if (account == null) return NOT_OPEN;
+            synchronized (stripe(account)) {
+                return account.getBalanceAsOf(date);
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Prints the balance of every account of a branch at the end of a day: the open
+     * accounts by number, then the closed accounts that still held money that day.
+     * The balances are worked out in parallel on the common fork-join pool.
+     * @author Arjun Deshpande
+     * @param branch the branch
+     * @param date the packed yyyymmdd date
+     * @param out the stream to print to
+     * @throws IOException if the archive cannot be read or the report cannot be written
+     */
+    public void printBalancesAsOf(Branch branch, int date, PrintStream out) throws IOException {
+        structure.readLock().lock();
+        try {
+            Account[] selected = new Account[16];
+            int n = 0;
+            for (Account account : byBranch) {
+                Branch at = account.getNumber().getBranch();
+                if (at.compareTo(branch) > 0) break; //the view is ordered by branch
+                if (at != branch) continue;
+                if (n == selected.length) selected = Arrays.copyOf(selected, n * 2);
+                selected[n++] = account;
+            }
+            int open = n;
+            Archive.Reader reader = archive.oldestFirst();
+            for (Account account = reader.next(); account != null; account = reader.next()) {
+                if (account.getNumber().getBranch() != branch) continue;
+                if (n == selected.length) selected = Arrays.copyOf(selected, n * 2);
+                selected[n++] = account;
+            }
+            long[] balances = new long[n];
+            ForkJoinPool.commonPool().invoke(new AsOf(selected, balances, date, 0, n));
+            ReportWriter writer = new ReportWriter(out);
+            writer.writeLine("*Balances at " + branch.name() + " as of " + Date.fromInt(date) + ".*");
+            StringBuilder line = new StringBuilder(96);
+            long total = 0;
+            int listed = 0;
+            for (int i = 0; i < n; i++) {
+                if (i >= open && balances[i] == 0) continue;
+                line.setLength(0);
+                line.append("Account#[").append(selected[i].getNumber()).append("] Holder[").append(selected[i].getHolder())
+                        .append("] Balance[$");
+                Money.append(line, balances[i]).append(i >= open ? "] (closed since)" : "]");
+                writer.writeLine(line);
+                total += balances[i];
+                listed++;
+            }
+            line.setLength(0);
+            Money.append(line.append("Total $"), total).append(" in ").append(listed).append(listed == 1 ? " account." : " accounts.");
+            writer.writeLine(line);
+            writer.writeLine("*end of list.*");
+            writer.flush();
+        } finally {
+            structure.readLock().unlock();
+        }
+    } //printBalancesAsOf
+
+    /**
+     * Works out the balances as of a date of a slice of accounts, splitting it in half
+     * until it is small.
+     * @author Arjun Deshpande
+     */
+    @SuppressWarnings("serial") //a fork/join task, never serialized
+    private class AsOf extends RecursiveAction {
+        private final Account[] selected;
+        private final long[] balances;
+        private final int date;
+        private final int from;
+        private final int to;
+
+        AsOf(Account[] selected, long[] balances, int date, int from, int to) {
+            this.selected = selected;
+            this.balances = balances;
+            this.date = date;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= AS_OF_GRAIN) {
+                for (int i = from; i < to; i++) {
+                    synchronized (stripe(selected[i])) {
+                        balances[i] = selected[i].getBalanceAsOf(date);
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new AsOf(selected, balances, date, from, mid), new AsOf(selected, balances, date, mid, to));
+        }
+    }//end klasse
+
+    /**
+     * Prints the accounts ordered by branch location, then account number.
+     * @author Aryaman Urs
+     * @param out the stream to print to
+     * @throws IOException if the report cannot be written
+     */
+    public void printByBranch(PrintStream out) throws IOException {
+        print(BY_BRANCH, out);
+    }
+
+    /**
+     * Prints the accounts ordered by holder, then account number.
+     * @author Aryaman Urs
+     * @param out the stream to print to
+     * @throws IOException if the report cannot be written
+     */
+    public void printByHolder(PrintStream out) throws IOException {
+        print(BY_HOLDER, out);
+    }
+
+    /**
+     * Prints the accounts ordered by account type, then account number.
+     * @author Aryaman Urs
+     * @param out the stream to print to
+     * @throws IOException if the report cannot be written
+     */
+    public void printByType(PrintStream out) throws IOException {
+        print(BY_TYPE, out);
+    }
+
+    /**
+     * Testbed main method. Given database sizes (e.g. 1000 10000 100000, at most AccountNumbers.CAPACITY),
+     * times numFind and containsHolderAndType as the book grows. Given "stress" and an
+     * optional thread count, runs the concurrency stress test and then the deposit/withdraw
+     * scaling benchmark from 1 thread up to that count. Given "reports" and sizes, compares
+     * the sorted-view reports with sorting the book on every print.
+     * @author Arjun Deshpande
+     * @param args the database sizes to time, "stress" [threads] or "reports" [sizes]
+     * @throws InterruptedException if interrupted while waiting for the workers
+     * @throws IOException never, reports go to a null stream
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length > 0 && args[0].equals("reports")) {
+            int[] sizes = {1_000, 10_000, 100_000};
+            if (args.length > 1) {
+                sizes = new int[args.length - 1];
+                for (int i = 1; i < args.length; i++) sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+            for (int n : sizes) benchmarkReports(n);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("stress")) {
+            int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+            stress(maxThreads);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) scaling(threads);
+            return;
+        }
+        int[] sizes = {1_000, 10_000, 100_000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+        benchmarkLookups(sizes);
+    }//testbed
+
+    /**
+     * Times numFind and containsHolderAndType at each database size. Every account has a
+     * distinct number, so sizes above AccountNumbers.CAPACITY are cut down to it.
+     * @author Arjun Deshpande
+     * @param sizes the database sizes to time
+     */
+    private static void benchmarkLookups(int[] sizes) {
+        final int LOOKUPS = 1_000_000;
+        for (int n : sizes) {
+            n = Math.min(n, AccountNumbers.CAPACITY);
+            AccountDatabase db = new AccountDatabase();
+            AccountNumber[] numbers = new AccountNumber[n];
+            Profile[] holders = new Profile[n];
+            for (int i = 0; i < n; i++) {
+                holders[i] = new Profile("First" + i, "Last" + i, new Date(1, 1, 1990));
+                numbers[i] = AccountNumbers.unpack(AccountNumbers.distinct(i));
+                db.add(new Account(numbers[i], holders[i], 10000));
+            }
+            int hits = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (db.numFind(numbers[(int) ((i * 7919L) % n)]) != null) hits++;
+            }
+            long numFindNs = (System.nanoTime() - start) / LOOKUPS;
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                int k = (int) ((i * 7919L) % n);
+                if (db.containsHolderAndType(holders[k], numbers[k].getType())) hits++;
+            }
+            long holderNs = (System.nanoTime() - start) / LOOKUPS;
+            System.out.println(n + " accounts: numFind " + numFindNs + " ns, containsHolderAndType "
+                    + holderNs + " ns (" + hits + " hits)");
+        }
+    }
+
+    /**
+     * Times one holder report three ways on a book of n accounts: the insertion sort the
+     * reports used to run on every print (skipped above 20,000 accounts, where it takes
+     * minutes), a copy plus Arrays.sort, and a walk of the sorted view. Also times
+     * the opens, which now pay for keeping the views sorted, and a full PH to a null stream.
+     * @author Arjun Deshpande
+     * @param n the number of accounts
+     * @throws IOException never, the report goes to a null stream
+     */
+    private static void benchmarkReports(int n) throws IOException {
+        final int REPEATS = 20;
+        long start = System.nanoTime();
+        AccountDatabase db = new AccountDatabase();
+        fill(db, n);
+        long opens = System.nanoTime() - start;
+        long insertion = -1;
+        if (n <= 20_000) {
+            start = System.nanoTime();
+            for (int r = 0; r < REPEATS; r++) {
+                Account[] copy = new Account[db.size];
+                for (int i = 0; i < copy.length; i++) {
+                    Account current = db.accounts[i];
+                    int j = i - 1;
+                    while (j >= 0 && compare(copy[j], current, BY_HOLDER) > 0) {
+                        copy[j + 1] = copy[j];
+                        j--;
+                    }
+                    copy[j + 1] = current;
+                }
+            }
+            insertion = (System.nanoTime() - start) / REPEATS;
+        }
+        start = System.nanoTime();
+        for (int r = 0; r < REPEATS; r++) {
+            Account[] copy = Arrays.copyOf(db.accounts, db.size);
+            Arrays.sort(copy, (a, b) -> compare(a, b, BY_HOLDER));
+        }
+        long arraysSort = (System.nanoTime() - start) / REPEATS;
+        start = System.nanoTime();
+        int walked = 0;
+        for (int r = 0; r < REPEATS; r++) {
+            for (Account account : db.byHolder) walked++;
+        }
+        long walk = (System.nanoTime() - start) / REPEATS;
+        start = System.nanoTime();
+        db.printByHolder(new PrintStream(java.io.OutputStream.nullOutputStream()));
+        long print = System.nanoTime() - start;
+        System.out.printf("%d accounts: opens %d ns each; holder order by insertion sort %s, by Arrays.sort %.2f ms, "
+                        + "by view walk %.2f ms (%d walked); full PH %.1f ms%n", n, opens / n,
+                insertion < 0 ? "skipped" : String.format("%.2f ms", insertion / 1e6), arraysSort / 1e6,
+                walk / 1e6, walked / REPEATS, print / 1e6);
+    }
+
+    /**
+     * Fills a database with accounts holding $10,000 each, with distinct numbers.
+     * @author Arjun Deshpande
+     * @param db the database to fill
+     * @param n the number of accounts, at most AccountNumbers.CAPACITY
+     * @return the accounts that were added
+     */
+    private static Account[] fill(AccountDatabase db, int n) {
+        Account[] added = new Account[n];
+        for (int i = 0; i < n; i++) {
+            AccountNumber number = AccountNumbers.unpack(AccountNumbers.distinct(i));
+            added[i] = new Account(number, new Profile("First" + i, "Last" + i, new Date(1, 1, 1990)), 1_000_000);
+            db.add(added[i]);
+        }
+        return added;
+    }
+
+    /**
+     * Hammers one database from many threads with matched deposit/withdrawal pairs and
+     * racing opens of the same holders, then checks that no money was created or lost,
+     * that every posting reached a ledger, and that each holder+type was opened once.
+     * @author Arjun Deshpande
+     * @param threads the number of worker threads
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    private static void stress(int threads) throws InterruptedException {
+        final int ACCOUNTS = 1_000;
+        final int PAIRS = 100_000;
+        final int HOLDERS = 100;
+        AccountDatabase db = new AccountDatabase();
+        Account[] book = fill(db, ACCOUNTS);
+        AtomicInteger opened = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < PAIRS; i++) {
+                    Account account = book[random.nextInt(ACCOUNTS)];
+                    long amount = 1 + random.nextInt(100_000);
+                    db.deposit(account, amount, 20240101, Branch.EDISON, false);
+                    db.withdraw(account, amount, 20240101, Branch.EDISON, false);
+                    if (i < HOLDERS) {
+                        Profile holder = new Profile("Racer" + i, "Holder", new Date(1, 1, 1990));
+                        Account racer = new Account(db.newNumber(Branch.WARREN, AccountType.CHECKING), holder, 100);
+                        if (db.open(racer, 20240101)) opened.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        long total = 0;
+        long postings = 0;
+        for (Account account : book) {
+            total += account.getBalance();
+            if (account.getActivities() != null) postings += account.getActivities().size();
+        }
+        boolean ok = total == (long) ACCOUNTS * 1_000_000 && postings == 2L * PAIRS * threads
+                && opened.get() == HOLDERS && db.size() == ACCOUNTS + HOLDERS;
+        System.out.println("stress " + threads + " threads: total $" + Money.format(total) + ", " + postings
+                + " postings, " + opened.get() + " racing opens won -> " + (ok ? "PASS" : "FAIL"));
+    }
+
+    /**
+     * Measures deposit/withdraw throughput on a shared database with the given number of threads.
+     * @author Arjun Deshpande
+     * @param threads the number of worker threads
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    private static void scaling(int threads) throws InterruptedException {
+        final int ACCOUNTS = 100_000;
+        final int OPS = 4_000_000;
+        AccountDatabase db = new AccountDatabase();
+        Account[] book = fill(db, ACCOUNTS);
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPS / threads; i++) {
+                    Account account = book[random.nextInt(ACCOUNTS)];
+                    if ((i & 1) == 0) db.deposit(account, 100, 20240101, Branch.EDISON, false);
+                    else db.withdraw(account, 100, 20240101, Branch.EDISON, false);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+        System.out.println("scaling " + threads + " threads: " + OPS * 1_000_000_000L / elapsed + " postings/sec");
+    }
+}//end class AccountDatabase
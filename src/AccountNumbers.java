@@ -0,0 +1,207 @@
+/**
+ * Account numbers as primitive ints. The 9 digits are a fixed layout: 3 branch digits,
+ * 2 type digits and a 4-digit sequence number, so the digits read as an int are a
+ * unique key that hashes and compares without building an AccountNumber. Parsing
+ * reads the digits straight from the command characters and checks the branch and
+ * type codes against tables, with no substring or exception on bad input.
+ * New numbers come from a NumberSequence instead of being drawn at random.
+ * @author Arjun Deshpande
+ */
+public final class AccountNumbers {
+    public static final int INVALID = -1; //returned when a number does not parse
+    public static final int DIGITS = 9;
+    public static final int SEQUENCES = 10_000; //4 sequence digits
+    private static final int TYPE_CODES = 100; //2 type digits
+    private static final int BRANCH_CODES = 1000; //3 branch digits
+    private static final Branch[] BRANCHES = Branch.values();
+    private static final AccountType[] TYPES = AccountType.values();
+    public static final int CAPACITY = BRANCHES.length * TYPES.length * SEQUENCES; //distinct numbers in all
+    private static final Branch[] BRANCH_BY_CODE = new Branch[BRANCH_CODES];
+    private static final AccountType[] TYPE_BY_CODE = new AccountType[TYPE_CODES];
+    private static final int[] BRANCH_CODE = new int[BRANCHES.length]; //by ordinal
+    private static final int[] TYPE_CODE = new int[TYPES.length]; //by ordinal
+
+    static {
+        for (Branch branch : BRANCHES) {
+            for (AccountType type : TYPES) {
+                int packed = pack(new AccountNumber(branch, type)); //read the codes off a sample number
+                BRANCH_CODE[branch.ordinal()] = packed / (TYPE_CODES * SEQUENCES);
+                TYPE_CODE[type.ordinal()] = packed / SEQUENCES % TYPE_CODES;
+                BRANCH_BY_CODE[BRANCH_CODE[branch.ordinal()]] = branch;
+                TYPE_BY_CODE[TYPE_CODE[type.ordinal()]] = type;
+            }
+        }
+    }
+
+    private AccountNumbers() {
+    }
+
+    /**
+     * Packs an account number into an int.
+     * @author Arjun Deshpande
+     * @param number the account number
+     * @return the 9 digits as an int
+     */
+    public static int pack(AccountNumber number) {
+        return Integer.parseInt(number.toString());
+    }
+
+    /**
+     * Makes the i-th of the CAPACITY distinct numbers, going round the branches, then
+     * the types, for testbed books that must not repeat a number.
+     * @author Arjun Deshpande
+     * @param i the index, below CAPACITY
+     * @return the packed number
+     */
+    public static int distinct(int i) {
+        return compose(BRANCHES[i % BRANCHES.length], TYPES[i / BRANCHES.length % TYPES.length], i / (BRANCHES.length * TYPES.length));
+    }
+
+    /**
+     * Unpacks an account number packed by pack() or made by compose().
+     * @author Arjun Deshpande
+     * @param packed the packed number
+     * @return the account number
+     */
+    public static AccountNumber unpack(int packed) {
+        char[] digits = new char[DIGITS];
+        for (int i = DIGITS - 1; i >= 0; i--, packed /= 10) digits[i] = (char) ('0' + packed % 10);
+        return AccountNumber.fromString(new String(digits));
+    }
+
+    /**
+     * Makes the packed number of a branch, type and sequence number.
+     * @author Arjun Deshpande
+     * @param branch the branch
+     * @param type the account type
+     * @param sequence the sequence number, from 0 to 9999
+     * @return the packed number
+     */
+    public static int compose(Branch branch, AccountType type, int sequence) {
+        return (BRANCH_CODE[branch.ordinal()] * TYPE_CODES + TYPE_CODE[type.ordinal()]) * SEQUENCES + sequence;
+    }
+
+    /**
+     * Gets the branch of a packed number.
+     * @author Arjun Deshpande
+     * @param packed the packed number
+     * @return the branch, or null if the branch digits are not a branch
+     */
+    public static Branch branchOf(int packed) {
+        return BRANCH_BY_CODE[packed / (TYPE_CODES * SEQUENCES) % BRANCH_CODES];
+    }
+
+    /**
+     * Gets the account type of a packed number.
+     * @author Arjun Deshpande
+     * @param packed the packed number
+     * @return the type, or null if the type digits are not a type
+     */
+    public static AccountType typeOf(int packed) {
+        return TYPE_BY_CODE[packed / SEQUENCES % TYPE_CODES];
+    }
+
+    /**
+     * Gets the sequence number of a packed number.
+     * @author Arjun Deshpande
+     * @param packed the packed number
+     * @return the last 4 digits
+     */
+    public static int sequenceOf(int packed) {
+        return packed % SEQUENCES;
+    }
+
+    /**
+     * Parses 9 digits with a known branch and type code.
+     * @author Arjun Deshpande
+     * @param chars the characters holding the number
+     * @param start the index of the first character
+     * @param end the index after the last character
+     * @return the packed number, or INVALID
+     */
+    public static int parse(char[] chars, int start, int end) {
+        if (end - start != DIGITS) return INVALID;
+        int packed = 0;
+        for (int i = start; i < end; i++) {
+            int digit = chars[i] - '0';
+            if (digit < 0 || digit > 9) return INVALID;
+            packed = packed * 10 + digit;
+        }
+        return branchOf(packed) == null || typeOf(packed) == null ? INVALID : packed;
+    }
+
+    /**
+     * Parses an account number string.
+     * @author Arjun Deshpande
+     * @param number the string
+     * @return the packed number, or INVALID
+     */
+    public static int parse(String number) {
+        return parse(number.toCharArray(), 0, number.length());
+    }
+
+    /**
+     * Testbed main method: checks parse against AccountNumber.fromString, times both,
+     * and draws numbers from one sequence on several threads to check they are unique.
+     * @author Arjun Deshpande
+     * @param args the numbers to draw per thread (default 2000)
+     * @throws InterruptedException if interrupted while joining the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String[] inputs = {"100010001", "500039999", "300020042", "999010001", "10001000", "abc010001", "100990001"};
+        for (String input : inputs) {
+            AccountNumber expected = AccountNumber.fromString(input);
+            int packed = parse(input);
+            boolean same = expected == null ? packed == INVALID : packed == pack(expected) && unpack(packed).equals(expected);
+            System.out.println(input + " -> " + packed + (same ? " PASS" : " FAIL"));
+        }
+        String[] numbers = new String[1024];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = unpack(compose(BRANCHES[i % BRANCHES.length], TYPES[i % TYPES.length], i * 7 % SEQUENCES)).toString();
+        }
+        char[][] chars = new char[numbers.length][];
+        for (int i = 0; i < numbers.length; i++) chars[i] = numbers[i].toCharArray();
+        long sink = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 5_000_000; i++) sink += AccountNumber.fromString(numbers[i & 1023]).hashCode();
+            long objects = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < 5_000_000; i++) sink += parse(chars[i & 1023], 0, DIGITS);
+            long primitive = System.nanoTime() - start;
+            System.out.printf("round %d: AccountNumber.fromString %.1f ns, AccountNumbers.parse %.1f ns%n",
+                    round, objects / 5e6, primitive / 5e6);
+        }
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        NumberSequence sequence = new NumberSequence();
+        int threads = 4;
+        int[][] drawn = new int[threads][perThread];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) drawn[id][i] = sequence.next(BRANCHES[0], TYPES[i % TYPES.length]);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        boolean[] seen = new boolean[TYPES.length * SEQUENCES];
+        int duplicates = 0;
+        int exhausted = 0;
+        for (int[] row : drawn) {
+            for (int packed : row) {
+                if (packed == INVALID) exhausted++;
+                else if (seen[typeOf(packed).ordinal() * SEQUENCES + sequenceOf(packed)]) duplicates++;
+                else seen[typeOf(packed).ordinal() * SEQUENCES + sequenceOf(packed)] = true;
+            }
+        }
+        System.out.printf("%d numbers drawn at %s on %d threads: %d duplicates, %d refused once a type was full%n",
+                threads * perThread, BRANCHES[0], threads, duplicates, exhausted);
+        int freed = compose(BRANCHES[0], TYPES[0], 42);
+        sequence.release(freed);
+        int again = INVALID;
+        for (int i = 0; i < SEQUENCES && again != freed; i++) again = sequence.next(BRANCHES[0], TYPES[0]);
+        System.out.println("a closed number is drawn again once the fresh ones run out: " + (again == freed ? "PASS" : "FAIL"));
+        System.out.println("(sink " + sink + ")");
+    }//testbed
+}//end class AccountNumbers
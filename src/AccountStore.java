@@ -0,0 +1,112 @@
+import java.io.IOException;
+/**
+ * The account operations the transaction manager's O, C, D and W commands use, keyed
+ * by packed account number and holder, so they can run on either storage engine:
+ * AccountDatabase, which keeps Account objects with ledgers, views and an archive, or
+ * CompactAccountStore, which keeps primitive columns for large books.
+ * Postings return the new balance, or one of the AccountDatabase result codes.
+ * @author Arjun Deshpande
+ */
+public interface AccountStore {
+    /**
+     * Gets the number of open accounts.
+     * @author Arjun Deshpande
+     * @return the number of accounts
+     */
+    int size();
+
+    /**
+     * Finds the account with the given packed number, as parsed by AccountNumbers.parse.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return the account, or null if there is no such account
+     */
+    Account numFind(int packed);
+
+    /**
+     * Checks if a holder already has an account of the given type.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @param type the account type
+     * @return true if the holder has an account of that type
+     */
+    boolean containsHolderAndType(Profile holder, AccountType type);
+
+    /**
+     * Draws a new account number that no open account has. It stays taken until the
+     * account is opened with open, which gives it back if the open is refused.
+     * @author Arjun Deshpande
+     * @param branch the branch
+     * @param type the account type
+     * @return the number, or null if every number of the branch and type is taken
+     */
+    AccountNumber newNumber(Branch branch, AccountType type);
+
+    /**
+     * Opens a new account unless its holder already has one of its type or its number is
+     * taken. If it is refused, its number is given back to the sequence.
+     * @author Arjun Deshpande
+     * @param account the new account, not yet shared
+     * @param date the packed yyyymmdd date it is opened
+     * @return true if it was added
+     */
+    boolean open(Account account, int date);
+
+    /**
+     * Closes the account with the given packed number, dated today.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return true if the account was open
+     * @throws IOException if a closed account cannot be archived
+     */
+    boolean remove(int packed) throws IOException;
+
+    /**
+     * Closes every account the holder has, dated today.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @return true if the holder had any accounts
+     * @throws IOException if a closed account cannot be archived
+     */
+    boolean removeByProfile(Profile holder) throws IOException;
+
+    /**
+     * Deposits into the account with the given packed number, dated today at its branch.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param amount the amount to deposit, in cents
+     * @return the new balance, AccountDatabase.NOT_OPEN or AccountDatabase.OVERFLOW
+     */
+    long deposit(int packed, long amount);
+
+    /**
+     * Withdraws from the account with the given packed number, dated today at its branch.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param amount the amount to withdraw, in cents
+     * @return the new balance, AccountDatabase.NOT_OPEN, AccountDatabase.INSUFFICIENT_FUNDS
+     *         or AccountDatabase.BLOCKED
+     */
+    long withdraw(int packed, long amount);
+
+    /**
+     * Changes the type of an account. It keeps its sequence digits if that number of the
+     * new type is free, and gets a new number otherwise.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param type the new account type
+     * @return true if the type was changed, false if there is no such account, it already
+     *         has the type, or every number of the new type is open
+     */
+    boolean changeType(int packed, AccountType type);
+
+    /**
+     * Downgrades a money market account to savings once its balance drops below
+     * AccountDatabase.MONEY_MARKET_MINIMUM.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int, of an account just withdrawn from
+     * @return AccountDatabase.DOWNGRADED, AccountDatabase.NO_SAVINGS_NUMBER if it is under
+     *         the minimum but every savings number of its branch is taken, or AccountDatabase.KEPT
+     */
+    int downgradeIfBelowMinimum(int packed);
+}//end interface AccountStore
@@ -1,7 +1,114 @@
+/**
+ * Represents one deposit, withdrawal, interest payment or fee posted to an account.
+ * Activities are not kept as objects; an account's ActivityLedger stores them in
+ * primitive columns and hands out Activity objects only when they are read back.
+ * @author Arjun Deshpande
+ */
 public class Activity implements Comparable<Activity>{
     private Date date;
     private Branch location; //the location of the activity
-    private char type; //D or W
-    private double amount;
+    private char type; //D, W, I (interest) or F (fee)
+    private long amount; //in cents
     private boolean atm; //true if this is made at an ATM (from the text file)
-}
\ No newline at end of file
+
+    /**
+     * Constructs an activity.
+     * @author Arjun Deshpande
+     * @param date the date of the activity
+     * @param location the branch where it happened
+     * @param type D for deposit, W for withdrawal, I for interest or F for a fee
+     * @param amount the amount in cents
+     * @param atm true if it was made at an ATM
+     */
+    public Activity(Date date, Branch location, char type, long amount, boolean atm) {
+        this.date = date;
+        this.location = location;
+        this.type = type;
+        this.amount = amount;
+        this.atm = atm;
+    }//end constructor
+
+    /**
+     * Gets the date of the activity.
+     * @author Arjun Deshpande
+     * @return the date
+     */
+    public Date getDate() {
+        return date;
+    }
+
+    /**
+     * Gets the branch where the activity happened.
+     * @author Arjun Deshpande
+     * @return the branch
+     */
+    public Branch getLocation() {
+        return location;
+    }
+
+    /**
+     * Gets the activity type.
+     * @author Arjun Deshpande
+     * @return D for deposit, W for withdrawal, I for interest or F for a fee
+     */
+    public char getType() {
+        return type;
+    }
+
+    /**
+     * Gets the amount of the activity.
+     * @author Arjun Deshpande
+     * @return the amount in cents
+     */
+    public long getAmount() {
+        return amount;
+    }
+
+    /**
+     * Checks if the activity was made at an ATM.
+     * @author Arjun Deshpande
+     * @return true if made at an ATM
+     */
+    public boolean isAtm() {
+        return atm;
+    }
+
+    /**
+     * Compares activities by date, so an account's history can be walked in order.
+     * @author Arjun Deshpande
+     * @param other the activity to compare with
+     * @return negative if earlier, positive if later, 0 if on the same date
+     */
+    @Override
+    public int compareTo(Activity other) {
+        return date.compareTo(other.date);
+    }//end override
+
+    /**
+     * Names the activity type for printing.
+     * @author Arjun Deshpande
+     * @return deposit, withdrawal, interest or fee
+     */
+    private String typeName() {
+        switch (type) {
+            case 'D': return "deposit";
+            case 'I': return "interest";
+            case 'F': return "fee";
+            default: return "withdrawal";
+        }
+    }
+
+    /**
+     * Returns a string representation of the activity.
+     * @author Arjun Deshpande
+     * @return e.g. "1/15/2024::EDISON[ATM]::deposit::$100.00"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(date).append("::").append(location.name());
+        if (atm) sb.append("[ATM]");
+        sb.append("::").append(typeName()).append("::$");
+        return Money.append(sb, amount).toString();
+    }//end override
+}//end class Activity
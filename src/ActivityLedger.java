@@ -0,0 +1,357 @@
+import java.io.PrintStream;
+/**
+ * The append-only transaction history of one account.
+ * Entries are stored column by column in primitive arrays (packed yyyymmdd date,
+ * branch ordinal, type byte with the ATM flag in the high bit, amount in cents)
+ * instead of one Activity object per entry, and are kept in date order.
+ * Every 32 entries a checkpoint holds the net of the entries so far, so the net up to
+ * a date is a binary search for the date plus at most 31 entries, however long the
+ * history, which is what balance-as-of queries need.
+ * <p>
+ * A snapshot freezes the entries it has to write and reads them later, while postings
+ * carry on. New entries go after the frozen ones; an older entry that would shift them
+ * first moves the ledger onto copies of its columns, leaving the frozen ones as they were.
+ * @author Arjun Deshpande
+ */
+public class ActivityLedger {
+    private static final int INITIAL_CAPACITY = 4;
+    private static final int ATM_FLAG = 0x80;
+    private static final int TYPE_MASK = 0x7F;
+    private static final int CHECKPOINT_EVERY = 32; //entries per checkpoint
+    private static final Branch[] BRANCHES = Branch.values();
+
+    private int[] dates = new int[INITIAL_CAPACITY]; //packed yyyymmdd
+    private byte[] locations = new byte[INITIAL_CAPACITY]; //Branch ordinal
+    private byte[] types = new byte[INITIAL_CAPACITY]; //'D', 'W', 'I' or 'F', ATM_FLAG if at an ATM
+    private long[] amounts = new long[INITIAL_CAPACITY]; //in cents
+    private int size;
+    private long[] checkpoints = new long[1]; //net of the first (k + 1) * CHECKPOINT_EVERY entries
+    private long net; //net of every entry: deposits and interest less withdrawals and fees
+    private int frozen = -1; //entries a snapshot being written still has to read, or -1
+    private ActivityLedger before; //those entries, set aside once an older entry was inserted among them
+
+    /**
+     * Creates an empty ledger.
+     * @author Arjun Deshpande
+     */
+    public ActivityLedger() {
+    }
+
+    /**
+     * Creates a read-only view of the first entries of a ledger, sharing its columns.
+     * @author Arjun Deshpande
+     * @param ledger the ledger
+     * @param size the number of entries in the view
+     */
+    private ActivityLedger(ActivityLedger ledger, int size) {
+        this.dates = ledger.dates;
+        this.locations = ledger.locations;
+        this.types = ledger.types;
+        this.amounts = ledger.amounts;
+        this.checkpoints = ledger.checkpoints;
+        this.size = size;
+        this.net = size == ledger.size ? ledger.net : ledger.netOf(size);
+    }
+
+    /**
+     * Records an activity. Entries dated on or after the last one are appended; an
+     * older entry is inserted after every entry on or before its date, so same-day
+     * entries keep the order they were posted in.
+     * @author Arjun Deshpande
+     * @param date the packed yyyymmdd date
+     * @param location the branch where it happened
+     * @param type D for deposit, W for withdrawal, I for interest or F for a fee
+     * @param amount the amount in cents
+     * @param atm true if it was made at an ATM
+     */
+    public void add(int date, Branch location, char type, long amount, boolean atm) {
+        if (size == dates.length) grow();
+        int at = size;
+        if (size > 0 && dates[size - 1] > date) {
+            at = upperBound(date);
+            if (at < frozen && before == null) { //keep the frozen entries where the snapshot will read them
+                before = new ActivityLedger(this, frozen);
+                dates = dates.clone();
+                locations = locations.clone();
+                types = types.clone();
+                amounts = amounts.clone();
+                checkpoints = checkpoints.clone();
+            }
+            System.arraycopy(dates, at, dates, at + 1, size - at);
+            System.arraycopy(locations, at, locations, at + 1, size - at);
+            System.arraycopy(types, at, types, at + 1, size - at);
+            System.arraycopy(amounts, at, amounts, at + 1, size - at);
+        }
+        dates[at] = date;
+        locations[at] = (byte) location.ordinal();
+        types[at] = (byte) (atm ? type | ATM_FLAG : type);
+        amounts[at] = amount;
+        size++;
+        net += signed(at);
+        if (at < size - 1) recheckpoint(at / CHECKPOINT_EVERY);
+        else if (size % CHECKPOINT_EVERY == 0) checkpoint(size / CHECKPOINT_EVERY - 1, net);
+    } //add
+
+    /**
+     * Freezes the entries so far for a snapshot. Caller holds the database's write
+     * lock, so nothing is being posted.
+     * @author Arjun Deshpande
+     */
+    void freeze() {
+        frozen = size;
+        before = null;
+    }
+
+    /**
+     * Ends the freeze, handing over the frozen entries. They never change again, so
+     * the snapshot reads them without a lock. Caller holds the account's balance lock.
+     * @author Arjun Deshpande
+     * @return a read-only view of the entries as they were when frozen
+     */
+    ActivityLedger thaw() {
+        ActivityLedger view = before != null ? before : new ActivityLedger(this, frozen < 0 ? size : frozen);
+        frozen = -1;
+        before = null;
+        return view;
+    }
+
+    /**
+     * Gets the signed amount of an entry.
+     * @author Arjun Deshpande
+     * @param i the entry index
+     * @return the amount, negative for a withdrawal or fee
+     */
+    private long signed(int i) {
+        char type = typeAt(i);
+        return type == 'W' || type == 'F' ? -amounts[i] : amounts[i];
+    }
+
+    /**
+     * Stores a checkpoint, growing the array if needed.
+     * @author Arjun Deshpande
+     * @param k the checkpoint index
+     * @param value the net of the first (k + 1) * CHECKPOINT_EVERY entries
+     */
+    private void checkpoint(int k, long value) {
+        if (k == checkpoints.length) {
+            long[] bigger = new long[checkpoints.length * 2];
+            System.arraycopy(checkpoints, 0, bigger, 0, checkpoints.length);
+            checkpoints = bigger;
+        }
+        checkpoints[k] = value;
+    }
+
+    /**
+     * Recomputes the checkpoints from a block on, after an older entry was inserted
+     * into it. Costs about as much as the insert's own copying.
+     * @author Arjun Deshpande
+     * @param block the block the entry went into
+     */
+    private void recheckpoint(int block) {
+        long running = block > 0 ? checkpoints[block - 1] : 0;
+        for (int i = block * CHECKPOINT_EVERY; i < size; i++) {
+            running += signed(i);
+            if ((i + 1) % CHECKPOINT_EVERY == 0) checkpoint((i + 1) / CHECKPOINT_EVERY - 1, running);
+        }
+    }
+
+    /**
+     * Gets the net of every entry.
+     * @author Arjun Deshpande
+     * @return deposits and interest less withdrawals and fees, in cents
+     */
+    public long net() {
+        return net;
+    }
+
+    /**
+     * Gets the net of the entries dated on or before a date: the nearest checkpoint,
+     * plus the entries after it.
+     * @author Arjun Deshpande
+     * @param date the packed yyyymmdd date
+     * @return deposits and interest less withdrawals and fees up to the date, in cents
+     */
+    public long netThrough(int date) {
+        return netOf(upperBound(date));
+    }
+
+    /**
+     * Gets the net of the first entries: the nearest checkpoint, plus the entries after it.
+     * @author Arjun Deshpande
+     * @param end the number of entries
+     * @return their net, in cents
+     */
+    private long netOf(int end) {
+        int k = end / CHECKPOINT_EVERY;
+        long running = k > 0 ? checkpoints[k - 1] : 0;
+        for (int i = k * CHECKPOINT_EVERY; i < end; i++) running += signed(i);
+        return running;
+    }
+
+    /**
+     * Records an activity.
+     * @author Arjun Deshpande
+     * @param activity the activity to record
+     */
+    public void add(Activity activity) {
+        add(activity.getDate().toInt(), activity.getLocation(), activity.getType(), activity.getAmount(), activity.isAtm());
+    }
+
+    /**
+     * Finds the first entry dated after the given date by binary search.
+     * @author Arjun Deshpande
+     * @param date the packed yyyymmdd date
+     * @return the index of the first entry with a later date, or size if none
+     */
+    public int upperBound(int date) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (dates[mid] <= date) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Doubles the capacity of every column.
+     * @author Arjun Deshpande
+     */
+    private void grow() {
+        int capacity = dates.length * 2;
+        int[] biggerDates = new int[capacity];
+        byte[] biggerLocations = new byte[capacity];
+        byte[] biggerTypes = new byte[capacity];
+        long[] biggerAmounts = new long[capacity];
+        System.arraycopy(dates, 0, biggerDates, 0, size);
+        System.arraycopy(locations, 0, biggerLocations, 0, size);
+        System.arraycopy(types, 0, biggerTypes, 0, size);
+        System.arraycopy(amounts, 0, biggerAmounts, 0, size);
+        dates = biggerDates;
+        locations = biggerLocations;
+        types = biggerTypes;
+        amounts = biggerAmounts;
+    } //grow
+
+    /**
+     * Gets the number of entries.
+     * @author Arjun Deshpande
+     * @return the number of recorded activities
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the packed date of an entry.
+     * @author Arjun Deshpande
+     * @param i the entry index
+     * @return the packed yyyymmdd date
+     */
+    public int dateAt(int i) {
+        return dates[i];
+    }
+
+    /**
+     * Gets the type of an entry.
+     * @author Arjun Deshpande
+     * @param i the entry index
+     * @return D for deposit, W for withdrawal, I for interest or F for a fee
+     */
+    public char typeAt(int i) {
+        return (char) (types[i] & TYPE_MASK);
+    }
+
+    /**
+     * Gets the amount of an entry.
+     * @author Arjun Deshpande
+     * @param i the entry index
+     * @return the amount in cents
+     */
+    public long amountAt(int i) {
+        return amounts[i];
+    }
+
+    /**
+     * Checks if an entry was made at an ATM.
+     * @author Arjun Deshpande
+     * @param i the entry index
+     * @return true if made at an ATM
+     */
+    public boolean atmAt(int i) {
+        return (types[i] & ATM_FLAG) != 0;
+    }
+
+    /**
+     * Gets the branch of an entry.
+     * @author Arjun Deshpande
+     * @param i the entry index
+     * @return the branch where it happened
+     */
+    public Branch locationAt(int i) {
+        return BRANCHES[locations[i]];
+    }
+
+    /**
+     * Builds the Activity object for an entry.
+     * @author Arjun Deshpande
+     * @param i the entry index, 0 being the oldest
+     * @return the activity
+     */
+    public Activity get(int i) {
+        return new Activity(Date.fromInt(dates[i]), locationAt(i), typeAt(i), amounts[i], atmAt(i));
+    }
+
+    /**
+     * Prints the activities oldest first.
+     * @author Arjun Deshpande
+     * @param out the stream to print to
+     */
+    public void print(PrintStream out) {
+        for (int i = 0; i < size; i++) out.println(get(i));
+    }
+
+    /**
+     * Testbed main method: posts entries with dates in and out of order, checks
+     * netThrough against a full replay for every date, and times both.
+     * @author Arjun Deshpande
+     * @param args the number of entries (default 100000)
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        java.util.Random random = new java.util.Random(21);
+        ActivityLedger ledger = new ActivityLedger();
+        char[] kinds = {'D', 'W', 'I', 'F'};
+        for (int i = 0; i < n; i++) {
+            int day = i / 40 + (random.nextInt(20) == 0 ? -random.nextInt(30) : 0); //about 1 in 20 posted late
+            int date = 20000101 + Math.max(0, day) / 28 % 12 * 100 + Math.max(0, day) % 28 + Math.max(0, day) / 336 * 10000;
+            ledger.add(date, BRANCHES[i % BRANCHES.length], kinds[random.nextInt(4)], 1 + random.nextInt(100_000), false);
+        }
+        boolean ok = true;
+        int probes = 0;
+        for (int i = 0; i < ledger.size(); i += 97, probes++) {
+            int date = ledger.dateAt(i);
+            long replay = 0;
+            for (int j = 0; j < ledger.size() && ledger.dateAt(j) <= date; j++) replay += ledger.signed(j);
+            ok &= replay == ledger.netThrough(date);
+        }
+        long total = 0;
+        for (int j = 0; j < ledger.size(); j++) total += ledger.signed(j);
+        ok &= total == ledger.net();
+        System.out.println(probes + " as-of dates over " + n + " entries checked against a full replay: " + (ok ? "PASS" : "FAIL"));
+        long sink = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 100_000; i++) sink += ledger.netThrough(ledger.dateAt((i * 7919) % n));
+            long checkpointed = (System.nanoTime() - start) / 100_000;
+            start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                int date = ledger.dateAt((i * 7919) % n);
+                for (int j = 0; j < ledger.size() && ledger.dateAt(j) <= date; j++) sink += ledger.signed(j);
+            }
+            long replayed = (System.nanoTime() - start) / 100;
+            System.out.printf("round %d: netThrough %d ns, replay from the start %d ns (sink %d)%n", round, checkpointed, replayed, sink);
+        }
+    }//testbed
+}//end class ActivityLedger
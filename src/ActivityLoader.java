@@ -0,0 +1,355 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bulk loader for ATM activity files, one activity per line:
+ * <pre>D,100010001,12/15/2024,edison,100.00</pre>
+ * (type, account number, date, branch, amount). The file is memory-mapped in chunks
+ * that are parsed in parallel on a fork-join pool without touching the database. The
+ * parsed chunks are then applied one at a time in file order on the calling thread, so
+ * the final balances and the money market downgrades come out the same as if the file
+ * had been processed line by line.
+ * @author Arjun Deshpande
+ */
+public class ActivityLoader {
+    private static final int CHUNK_SIZE = 8 << 20; //bytes of file per parse task
+    private static final int MAX_LINE = 4096; //a chunk may read this far past its end to finish its last line
+    private static final Branch[] BRANCHES = Branch.values();
+
+    private final AccountDatabase database;
+    private final ForkJoinPool pool;
+    private long deposits; //applied deposits
+    private long withdrawals; //applied withdrawals
+    private long rejected; //withdrawals refused for insufficient funds
+    private long blocked; //withdrawals refused by the velocity guard
+    private long overflowed; //deposits refused because the balance would overflow
+    private long downgraded; //money market accounts downgraded to savings
+    private long notDowngraded; //money market accounts left under the minimum, no savings number left
+    private long unknown; //activities for accounts that do not exist
+    private long invalid; //lines that could not be parsed, or were longer than MAX_LINE
+
+    /**
+     * Creates a loader that applies activities to the given database.
+     * @author Arjun Deshpande
+     * @param database the database to apply activities to
+     */
+    public ActivityLoader(AccountDatabase database) {
+        this(database, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a loader that parses on the given pool.
+     * @author Arjun Deshpande
+     * @param database the database to apply activities to
+     * @param pool the pool to parse chunks on
+     */
+    public ActivityLoader(AccountDatabase database, ForkJoinPool pool) {
+        this.database = database;
+        this.pool = pool;
+    }
+
+    /**
+     * The parsed activities of one chunk of the file, stored in columns.
+     * @author Arjun Deshpande
+     */
+    @SuppressWarnings("serial") //runs in the fork/join pool only, never serialized
+    private static class Chunk extends RecursiveAction {
+        final FileChannel channel;
+        final long start; //first byte of the chunk
+        final long end; //lines starting before this byte belong to the chunk
+        int[] numbers = new int[1024]; //packed account numbers
+        byte[] types = new byte[1024];
+        int[] dates = new int[1024];
+        byte[] locations = new byte[1024];
+        long[] amounts = new long[1024];
+        int size;
+        long invalid;
+        IOException error;
+        private final int[] commas = new int[4]; //positions of the commas in the current line
+
+        Chunk(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Maps the chunk and parses every line that starts inside it.
+         * @author Arjun Deshpande
+         */
+        @Override
+        protected void compute() {
+            try {
+                long mapStart = start > 0 ? start - 1 : 0;
+                long fileSize = channel.size();
+                long mapEnd = Math.min(fileSize, end + MAX_LINE);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+                int limit = (int) (mapEnd - mapStart);
+                int owned = (int) (end - mapStart);
+                int i = 0;
+                if (start > 0) { //skip to the first line starting in the chunk, the one in progress belongs to the previous chunk
+                    while (i < limit && buffer.get(i) != '\n') i++;
+                    i++;
+                }
+                byte[] line = new byte[MAX_LINE];
+                char[] chars = new char[MAX_LINE];
+                while (i < owned && i < limit) {
+                    int len = 0;
+                    boolean overlong = false;
+                    while (i < limit && buffer.get(i) != '\n') {
+                        if (len < MAX_LINE) line[len++] = buffer.get(i);
+                        else overlong = true;
+                        i++;
+                    }
+                    if (i == limit && mapEnd < fileSize) overlong = true; //it runs on past the mapped bytes
+                    i++;
+                    if (overlong) { //counted rather than parsed from its first MAX_LINE bytes
+                        invalid++;
+                        continue;
+                    }
+                    if (len > 0 && line[len - 1] == '\r') len--;
+                    if (len > 0) parseLine(line, len, chars);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        } //compute
+
+        /**
+         * Parses one line into the columns.
+         * @author Arjun Deshpande
+         * @param line the bytes of the line
+         * @param len the length of the line
+         * @param chars scratch space for the amount
+         */
+        private void parseLine(byte[] line, int len, char[] chars) {
+            int found = 0;
+            for (int k = 0; k < len && found < 4; k++) {
+                if (line[k] == ',') commas[found++] = k;
+            }
+            if (found < 4 || commas[0] != 1 || (line[0] != 'D' && line[0] != 'W')) {
+                invalid++;
+                return;
+            }
+            int date = parseDate(line, commas[1] + 1, commas[2]);
+            int branch = parseBranch(line, commas[2] + 1, commas[3]);
+            for (int k = commas[3] + 1; k < len; k++) chars[k - commas[3] - 1] = (char) line[k];
+            long amount = Money.parseCents(chars, 0, len - commas[3] - 1);
+            for (int k = commas[0] + 1; k < commas[1]; k++) chars[k - commas[0] - 1] = (char) line[k];
+            int number = AccountNumbers.parse(chars, 0, commas[1] - commas[0] - 1);
+            if (date < 0 || branch < 0 || amount == Money.INVALID || amount <= 0 || number == AccountNumbers.INVALID) {
+                invalid++;
+                return;
+            }
+            if (size == types.length) grow();
+            numbers[size] = number;
+            types[size] = line[0];
+            dates[size] = date;
+            locations[size] = (byte) branch;
+            amounts[size] = amount;
+            size++;
+        } //parseLine
+
+        /**
+         * Doubles the capacity of every column.
+         * @author Arjun Deshpande
+         */
+        private void grow() {
+            int capacity = types.length * 2;
+            int[] biggerNumbers = new int[capacity];
+            byte[] biggerTypes = new byte[capacity];
+            int[] biggerDates = new int[capacity];
+            byte[] biggerLocations = new byte[capacity];
+            long[] biggerAmounts = new long[capacity];
+            System.arraycopy(numbers, 0, biggerNumbers, 0, size);
+            System.arraycopy(types, 0, biggerTypes, 0, size);
+            System.arraycopy(dates, 0, biggerDates, 0, size);
+            System.arraycopy(locations, 0, biggerLocations, 0, size);
+            System.arraycopy(amounts, 0, biggerAmounts, 0, size);
+            numbers = biggerNumbers;
+            types = biggerTypes;
+            dates = biggerDates;
+            locations = biggerLocations;
+            amounts = biggerAmounts;
+        }
+    }//end klasse
+
+    /**
+     * Parses an mm/dd/yyyy field into a packed yyyymmdd int.
+     * @author Arjun Deshpande
+     * @param line the bytes of the line
+     * @param from the first byte of the field
+     * @param to the byte after the field
+     * @return the packed date, or -1 if the field is not a date
+     */
+    private static int parseDate(byte[] line, int from, int to) {
+        int month = 0;
+        int day = 0;
+        int year = 0;
+        int part = 0;
+        int digits = 0;
+        for (int k = from; k < to; k++) {
+            byte b = line[k];
+            if (b == '/') {
+                if (digits == 0 || ++part > 2) return -1;
+                digits = 0;
+            } else if (b >= '0' && b <= '9' && digits < 4) {
+                if (part == 0) month = month * 10 + (b - '0');
+                else if (part == 1) day = day * 10 + (b - '0');
+                else year = year * 10 + (b - '0');
+                digits++;
+            } else {
+                return -1;
+            }
+        }
+        if (part != 2 || digits == 0) return -1;
+        if (!Date.isCalendarDate(month, day, year)) return -1;
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * Matches a branch field against the branch names, ignoring case.
+     * @author Arjun Deshpande
+     * @param line the bytes of the line
+     * @param from the first byte of the field
+     * @param to the byte after the field
+     * @return the branch ordinal, or -1 if no branch matches
+     */
+    private static int parseBranch(byte[] line, int from, int to) {
+        for (Branch branch : BRANCHES) {
+            String name = branch.name();
+            if (name.length() != to - from) continue;
+            boolean same = true;
+            for (int k = 0; k < name.length() && same; k++) {
+                same = Character.toUpperCase((char) line[from + k]) == name.charAt(k);
+            }
+            if (same) return branch.ordinal();
+        }
+        return -1;
+    }
+
+    /**
+     * Loads an activity file. Chunks are parsed ahead on the pool, at most two per
+     * worker at a time, while earlier chunks are applied in order on this thread.
+     * @author Arjun Deshpande
+     * @param path the activity file
+     * @throws IOException if the file cannot be read
+     */
+    public void load(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            int window = Math.max(2, pool.getParallelism() * 2);
+            Chunk[] inFlight = new Chunk[window];
+            int submitted = 0;
+            for (int c = 0; c < chunks; c++) {
+                while (submitted < chunks && submitted < c + window) {
+                    long start = (long) submitted * CHUNK_SIZE;
+                    Chunk chunk = new Chunk(channel, start, Math.min(size, start + CHUNK_SIZE));
+                    inFlight[submitted % window] = chunk;
+                    pool.execute(chunk);
+                    submitted++;
+                }
+                Chunk chunk = inFlight[c % window];
+                inFlight[c % window] = null;
+                chunk.join();
+                if (chunk.error != null) throw chunk.error;
+                apply(chunk);
+            }
+        }
+    } //load
+
+    /**
+     * Applies the activities of a parsed chunk in file order.
+     * @author Arjun Deshpande
+     * @param chunk the parsed chunk
+     */
+    private void apply(Chunk chunk) {
+        invalid += chunk.invalid;
+        for (int i = 0; i < chunk.size; i++) {
+            Account account = database.numFind(chunk.numbers[i]);
+            if (account == null) {
+                unknown++;
+                continue;
+            }
+            Branch location = BRANCHES[chunk.locations[i]];
+            if (chunk.types[i] == 'D') {
+                if (database.deposit(account, chunk.amounts[i], chunk.dates[i], location, true) == AccountDatabase.OVERFLOW) overflowed++;
+                else deposits++;
+                continue;
+            }
+            long balance = database.withdraw(account, chunk.amounts[i], chunk.dates[i], location, true);
+            if (balance >= 0) {
+                withdrawals++;
+                int downgrade = database.downgradeIfBelowMinimum(account);
+                if (downgrade == AccountDatabase.DOWNGRADED) downgraded++;
+                else if (downgrade == AccountDatabase.NO_SAVINGS_NUMBER) notDowngraded++;
+            } else if (balance == AccountDatabase.BLOCKED) {
+                blocked++;
+            } else {
+                rejected++;
+            }
+        }
+    }
+
+    /**
+     * Returns a one-line summary of what was loaded.
+     * @author Arjun Deshpande
+     * @return the summary
+     */
+    @Override
+    public String toString() {
+        return deposits + " deposits and " + withdrawals + " withdrawals applied, " + rejected
+                + " withdrawals refused for insufficient funds, "
+                + (blocked > 0 ? blocked + " withdrawals blocked by the velocity guard, " : "")
+                + (overflowed > 0 ? overflowed + " deposits refused because the balance would overflow, " : "") + downgraded + " accounts downgraded to Savings, "
+                + (notDowngraded > 0 ? notDowngraded + " under the minimum not downgraded - no savings numbers left, " : "")
+                + unknown + " activities for unknown accounts, " + invalid + " invalid lines.";
+    }
+
+    /**
+     * Testbed main method measuring load throughput on a generated activity file.
+     * @author Arjun Deshpande
+     * @param args the number of lines to generate (default 5 million) and of accounts
+     *             (default 10000, at most AccountNumbers.CAPACITY)
+     * @throws IOException if the temporary file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int accounts = Math.min(args.length > 1 ? Integer.parseInt(args[1]) : 10_000, AccountNumbers.CAPACITY);
+        AccountDatabase database = new AccountDatabase();
+        String[] numbers = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            AccountNumber number = AccountNumbers.unpack(AccountNumbers.distinct(i));
+            numbers[i] = number.toString();
+            database.add(new Account(number, new Profile("First" + i, "Last" + i, new Date(1, 1, 1990)), 500000));
+        }
+        Path file = Files.createTempFile("activities", ".txt");
+        try (java.io.BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("D," + numbers[0] + ",1/1/2024,edison,1." + "0".repeat(MAX_LINE) + "\n"); //too long: invalid, not $1.00
+            for (int i = 0; i < lines; i++) {
+                out.write((i % 3 == 0 ? "W," : "D,") + numbers[(int) ((i * 7919L) % accounts)] + ","
+                        + (1 + i % 12) + "/" + (1 + i % 28) + "/2024," + BRANCHES[i % BRANCHES.length].name().toLowerCase()
+                        + "," + (1 + i % 500) + "." + (i % 100) + "\n");
+            }
+        }
+        long bytes = Files.size(file);
+        ActivityLoader loader = new ActivityLoader(database);
+        long start = System.nanoTime();
+        loader.load(file.toString());
+        long elapsed = System.nanoTime() - start;
+        Files.delete(file);
+        System.out.println(loader);
+        System.out.println("overlong line: " + (loader.invalid == 1 ? "PASS" : "FAIL"));
+        System.out.printf("%d lines (%d MB) in %d ms: %d lines/sec, %d MB/sec on %d workers%n", lines, bytes >> 20,
+                elapsed / 1_000_000, lines * 1_000_000_000L / elapsed, (bytes >> 20) * 1_000_000_000L / elapsed,
+                loader.pool.getParallelism());
+    }//testbed
+}//end class ActivityLoader
@@ -0,0 +1,370 @@
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+/**
+ * Running totals of the open accounts, kept by AccountDatabase on every open, close,
+ * posting and downgrade, so "how much is held at EDISON" or "how many money market
+ * accounts are there" is answered without scanning the book. There is one cell per
+ * branch and type, holding the number of accounts, their total balance, and a
+ * log-linear histogram of their balances; a branch or a type is the sum of its cells,
+ * a fixed amount of work however big the book is. Every update is a few atomic adds,
+ * with no locks, so summaries can be read while postings are in flight. The smallest
+ * and largest balances cannot be kept exactly at that cost once the account holding
+ * one of them moves, so they are reported as the bounds of their histogram buckets:
+ * within 1/64 (1.6%), and exact below $0.64.
+ * @author Arjun Deshpande
+ */
+public class Aggregates {
+    private static final Branch[] BRANCHES = Branch.values();
+    private static final AccountType[] TYPES = AccountType.values();
+    private static final int CELLS = BRANCHES.length * TYPES.length;
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; //per power of 2
+    private static final int GROUPS = 64 - SUB_BITS + 1; //one for the small values, then one per power of 2
+    private static final int BUCKETS = GROUPS * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[CELLS];
+    private final LongAdder[] totals = new LongAdder[CELLS];
+    private final AtomicLongArray buckets = new AtomicLongArray(CELLS * BUCKETS); //accounts per balance bucket
+    private final AtomicLongArray groups = new AtomicLongArray(CELLS * GROUPS); //accounts per power of 2, to skip empty buckets
+
+    /**
+     * Creates empty aggregates.
+     * @author Arjun Deshpande
+     */
+    public Aggregates() {
+        for (int i = 0; i < CELLS; i++) {
+            counts[i] = new LongAdder();
+            totals[i] = new LongAdder();
+        }
+    }//end constructor
+
+    /**
+     * Finds the cell of a branch and type.
+     * @author Arjun Deshpande
+     * @param branch the branch
+     * @param type the account type
+     * @return the cell index
+     */
+    private static int cell(Branch branch, AccountType type) {
+        return branch.ordinal() * TYPES.length + type.ordinal();
+    }
+
+    /**
+     * Finds the bucket of a balance.
+     * @author Arjun Deshpande
+     * @param balance the balance in cents, not negative
+     * @return the bucket index
+     */
+    private static int bucket(long balance) {
+        if (balance < SUB_BUCKETS) return (int) balance;
+        int exponent = 63 - Long.numberOfLeadingZeros(balance);
+        int sub = (int) (balance >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the smallest balance that falls in a bucket.
+     * @author Arjun Deshpande
+     * @param bucket the bucket index
+     * @return the bucket's lowest balance
+     */
+    private static long lowest(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Gets the largest balance that falls in a bucket.
+     * @author Arjun Deshpande
+     * @param bucket the bucket index
+     * @return the bucket's highest balance
+     */
+    private static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        return lowest(bucket) + (1L << (bucket / SUB_BUCKETS - 1)) - 1;
+    }
+
+    /**
+     * Counts a balance in or out of a cell's histogram.
+     * @author Arjun Deshpande
+     * @param cell the cell
+     * @param balance the balance
+     * @param delta 1 to count it in, -1 to count it out
+     */
+    private void count(int cell, long balance, int delta) {
+        int bucket = bucket(Math.max(0, balance));
+        buckets.addAndGet(cell * BUCKETS + bucket, delta);
+        groups.addAndGet(cell * GROUPS + bucket / SUB_BUCKETS, delta);
+    }
+
+    /**
+     * Adds an opened account.
+     * @author Arjun Deshpande
+     * @param branch its branch
+     * @param type its type
+     * @param balance its balance
+     */
+    public void add(Branch branch, AccountType type, long balance) {
+        int cell = cell(branch, type);
+        counts[cell].increment();
+        totals[cell].add(balance);
+        count(cell, balance, 1);
+    }
+
+    /**
+     * Removes a closed account, or one about to change type.
+     * @author Arjun Deshpande
+     * @param branch its branch
+     * @param type its type
+     * @param balance its balance
+     */
+    public void remove(Branch branch, AccountType type, long balance) {
+        int cell = cell(branch, type);
+        counts[cell].decrement();
+        totals[cell].add(-balance);
+        count(cell, balance, -1);
+    }
+
+    /**
+     * Moves an account's balance after a posting.
+     * @author Arjun Deshpande
+     * @param branch its branch
+     * @param type its type
+     * @param before the balance before the posting
+     * @param after the balance after it
+     */
+    public void move(Branch branch, AccountType type, long before, long after) {
+        int cell = cell(branch, type);
+        totals[cell].add(after - before);
+        if (bucket(before) == bucket(after)) return;
+        count(cell, after, 1);
+        count(cell, before, -1);
+    }
+
+    /**
+     * Gets the number of open accounts of a branch and type.
+     * @author Arjun Deshpande
+     * @param branch the branch, or null for every branch
+     * @param type the type, or null for every type
+     * @return the number of accounts
+     */
+    public long count(Branch branch, AccountType type) {
+        long n = 0;
+        for (int cell = 0; cell < CELLS; cell++) if (selected(cell, branch, type)) n += counts[cell].sum();
+        return n;
+    }
+
+    /**
+     * Gets the total balance of the open accounts of a branch and type.
+     * @author Arjun Deshpande
+     * @param branch the branch, or null for every branch
+     * @param type the type, or null for every type
+     * @return the total, in cents
+     */
+    public long total(Branch branch, AccountType type) {
+        long sum = 0;
+        for (int cell = 0; cell < CELLS; cell++) if (selected(cell, branch, type)) sum += totals[cell].sum();
+        return sum;
+    }
+
+    /**
+     * Gets a lower bound of the smallest balance of a branch and type, within 1/64.
+     * @author Arjun Deshpande
+     * @param branch the branch, or null for every branch
+     * @param type the type, or null for every type
+     * @return the bound, in cents, or -1 if there are no accounts
+     */
+    public long lowestBalance(Branch branch, AccountType type) {
+        int found = -1;
+        for (int cell = 0; cell < CELLS; cell++) {
+            if (!selected(cell, branch, type)) continue;
+            for (int g = 0; g < GROUPS && (found < 0 || g <= found / SUB_BUCKETS); g++) {
+                if (groups.get(cell * GROUPS + g) <= 0) continue;
+                for (int b = g * SUB_BUCKETS; b < (g + 1) * SUB_BUCKETS && (found < 0 || b < found); b++) {
+                    if (buckets.get(cell * BUCKETS + b) > 0) {
+                        found = b;
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return found < 0 ? -1 : lowest(found);
+    }
+
+    /**
+     * Gets an upper bound of the largest balance of a branch and type, within 1/64.
+     * @author Arjun Deshpande
+     * @param branch the branch, or null for every branch
+     * @param type the type, or null for every type
+     * @return the bound, in cents, or -1 if there are no accounts
+     */
+    public long highestBalance(Branch branch, AccountType type) {
+        int found = -1;
+        for (int cell = 0; cell < CELLS; cell++) {
+            if (!selected(cell, branch, type)) continue;
+            for (int g = GROUPS - 1; g >= 0 && g >= found / SUB_BUCKETS; g--) {
+                if (groups.get(cell * GROUPS + g) <= 0) continue;
+                for (int b = (g + 1) * SUB_BUCKETS - 1; b >= g * SUB_BUCKETS && b > found; b--) {
+                    if (buckets.get(cell * BUCKETS + b) > 0) {
+                        found = b;
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return found < 0 ? -1 : highest(found);
+    }
+
+    /**
+     * Checks if a cell belongs to a branch and type.
+     * @author Arjun Deshpande
+     * @param cell the cell
+     * @param branch the branch, or null for any
+     * @param type the type, or null for any
+     * @return true if it does
+     */
+    private static boolean selected(int cell, Branch branch, AccountType type) {
+        return (branch == null || cell / TYPES.length == branch.ordinal())
+                && (type == null || cell % TYPES.length == type.ordinal());
+    }
+
+    /**
+     * Prints one summary line. The smallest and largest balances are histogram bucket
+     * bounds, so they are printed as "about".
+     * @author Arjun Deshpande
+     * @param out where to print
+     * @param indent the text before the name
+     * @param name the branch or type name
+     * @param branch the branch, or null for every branch
+     * @param type the type, or null for every type
+     */
+    private void printLine(PrintStream out, String indent, String name, Branch branch, AccountType type) {
+        long n = count(branch, type);
+        long total = total(branch, type);
+        StringBuilder line = new StringBuilder(96).append(indent).append(name).append(": ").append(n)
+                .append(n == 1 ? " account, total $" : " accounts, total $");
+        Money.append(line, total);
+        long low = n > 1 ? lowestBalance(branch, type) : -1; //one account's balance is the total
+        if (low >= 0) { //bucket bounds, not the exact extremes
+            Money.append(line.append(", balances about $"), low);
+            Money.append(line.append(" to $"), highestBalance(branch, type));
+        }
+        out.println(line);
+    }
+
+    /**
+     * Prints the summary of every branch, or of one, with each type under it.
+     * @author Arjun Deshpande
+     * @param out where to print
+     * @param only the branch to print, or null for all
+     */
+    public void printByBranch(PrintStream out, Branch only) {
+        out.println("*Account summary by branch.*");
+        for (Branch branch : BRANCHES) {
+            if (only != null && branch != only) continue;
+            printLine(out, "", branch.name(), branch, null);
+            for (AccountType type : TYPES) printLine(out, "  ", type.name(), branch, type);
+        }
+        if (only == null) printLine(out, "", "ALL", null, null);
+        out.println("*end of summary.*");
+    }
+
+    /**
+     * Prints the summary of every type, or of one, with each branch under it.
+     * @author Arjun Deshpande
+     * @param out where to print
+     * @param only the type to print, or null for all
+     */
+    public void printByType(PrintStream out, AccountType only) {
+        out.println("*Account summary by account type.*");
+        for (AccountType type : TYPES) {
+            if (only != null && type != only) continue;
+            printLine(out, "", type.name(), null, type);
+            for (Branch branch : BRANCHES) printLine(out, "  ", branch.name(), branch, type);
+        }
+        if (only == null) printLine(out, "", "ALL", null, null);
+        out.println("*end of summary.*");
+    }
+
+    /**
+     * Testbed main method: runs postings, downgrades and closes on a database from
+     * several threads, then checks every cell against a scan of the accounts, and
+     * times a summary against the scan it replaces.
+     * @author Arjun Deshpande
+     * @param args the number of accounts (default 40000; at most 10,000 per branch and type)
+     * @throws Exception if a worker fails
+     */
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 40_000;
+        AccountDatabase db = new AccountDatabase();
+        Account[] book = new Account[n];
+        for (int i = 0; i < n; i++) {
+            Branch branch = BRANCHES[i % BRANCHES.length];
+            AccountType type = TYPES[i / BRANCHES.length % TYPES.length];
+            book[i] = new Account(db.newNumber(branch, type), new Profile("F" + i, "L" + i, new Date(1, 1, 1990)),
+                    100_000 + 1_000L * (i % 500));
+            db.add(book[i]);
+        }
+        Thread[] workers = new Thread[4];
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 200_000; i++) {
+                    Account account = book[random.nextInt(n)];
+                    long amount = 1 + random.nextInt(150_000);
+                    if (random.nextBoolean()) db.deposit(account, amount, 20240101, Branch.EDISON, false);
+                    else if (db.withdraw(account, amount, 20240101, Branch.EDISON, false) >= 0) db.downgradeIfBelowMinimum(account); //the result does not change the totals
+                }
+            });
+            workers[t].start();
+        }
+        for (int i = 0; i < n; i += 97) db.remove(book[i]);
+        for (Thread worker : workers) worker.join();
+        Aggregates aggregates = db.getAggregates();
+        boolean ok = true;
+        for (Branch branch : BRANCHES) {
+            for (AccountType type : TYPES) {
+                long count = 0;
+                long total = 0;
+                long min = Long.MAX_VALUE;
+                long max = -1;
+                for (Account account : book) {
+                    if (db.numFind(account.getPackedNumber()) != account || account.getNumber().getBranch() != branch || account.getType() != type) continue;
+                    count++;
+                    total += account.getBalance();
+                    min = Math.min(min, account.getBalance());
+                    max = Math.max(max, account.getBalance());
+                }
+                long low = aggregates.lowestBalance(branch, type);
+                long high = aggregates.highestBalance(branch, type);
+                boolean same = count == aggregates.count(branch, type) && total == aggregates.total(branch, type)
+                        && (count == 0 ? low < 0 : low <= min && min - low <= min / SUB_BUCKETS && high >= max && high - max <= max / SUB_BUCKETS);
+                if (!same) System.out.println(branch + " " + type + ": scan " + count + " $" + Money.format(total)
+                        + " " + min + ".." + max + ", aggregates " + aggregates.count(branch, type) + " $"
+                        + Money.format(aggregates.total(branch, type)) + " " + low + ".." + high);
+                ok &= same;
+            }
+        }
+        System.out.println("aggregates after concurrent postings, downgrades and closes: " + (ok ? "PASS" : "FAIL"));
+        PrintStream discard = new PrintStream(java.io.OutputStream.nullOutputStream());
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int r = 0; r < 1000; r++) aggregates.printByBranch(discard, null);
+            long summary = (System.nanoTime() - start) / 1000;
+            start = System.nanoTime();
+            long sink = 0;
+            for (int r = 0; r < 10; r++) {
+                for (Account account : book) if (account.getNumber().getBranch() == Branch.EDISON) sink += account.getBalance();
+            }
+            long scan = (System.nanoTime() - start) / 10;
+            System.out.printf("round %d: full summary %.1f us, one branch total by scan %.1f us (%d accounts, sink %d)%n",
+                    round, summary / 1e3, scan / 1e3, n, sink);
+        }
+        aggregates.printByBranch(System.out, Branch.EDISON);
+    }//testbed
+}//end class Aggregates
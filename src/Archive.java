@@ -1,40 +1,395 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 /**
- This class implements a linked list data structure to hold a list of closed accounts.
+ This class holds the closed accounts, indexed by account number and by holder.
+ Every closed account gets a sequence number in closing order. The most recent ones
+ stay in memory; when too many pile up, the oldest half is written to an append-only
+ segment file in the same encoding as the snapshots, and only its file offset is kept.
+ The indexes map a packed account number or a holder hash to sequence numbers in
+ primitive arrays, so each closed account costs heap for its two index entries and its
+ segment offset, about 30 to 50 bytes depending on how full the tables are, instead of
+ the account, its holder and its ledger. That part is not spilled: heap use still
+ grows with every account ever closed, about 30 MB per million.
  @author Arjun Deshpande
  */
 public class Archive {
-    private AccountNode first; //the head node of the linked list
+    private static final int DEFAULT_MEMORY_LIMIT = 4096; //closed accounts kept in memory
+    private static final int BLOCK_SIZE = 1 << 16; //segment read size when streaming
+
+    private final int memoryLimit;
+    private Account[] recent; //sequence numbers spilled..count-1, oldest first
+    private int spilled; //closed accounts moved to the segment file
+    private int count; //closed accounts in total
+    private long[] offsets = new long[16]; //segment offset of each spilled account
+    private long segmentSize;
+    private FileChannel segment; //opened on the first spill
+    private final SequenceIndex byNumber = new SequenceIndex();
+    private final SequenceIndex byHolder = new SequenceIndex();
 
     /**
-     Defines the Accountnode Class.
+     Defines an index from int keys to the sequence numbers of closed accounts.
+     Several accounts may share a key, so lookups return every match.
      @author Arjun Deshpande
      */
-    private class AccountNode {
-        Account account;
-        AccountNode next;
-        AccountNode(Account account) { this.account = account; }
+    private static class SequenceIndex {
+        private static final int EMPTY = -1;
+        int[] keys = new int[64];
+        int[] sequences = filled(64);
+        int size;
+
+        static int[] filled(int capacity) {
+            int[] empty = new int[capacity];
+            Arrays.fill(empty, EMPTY);
+            return empty;
+        }
+
+        void put(int key, int sequence) {
+            if (4 * (size + 1) > 3 * keys.length) resize();
+            int mask = keys.length - 1;
+            int i = spread(key) & mask;
+            while (sequences[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = key;
+            sequences[i] = sequence;
+            size++;
+        }
+
+        int[] get(int key) {
+            int mask = keys.length - 1;
+            int[] found = new int[4];
+            int n = 0;
+            for (int i = spread(key) & mask; sequences[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] != key) continue;
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = sequences[i];
+            }
+            int[] matches = Arrays.copyOf(found, n);
+            Arrays.sort(matches);
+            return matches;
+        }
+
+        void resize() {
+            int[] oldKeys = keys;
+            int[] oldSequences = sequences;
+            keys = new int[oldKeys.length * 2];
+            sequences = filled(oldKeys.length * 2);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldSequences[i] != EMPTY) put(oldKeys[i], oldSequences[i]);
+            }
+        }
+
+        static int spread(int h) {
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
     }//end klasse
 
     /**
-     * Adds to the front of the linked list.
+     * Creates an empty archive that keeps the default number of accounts in memory.
+     * @author Arjun Deshpande
+     */
+    public Archive() {
+        this(DEFAULT_MEMORY_LIMIT);
+    }
+
+    /**
+     * Creates an empty archive.
+     * @author Arjun Deshpande
+     * @param memoryLimit the closed accounts to keep in memory before spilling to disk
+     */
+    public Archive(int memoryLimit) {
+        this.memoryLimit = Math.max(2, memoryLimit);
+        this.recent = new Account[this.memoryLimit];
+    }
+
+    /**
+     * Adds a closed account as the most recent one, spilling the oldest half of the
+     * in-memory accounts to the segment file if memory is full.
+     * @author Arjun Deshpande
+     * @param account the closed account
+     * @throws IOException if the segment file cannot be written
+     */
+    public void add(Account account) throws IOException {
+        if (count - spilled == memoryLimit) spill(memoryLimit / 2);
+        recent[count - spilled] = account;
+        byNumber.put(account.getPackedNumber(), count);
+        byHolder.put(holderKey(account.getHolder()), count);
+        count++;
+    } //add
+
+    /**
+     * Writes the oldest in-memory accounts to the end of the segment file.
+     * @author Arjun Deshpande
+     * @param n the number of accounts to spill
+     * @throws IOException if the segment file cannot be written
+     */
+    private void spill(int n) throws IOException {
+        if (segment == null) {
+            Path path = Files.createTempFile("archive", ".seg");
+            segment = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        if (spilled + n > offsets.length) offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, spilled + n));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE * 4);
+        segment.position(segmentSize);
+        for (int i = 0; i < n; i++) {
+            offsets[spilled + i] = segment.position() + buffer.position();
+            buffer = TransactionLog.putAccount(segment, buffer, recent[i]);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) segment.write(buffer);
+        segmentSize = segment.position();
+        System.arraycopy(recent, n, recent, 0, count - spilled - n);
+        Arrays.fill(recent, count - spilled - n, memoryLimit, null);
+        spilled += n;
+    } //spill
+
+    /**
+     * Gets a closed account by sequence number, reading it back from disk if it was spilled.
+     * @author Arjun Deshpande
+     * @param sequence the sequence number
+     * @return the closed account
+     * @throws IOException if the segment file cannot be read
+     */
+    private Account get(int sequence) throws IOException {
+        if (sequence >= spilled) return recent[sequence - spilled];
+        long start = offsets[sequence];
+        long end = sequence + 1 < spilled ? offsets[sequence + 1] : segmentSize;
+        ByteBuffer record = ByteBuffer.allocate((int) (end - start));
+        while (record.hasRemaining()) {
+            if (segment.read(record, start + record.position()) < 0) throw new IOException("archive segment is truncated");
+        }
+        record.flip();
+        return TransactionLog.getAccount(record);
+    }
+
+    /**
+     * Hashes a holder the same way AccountDatabase does, with ProfileTable.hash: names
+     * ignoring case, and the date of birth, without building a string.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @return the index key
+     */
+    private static int holderKey(Profile holder) {
+        return ProfileTable.hash(holder);
+    }
+
+    /**
+     * Finds the most recently closed account with the given number.
+     * @author Arjun Deshpande
+     * @param number the account number
+     * @return the closed account, or null if no such account was closed
+     * @throws IOException if the segment file cannot be read
+     */
+    public Account find(AccountNumber number) throws IOException {
+        int[] matches = byNumber.get(AccountNumbers.pack(number));
+        return matches.length == 0 ? null : get(matches[matches.length - 1]);
+    }
+
+    /**
+     * Finds every closed account of a holder.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @return the closed accounts, most recently closed first
+     * @throws IOException if the segment file cannot be read
+     */
+    public Account[] findByHolder(Profile holder) throws IOException {
+        int[] matches = byHolder.get(holderKey(holder));
+        Account[] found = new Account[matches.length];
+        int n = 0;
+        for (int i = matches.length - 1; i >= 0; i--) {
+            Account account = get(matches[i]);
+            if (account.getHolder().equals(holder)) found[n++] = account; //skip hash collisions
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Checks if the archive has no closed accounts.
+     * @author Arjun Deshpande
+     * @return true if no account has been closed
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Gets the number of closed accounts.
+     * @author Arjun Deshpande
+     * @return the number of closed accounts, in memory and on disk
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets the number of closed accounts held in memory.
+     * @author Arjun Deshpande
+     * @return the closed accounts not spilled to disk
+     */
+    public int inMemory() {
+        return count - spilled;
+    }
+
+    /**
+     * Starts reading the closed accounts, most recently closed first.
      * @author Arjun Deshpande
-     * @param account
+     * @return a reader over the archive
      */
-    public void add(Account account) {
-        AccountNode newNode = new AccountNode(account);
-        newNode.next = first;
-        first = newNode;
-    } //add to front of linked list
+    public Reader newestFirst() {
+        return new Reader(true);
+    }
 
     /**
-     * Prints the linked list.
+     * Starts reading the closed accounts, oldest first.
      * @author Arjun Deshpande
+     * @return a reader over the archive
      */
-    public void print() {
-        for (AccountNode current = first; current != null; current = current.next) {
-            System.out.println(current.account);
+    public Reader oldestFirst() {
+        return new Reader(false);
+    }
+
+    /**
+     Streams the closed accounts in closing order or its reverse. Spilled accounts are
+     read from the segment file a block at a time, so only one block is in memory.
+     A reader sees the archive as it was when it was started: it keeps its own copy of
+     the in-memory accounts, and the segment file is only ever appended to, so accounts
+     closed meanwhile are not read and a snapshot can stream it without a lock.
+     @author Arjun Deshpande
+     */
+    public class Reader {
+        private final boolean newestFirst;
+        private final int end; //closed accounts when the reader started
+        private final int onDisk; //of those, the ones spilled to the segment file
+        private final Account[] inMemory; //the rest, oldest first
+        private final long[] starts; //segment offsets of the spilled ones
+        private final long diskSize; //segment bytes they take up
+        private final FileChannel file;
+        private int next; //the sequence number to return next
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private long blockStart; //segment offset of the block contents
+        private long blockEnd;
+
+        /**
+         * Creates a reader positioned at one end of the archive.
+         * @author Arjun Deshpande
+         * @param newestFirst true to read most recently closed first
+         */
+        private Reader(boolean newestFirst) {
+            this.newestFirst = newestFirst;
+            this.end = count;
+            this.onDisk = spilled;
+            this.inMemory = Arrays.copyOf(recent, count - spilled);
+            this.starts = offsets;
+            this.diskSize = segmentSize;
+            this.file = segment;
+            this.next = newestFirst ? count - 1 : 0;
+        }
+
+        /**
+         * Reads the next closed account.
+         * @author Arjun Deshpande
+         * @return the account, or null when every account has been read
+         * @throws IOException if the segment file cannot be read
+         */
+        public Account next() throws IOException {
+            if (next < 0 || next >= end) return null;
+            int sequence = newestFirst ? next-- : next++;
+            if (sequence >= onDisk) return inMemory[sequence - onDisk];
+            long start = starts[sequence];
+            long stop = sequence + 1 < onDisk ? starts[sequence + 1] : diskSize;
+            if (start < blockStart || stop > blockEnd) load(start, stop);
+            ByteBuffer record = block.duplicate();
+            record.position((int) (start - blockStart));
+            return TransactionLog.getAccount(record);
+        } //next
+
+        /**
+         * Reads the block of the segment file holding a record, extending in the reading
+         * direction so the following records come from the same block.
+         * @author Arjun Deshpande
+         * @param start the record's first byte
+         * @param stop the offset just past the record
+         * @throws IOException if the segment file cannot be read
+         */
+        private void load(long start, long stop) throws IOException {
+            int length = (int) Math.max(BLOCK_SIZE, stop - start);
+            if (block.capacity() < length) block = ByteBuffer.allocate(length);
+            blockStart = newestFirst ? Math.max(0, stop - length) : start;
+            blockEnd = Math.min(diskSize, blockStart + length);
+            block.clear().limit((int) (blockEnd - blockStart));
+            while (block.hasRemaining()) {
+                if (file.read(block, blockStart + block.position()) < 0) throw new IOException("archive segment is truncated");
+            }
+        }
+    }//end klasse
+
+    /**
+     * Prints the closed accounts, most recently closed first, streaming them from
+     * memory and then from disk.
+     * @author Arjun Deshpande
+     * @param out the stream to print to
+     * @throws IOException if the segment file cannot be read
+     */
+    public void print(PrintStream out) throws IOException {
+        ReportWriter writer = new ReportWriter(out);
+        Reader reader = newestFirst();
+        for (Account account = reader.next(); account != null; account = reader.next()) {
+            writer.write(account);
         }//end loup
+        writer.flush();
 
-    } //print the linked list
+    } //print the archive
+
+    /**
+     * Testbed main method: closes accounts into a small-memory archive, then times
+     * lookups by number and holder and a full streaming print.
+     * @author Arjun Deshpande
+     * @param args the number of closed accounts (default 200000) and the in-memory limit (default 4096)
+     * @throws IOException if the segment file fails
+     */
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int limit = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MEMORY_LIMIT;
+        Branch[] branches = Branch.values();
+        AccountType[] types = AccountType.values();
+        Archive archive = new Archive(limit);
+        Account[] closed = new Account[n];
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            closed[i] = new Account(new AccountNumber(branches[i % branches.length], types[i % types.length]),
+                    new Profile("First" + i % 50_000, "Last", new Date(1, 1, 1990)), 0);
+            closed[i].record(20240101, branches[0], 'D', i, false);
+            archive.add(closed[i]);
+        }
+        System.out.printf("archived %d accounts in %d ms, %d in memory, segment %d KB%n", n,
+                (System.nanoTime() - start) / 1_000_000, archive.inMemory(), archive.segmentSize / 1024);
+        start = System.nanoTime();
+        int wrong = 0;
+        for (int i = 0; i < n; i += 97) {
+            Account found = archive.find(closed[i].getNumber());
+            if (found == null || !found.getNumber().equals(closed[i].getNumber())) wrong++;
+            Account[] held = archive.findByHolder(closed[i].getHolder());
+            if (held.length == 0 || !held[0].getHolder().equals(closed[i].getHolder())) wrong++;
+        }
+        System.out.printf("%d lookups by number and holder in %d ms, %d wrong%n", 2 * (n / 97 + 1),
+                (System.nanoTime() - start) / 1_000_000, wrong);
+        start = System.nanoTime();
+        PrintStream sink = new PrintStream(java.io.OutputStream.nullOutputStream());
+        archive.print(sink);
+        Reader reader = archive.oldestFirst();
+        int inOrder = 0;
+        for (Account account = reader.next(); account != null; account = reader.next()) {
+            if (account.getActivities().amountAt(0) == inOrder) inOrder++;
+        }
+        System.out.printf("printed and re-read %d accounts in %d ms, %s%n", n,
+                (System.nanoTime() - start) / 1_000_000, inOrder == n ? "in order" : "OUT OF ORDER at " + inOrder);
+    }//testbed
 
-}//end klasse
\ No newline at end of file
+}//end klasse
@@ -0,0 +1,499 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+/**
+ * Runs a command file in three overlapping stages, each on its own thread:
+ * <ol>
+ * <li>parse: reads the file, tokenizes each line and checks its arguments (account
+ * numbers, amounts, types, branches, dates) into a CommandRecord, so every message
+ * that does not depend on the database is decided here;</li>
+ * <li>apply: the only thread that changes the database, taking the records in file
+ * order, so every balance and every result is the same as a serial run;</li>
+ * <li>output: waits for the group commit of what was applied, then formats the
+ * results in file order.</li>
+ * </ol>
+ * The records move between the stages through a CommandRing. Reports, month-end,
+ * activity files, S, the summaries and as-of queries are rare, so the apply stage runs them through
+ * TransactionManager as usual and passes their output on as text. The output matches
+ * TransactionManager.runBatch line for line. Latencies in the metrics are the time
+ * each command spends in the apply stage.
+ * @author Arjun Deshpande
+ */
+public class BatchPipeline {
+    private static final int RING_SIZE = 4096;
+    private static final int PARSE = 0;
+    private static final int APPLY = 1;
+    private static final int OUTPUT = 2;
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int OUTPUT_BUFFER = 1 << 16;
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final AccountDatabase database;
+    private final CommandRing ring = new CommandRing(RING_SIZE, 3);
+    private volatile Throwable failure; //the first stage failure
+    private volatile long lines; //lines parsed, set by the parse stage when it is done
+
+    /**
+     * Creates a pipeline on a database.
+     * @author Arjun Deshpande
+     * @param database the database the commands change
+     */
+    public BatchPipeline(AccountDatabase database) {
+        this.database = database;
+    }//end constructor
+
+    /**
+     * Runs a command file, stopping at Q or at the end of the file. The output stage
+     * runs on the calling thread.
+     * @author Arjun Deshpande
+     * @param path the command file
+     * @param sink where the output goes; it is flushed, not closed
+     * @return the number of lines processed
+     * @throws IOException if the file cannot be read or the log cannot commit
+     */
+    public long run(String path, OutputStream sink) throws IOException {
+        Thread parser = new Thread(() -> stage(() -> parse(path)), "pipeline-parse");
+        Thread applier = new Thread(() -> stage(this::apply), "pipeline-apply");
+        parser.setDaemon(true);
+        applier.setDaemon(true);
+        parser.start();
+        applier.start();
+        PrintStream out = new PrintStream(new BufferedOutputStream(sink, OUTPUT_BUFFER), false);
+        try {
+            output(out);
+        } catch (IOException | RuntimeException e) {
+            ring.halt();
+            throw e;
+        } finally {
+            out.flush();
+        }
+        try {
+            parser.join();
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return lines;
+    }//run
+
+    /**
+     * One stage of the pipeline.
+     * @author Arjun Deshpande
+     */
+    private interface Stage {
+        /**
+         * Runs the stage to the end of the input.
+         * @throws IOException if the stage fails
+         */
+        void run() throws IOException;
+    }//end interface
+
+    /**
+     * Runs a stage on its thread, halting the ring if it fails.
+     * @author Arjun Deshpande
+     * @param stage the stage
+     */
+    private void stage(Stage stage) {
+        try {
+            stage.run();
+        } catch (Throwable e) {
+            if (failure == null) failure = e;
+            ring.halt();
+        }
+    }
+
+    /**
+     * Parse stage: reads the file in blocks as runBatch does and fills one record per
+     * non-blank line, then an END record.
+     * @author Arjun Deshpande
+     * @param path the command file
+     * @throws IOException if the file cannot be read
+     */
+    private void parse(String path) throws IOException {
+        long sequence = 0;
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            byte[] bytes = block.array();
+            CommandTokenizer tokenizer = new CommandTokenizer();
+            boolean running = true;
+            long bound = 0;
+            int read;
+            while (running && (read = channel.read(block)) != -1) {
+                int lineStart = 0;
+                for (int i = 0; i < read && running; i++) {
+                    if (bytes[i] != '\n') continue;
+                    tokenizer.append(bytes, lineStart, i - lineStart);
+                    lineStart = i + 1;
+                    count++;
+                    tokenizer.tokenize();
+                    if (tokenizer.hasMoreTokens()) {
+                        if (sequence == bound && (bound = ring.await(PARSE, sequence)) < 0) return;
+                        CommandRecord record = ring.get(sequence);
+                        parseLine(tokenizer, record);
+                        running = record.op != CommandRecord.QUIT;
+                        ring.release(PARSE, ++sequence);
+                    }
+                    tokenizer.clear();
+                }
+                if (running) tokenizer.append(bytes, lineStart, read - lineStart);
+                block.clear();
+            }
+            if (running) {
+                tokenizer.tokenize();
+                if (tokenizer.hasMoreTokens()) {
+                    count++;
+                    if (sequence == bound && ring.await(PARSE, sequence) < 0) return;
+                    parseLine(tokenizer, ring.get(sequence));
+                    ring.release(PARSE, ++sequence);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (failure == null) failure = e; //before END goes out, so the output stage sees it
+            throw e;
+        } finally {
+            lines = count;
+            if (ring.await(PARSE, sequence) >= 0) {
+                CommandRecord end = ring.get(sequence);
+                end.clear();
+                end.op = CommandRecord.END;
+                ring.release(PARSE, sequence + 1);
+            }
+        }
+    }//parse
+
+    /**
+     * Parses and checks one line into a record, with the same checks, in the same
+     * order, as the TransactionManager command methods.
+     * @author Arjun Deshpande
+     * @param tokenizer the tokenizer holding the line
+     * @param record the record to fill
+     */
+    private static void parseLine(CommandTokenizer tokenizer, CommandRecord record) {
+        record.clear();
+        record.command = tokenizer.nextCommand();
+        try {
+            switch (record.command) {
+                case "O": parseOpen(tokenizer, record); break;
+                case "C": parseClose(tokenizer, record); break;
+                case "D": parseAmount(tokenizer, record, CommandRecord.DEPOSIT, " - deposit amount cannot be 0 or negative."); break;
+                case "W": parseAmount(tokenizer, record, CommandRecord.WITHDRAW, " withdrawal amount cannot be 0 or negative."); break;
+                case "Q": record.op = CommandRecord.QUIT; break;
+                case "P": case "PA": case "PB": case "PH": case "PT": case "PP": case "UB": case "A": case "S": case "SB": case "ST": case "BA": case "BB": case "VG":
+                    record.op = CommandRecord.DEFERRED;
+                    record.text = tokenizer.getLine();
+                    break;
+                default: text(record, "Invalid command.");
+            }
+        } catch (Exception e) {
+            text(record, "Processing error.");
+            record.failed = true;
+        }
+    }//parseLine
+
+    /**
+     * Makes a record a one-line message.
+     * @author Arjun Deshpande
+     * @param record the record
+     * @param message the message
+     */
+    private static void text(CommandRecord record, String message) {
+        record.op = CommandRecord.TEXT;
+        record.text = message + NEWLINE;
+    }
+
+    /**
+     * Parses O type branch first last dob amount.
+     * @author Arjun Deshpande
+     * @param tokenizer the tokenizer after the command
+     * @param record the record to fill
+     */
+    private static void parseOpen(CommandTokenizer tokenizer, CommandRecord record) {
+        if (tokenizer.countTokens() < 6) { //type, branch, first name, last name, date of birth, amount
+            text(record, "Invalid command!");
+            return;
+        }
+        String typeStr = tokenizer.nextToken();
+        AccountType type = AccountType.fromString(typeStr);
+        if (type == null) {
+            text(record, typeStr + " - invalid account type.");
+            return;
+        }
+        String branchStr = tokenizer.nextToken();
+        Branch branch = Branch.fromCity(branchStr);
+        if (branch == null) {
+            text(record, branchStr + " - invalid branch.");
+            return;
+        }
+        String firstName = tokenizer.nextToken();
+        String lastName = tokenizer.nextToken();
+        if (!TransactionLog.fits(firstName) || !TransactionLog.fits(lastName)) {
+            text(record, "Name is too long.");
+            return;
+        }
+        Date dob = Date.fromString(tokenizer.nextToken());
+        if (dob == null) {
+            record.op = CommandRecord.TEXT;
+            record.text = "";
+            return;
+        }
+        int validity = dob.validate();
+        if (validity != Date.VALID) {
+            text(record, dob.describe(validity));
+            return;
+        }
+        long initialDeposit = tokenizer.nextAmount();
+        if (initialDeposit == Money.INVALID) {
+            text(record, "For input string: \"" + tokenizer.lastToken() + "\" - not a valid amount.");
+            return;
+        }
+        if (initialDeposit <= 0) {
+            text(record, "Initial deposit cannot be 0 or negative.");
+            return;
+        }
+        record.op = CommandRecord.OPEN;
+        record.type = type;
+        record.branch = branch;
+        record.holder = new Profile(firstName, lastName, dob);
+        record.amount = initialDeposit;
+        record.first = firstName;
+        record.last = lastName;
+        record.extra = branchStr;
+        record.typed = typeStr;
+    }//parseOpen
+
+    /**
+     * Parses C number or C first last dob.
+     * @author Arjun Deshpande
+     * @param tokenizer the tokenizer after the command
+     * @param record the record to fill
+     */
+    private static void parseClose(CommandTokenizer tokenizer, CommandRecord record) {
+        boolean isNumber = tokenizer.nextIsDigits(AccountNumbers.DIGITS);
+        if (tokenizer.countTokens() < (isNumber ? 1 : 3)) { //a number, or first name, last name and date of birth
+            text(record, "Invalid command!");
+            return;
+        }
+        if (isNumber) {
+            int number = tokenizer.nextAccountNumber();
+            if (number == AccountNumbers.INVALID) {
+                text(record, tokenizer.lastToken() + " - invalid account number.");
+                return;
+            }
+            record.op = CommandRecord.CLOSE_NUMBER;
+            record.number = number;
+            return;
+        }
+        String firstName = tokenizer.nextToken();
+        String lastName = tokenizer.nextToken();
+        String dobStr = tokenizer.nextToken();
+        Date dob = Date.fromString(dobStr);
+        int validity = dob == null ? Date.VALID : dob.validate();
+        if (dob == null || validity != Date.VALID) {
+            String reason = dob == null ? "" : dob.describe(validity) + NEWLINE;
+            text(record, reason + "DOB invalid: " + dobStr + " not a valid calendar date!");
+            return;
+        }
+        record.op = CommandRecord.CLOSE_HOLDER;
+        record.holder = new Profile(firstName, lastName, dob);
+        record.first = firstName;
+        record.last = lastName;
+        record.extra = dobStr;
+    }//parseClose
+
+    /**
+     * Parses D or W number amount.
+     * @author Arjun Deshpande
+     * @param tokenizer the tokenizer after the command
+     * @param record the record to fill
+     * @param op DEPOSIT or WITHDRAW
+     * @param notPositive the message after the amount when it is 0 or negative
+     */
+    private static void parseAmount(CommandTokenizer tokenizer, CommandRecord record, byte op, String notPositive) {
+        if (tokenizer.countTokens() < 2) {
+            text(record, "Invalid command!");
+            return;
+        }
+        int number = tokenizer.nextAccountNumber();
+        long amount = tokenizer.nextAmount();
+        if (number == AccountNumbers.INVALID) {
+            text(record, "Invalid account number");
+            return;
+        }
+        if (amount == Money.INVALID) {
+            text(record, "For input string: \"" + tokenizer.lastToken() + "\" - not a valid amount.");
+            return;
+        }
+        if (amount <= 0) {
+            text(record, Money.toDollars(amount) + notPositive);
+            return;
+        }
+        record.op = op;
+        record.number = number;
+        record.amount = amount;
+    }//parseAmount
+
+    /**
+     * Apply stage: applies the records to the database in order until Q or the end.
+     * @author Arjun Deshpande
+     */
+    private void apply() {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream capture = new PrintStream(captured, false);
+        TransactionManager deferred = new TransactionManager(database, InputStream.nullInputStream(), capture);
+        CommandTokenizer tokenizer = new CommandTokenizer();
+        Metrics metrics = database.getMetrics();
+        long sequence = 0;
+        long bound = 0;
+        while (true) {
+            if (sequence == bound && (bound = ring.await(APPLY, sequence)) < 0) return;
+            CommandRecord record = ring.get(sequence);
+            byte op = record.op;
+            if (op == CommandRecord.DEFERRED) { //records its own metrics
+                tokenizer.setLine(record.text);
+                deferred.execute(tokenizer);
+                capture.flush();
+                record.text = captured.toString();
+                captured.reset();
+            } else if (op != CommandRecord.END) {
+                long start = System.nanoTime();
+                try {
+                    applyRecord(record);
+                } catch (Exception e) {
+                    text(record, "Processing error.");
+                    record.failed = true;
+                }
+                metrics.recordCommand(record.command, System.nanoTime() - start, record.failed);
+            }
+            ring.release(APPLY, ++sequence);
+            if (op == CommandRecord.QUIT || op == CommandRecord.END) return;
+        }
+    }//apply
+
+    /**
+     * Applies one parsed command to the database and stores its result.
+     * @author Arjun Deshpande
+     * @param record the record
+     * @throws IOException if the archive cannot spill to disk
+     */
+    private void applyRecord(CommandRecord record) throws IOException {
+        switch (record.op) {
+            case CommandRecord.DEPOSIT:
+                record.result = database.deposit(record.number, record.amount);
+                break;
+            case CommandRecord.WITHDRAW:
+                Account acc = database.numFind(record.number);
+                record.result = acc == null ? AccountDatabase.NOT_OPEN
+                        : database.withdraw(acc, record.amount, Date.today().toInt(), acc.getNumber().getBranch(), false);
+                record.downgraded = record.result >= 0 ? database.downgradeIfBelowMinimum(acc) : AccountDatabase.KEPT;
+                break;
+            case CommandRecord.OPEN:
+                if (database.containsHolderAndType(record.holder, record.type)) {
+                    record.result = CommandRecord.DUPLICATE;
+                    break;
+                }
+                AccountNumber number = database.newNumber(record.branch, record.type);
+                if (number == null) {
+                    record.result = CommandRecord.NO_NUMBERS;
+                    break;
+                }
+                boolean added = database.open(new Account(number, record.holder, record.amount), Date.today().toInt());
+                record.result = added ? CommandRecord.OPENED : CommandRecord.DUPLICATE;
+                record.number = AccountNumbers.pack(number); //the object changes if the account is downgraded later
+                break;
+            case CommandRecord.CLOSE_NUMBER:
+                Account account = database.numFind(record.number);
+                if (account != null) database.remove(account);
+                record.result = account == null ? 0 : 1;
+                break;
+            case CommandRecord.CLOSE_HOLDER:
+                record.result = database.removeByProfile(record.holder) ? 1 : 0;
+                break;
+            default: //TEXT and QUIT change nothing
+        }
+    }//applyRecord
+
+    /**
+     * Output stage: for each batch of applied records, waits once for their group
+     * commit, then writes their results.
+     * @author Arjun Deshpande
+     * @param out where the results are written
+     * @throws IOException if the log cannot commit, the input could not be read or a stage failed
+     */
+    private void output(PrintStream out) throws IOException {
+        out.println("Transaction Manager is running.");
+        long sequence = 0;
+        while (true) {
+            long bound = ring.await(OUTPUT, sequence);
+            if (bound < 0) break;
+            database.sync(); //nothing is shown before it is durable
+            for (; sequence < bound; sequence++) {
+                CommandRecord record = ring.get(sequence);
+                byte op = record.op;
+                write(record, out);
+                if (op == CommandRecord.QUIT || op == CommandRecord.END) {
+                    ring.release(OUTPUT, sequence + 1);
+                    if (op == CommandRecord.END && failure != null) break; //the input ended because reading it failed
+                    return;
+                }
+            }
+            if (sequence < bound) break; //left at END
+            ring.release(OUTPUT, sequence);
+        }
+        Throwable cause = failure;
+        if (cause instanceof IOException) throw (IOException) cause;
+        throw new IOException("pipeline stage failed", cause);
+    }//output
+
+    /**
+     * Writes the result of one record, with the messages of the TransactionManager
+     * command methods.
+     * @author Arjun Deshpande
+     * @param record the record
+     * @param out where the result is written
+     */
+    private static void write(CommandRecord record, PrintStream out) {
+        switch (record.op) {
+            case CommandRecord.DEPOSIT:
+                if (record.result == AccountDatabase.OVERFLOW) out.println("Deposit refused - the balance would be too large.");
+                else if (record.result != AccountDatabase.NOT_OPEN) out.println("Deposit successful. New balance: $" + Money.format(record.result));
+                else out.println("Account not found");
+                break;
+            case CommandRecord.WITHDRAW:
+                if (record.result == AccountDatabase.NOT_OPEN) out.println("Account not found");
+                else if (record.result == AccountDatabase.INSUFFICIENT_FUNDS) out.println("Insufficient funds");
+                else if (record.result == AccountDatabase.BLOCKED) out.println("Withdrawal blocked - unusual activity on this account.");
+                else out.println("Withdrawal successful. New balance: $" + Money.format(record.result) + "."
+                            + TransactionManager.downgradeStatus(record.downgraded));
+                break;
+            case CommandRecord.OPEN:
+                if (record.result == CommandRecord.OPENED) out.println(record.type.name() + " account " + AccountNumbers.unpack(record.number) + " has been opened.");
+                else if (record.result == CommandRecord.NO_NUMBERS) out.println(record.extra + " - no account numbers left at this branch.");
+                else out.println(record.first + " " + record.last + " already has a " + record.typed.toLowerCase() + " account.");
+                break;
+            case CommandRecord.CLOSE_NUMBER:
+                String identifier = AccountNumbers.unpack(record.number).toString();
+                if (record.result == 0) out.println(identifier + " account does not exist.");
+                else out.println(identifier + " is closed and moved to archive; balance set to 0.");
+                break;
+            case CommandRecord.CLOSE_HOLDER:
+                String holder = record.first + " " + record.last + " " + record.extra;
+                if (record.result == 0) out.println(holder + " does not have any accounts in the database.");
+                else out.println("All accounts for " + holder + " are closed and moved to archive; balance set to 0.");
+                break;
+            case CommandRecord.QUIT:
+                out.println("Transaction Manager is terminated.");
+                break;
+            case CommandRecord.END:
+                break;
+            default: out.print(record.text); //TEXT, DEFERRED, or a failed command
+        }
+    }//write
+}//end class BatchPipeline
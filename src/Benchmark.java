@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+/**
+ * Benchmarks the hot paths of the banking core in one run: date and account number
+ * parsing, database lookups, opens and closes, postings, the reports, and end-to-end
+ * batch throughput on generated command files. Each case is warmed up, then measured
+ * over several iterations, and reported as the mean time per operation with its
+ * standard deviation; results go into a sink so the JIT cannot drop the work.
+ * Results can be saved and compared with a saved baseline, which flags any case more
+ * than 10% slower, so a regression shows up before it ships.
+ * <p>
+ * This is not a JMH module because the source tree has no build to host one: there is
+ * no pom.xml or build.gradle, and AccountNumber, Profile, Branch and AccountType are
+ * supplied from outside it. The cases follow JMH's warmup, measure and sink steps, so
+ * each can become an @Benchmark method once the tree is built with Maven or Gradle.
+ * @author Arjun Deshpande
+ */
+public class Benchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final double REGRESSION = 1.10; //slower than the baseline by more than this flags the case
+    private static final int DATE = 20240115;
+
+    private static volatile long sink; //keeps the results alive
+
+    private final String filter; //only cases whose name contains it, or null for all
+    private final Map<String, Double> results = new LinkedHashMap<>(); //case -> ns per operation
+
+    /**
+     * One benchmarked operation.
+     * @author Arjun Deshpande
+     */
+    private interface Operation {
+        /**
+         * Runs the operation once.
+         * @param i the operation number, for picking inputs
+         * @return any value derived from the result
+         * @throws IOException if the operation writes and fails
+         */
+        long run(int i) throws IOException;
+    }//end interface
+
+    /**
+     * Creates a benchmark run.
+     * @author Arjun Deshpande
+     * @param filter only run cases whose name contains this, or null for all
+     */
+    public Benchmark(String filter) {
+        this.filter = filter;
+    }//end constructor
+
+    /**
+     * Measures one case: warm-up iterations, then measured ones, each running the
+     * operation a fixed number of times.
+     * @author Arjun Deshpande
+     * @param name the case name
+     * @param operations the operations per iteration
+     * @param operation the operation
+     * @throws IOException if the operation fails
+     */
+    private void measure(String name, int operations, Operation operation) throws IOException {
+        if (filter != null && !name.contains(filter)) return;
+        long value = 0;
+        for (int w = 0; w < WARMUP_ITERATIONS; w++) {
+            for (int i = 0; i < operations; i++) value += operation.run(i);
+        }
+        double[] nanos = new double[MEASURED_ITERATIONS];
+        for (int m = 0; m < MEASURED_ITERATIONS; m++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) value += operation.run(i);
+            nanos[m] = (double) (System.nanoTime() - start) / operations;
+        }
+        sink += value;
+        report(name, nanos);
+    }
+
+    /**
+     * Records and prints the mean and standard deviation of a case.
+     * @author Arjun Deshpande
+     * @param name the case name
+     * @param nanos the time per operation of each measured iteration
+     */
+    private void report(String name, double[] nanos) {
+        double mean = 0;
+        for (double x : nanos) mean += x;
+        mean /= nanos.length;
+        double variance = 0;
+        for (double x : nanos) variance += (x - mean) * (x - mean);
+        double deviation = nanos.length > 1 ? Math.sqrt(variance / (nanos.length - 1)) : 0;
+        results.put(name, mean);
+        System.out.printf("%-40s %14.1f ns/op  +- %.1f%n", name, mean, deviation);
+    }
+
+    /**
+     * Makes n accounts, with the distinct numbers from the first-th on.
+     * @author Arjun Deshpande
+     * @param first the index of the first number
+     * @param n the number of accounts; first + n is at most AccountNumbers.CAPACITY
+     * @return the accounts
+     */
+    private static Account[] book(int first, int n) {
+        Account[] accounts = new Account[n];
+        for (int i = 0; i < n; i++) {
+            AccountNumber number = AccountNumbers.unpack(AccountNumbers.distinct(first + i));
+            accounts[i] = new Account(number, new Profile("First" + i, "Last" + i % 997, new Date(1 + i % 12, 1 + i % 28, 1950 + i % 50)),
+                    500_000 + i);
+        }
+        return accounts;
+    }
+
+    /**
+     * Runs the parsing cases.
+     * @author Arjun Deshpande
+     * @throws IOException never
+     */
+    public void parsing() throws IOException {
+        String[] dates = new String[1024];
+        for (int i = 0; i < dates.length; i++) dates[i] = (1 + i % 12) + "/" + (1 + i % 31) + "/" + (1930 + i % 90);
+        Date[] parsed = new Date[dates.length];
+        for (int i = 0; i < dates.length; i++) parsed[i] = Date.fromString(dates[i]);
+        Account[] accounts = book(0, 1024);
+        String[] numbers = new String[accounts.length];
+        for (int i = 0; i < numbers.length; i++) numbers[i] = accounts[i].getNumber().toString();
+        measure("Date.fromString", 1_000_000, i -> Date.fromString(dates[i & 1023]).toInt());
+        measure("Date.validate", 1_000_000, i -> parsed[i & 1023].validate());
+        measure("AccountNumber.fromString", 1_000_000, i -> AccountNumber.fromString(numbers[i & 1023]) == null ? 0 : 1);
+    }
+
+    /**
+     * Runs the database cases on a book of n accounts, with numbers to spare for the
+     * churn case, so n is cut down to AccountNumbers.CAPACITY less those.
+     * @author Arjun Deshpande
+     * @param size the number of accounts
+     * @throws IOException if the archive cannot spill
+     */
+    public void database(int size) throws IOException {
+        final int EXTRA = 4096;
+        int n = Math.min(size, AccountNumbers.CAPACITY - EXTRA);
+        AccountDatabase database = new AccountDatabase();
+        Account[] accounts = book(0, n);
+        for (Account account : accounts) database.add(account);
+        AccountNumber[] probes = new AccountNumber[4096];
+        for (int i = 0; i < probes.length; i++) probes[i] = accounts[(int) ((i * 2654435761L) % n)].getNumber();
+        Profile[] holders = new Profile[probes.length];
+        for (int i = 0; i < holders.length; i++) holders[i] = accounts[(int) ((i * 2654435761L) % n)].getHolder();
+        AccountType[] types = AccountType.values();
+        Branch branch = Branch.values()[0];
+        measure("AccountDatabase.numFind/" + n, 1_000_000, i -> database.numFind(probes[i & 4095]) == null ? 0 : 1);
+        measure("AccountDatabase.containsHolder/" + n, 1_000_000,
+                i -> database.containsHolderAndType(holders[i & 4095], types[i % types.length]) ? 1 : 0);
+        measure("AccountDatabase.deposit/" + n, 200_000, i -> {
+            Account account = accounts[i % n];
+            return database.deposit(account, 100, DATE, branch, false);
+        });
+        measure("AccountDatabase.withdraw/" + n, 200_000, i -> {
+            Account account = accounts[i % n];
+            return database.withdraw(account, 100, DATE, branch, false);
+        });
+        database.setGuard(quietGuard());
+        measure("AccountDatabase.withdraw+guard/" + n, 200_000, i -> {
+            Account account = accounts[i % n];
+            return database.withdraw(account, 100, DATE, branch, false);
+        });
+        database.setGuard(null);
+        Account[] extra = book(n, EXTRA);
+        AccountDatabase churn = new AccountDatabase();
+        for (Account account : accounts) churn.add(account);
+        measure("AccountDatabase.add+remove/" + n, 20_000, i -> {
+            Account account = extra[i % EXTRA];
+            churn.add(account);
+            churn.remove(account);
+            return account.getPackedNumber();
+        });
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        int reports = Math.max(1, 1_000_000 / n);
+        measure("report P/" + n, reports, i -> {
+            database.print(discard);
+            return 1;
+        });
+        measure("report PB/" + n, reports, i -> {
+            database.printByBranch(discard);
+            return 1;
+        });
+        measure("report PH/" + n, reports, i -> {
+            database.printByHolder(discard);
+            return 1;
+        });
+        measure("report PT/" + n, reports, i -> {
+            database.printByType(discard);
+            return 1;
+        });
+    }
+
+    /**
+     * Makes a velocity guard that counts every withdrawal but never flags or blocks one,
+     * so every case times the same path.
+     * @author Arjun Deshpande
+     * @return the guard
+     */
+    private static VelocityGuard quietGuard() {
+        VelocityGuard guard = new VelocityGuard();
+        for (int scope = VelocityGuard.ACCOUNT; scope <= VelocityGuard.BRANCH; scope++) guard.setRule(scope, 1, 0, 0);
+        return guard;
+    }
+
+    /**
+     * Runs the velocity guard case on n synthetic accounts, two to a holder, so the
+     * guard's tables can be far larger than a book of real account numbers allows.
+     * @author Arjun Deshpande
+     * @param n the number of accounts
+     * @throws IOException never
+     */
+    public void guard(int n) throws IOException {
+        VelocityGuard guard = quietGuard();
+        long[] holders = new long[(n + 1) / 2];
+        for (int i = 0; i < holders.length; i++) holders[i] = i * 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < n; i++) guard.check(i, holders[i >> 1], i % 5, DATE, false); //every key gets its slot first
+        measure("VelocityGuard.check/" + n, 1_000_000, i -> {
+            int account = (int) ((i * 2654435761L) % n);
+            return guard.check(account, holders[account >> 1], account % 5, DATE, (i & 7) == 0);
+        });
+    }
+
+    /**
+     * Runs a generated command file end to end through TransactionManager.runBatch and
+     * runPipelined, on a fresh database each iteration, and reports the time per line.
+     * @author Arjun Deshpande
+     * @param lines the number of lines in the file
+     * @throws IOException if the file cannot be written or read
+     */
+    public void endToEnd(long lines) throws IOException {
+        String[] names = {"TransactionManager.runBatch/" + lines, "TransactionManager.runPipelined/" + lines};
+        boolean any = false;
+        for (String name : names) any |= filter == null || name.contains(filter);
+        if (!any) return;
+        Path file = Files.createTempFile("workload", ".txt");
+        try {
+            new WorkloadGenerator(lines).write(file.toString(), lines);
+            int warmups = lines >= 1_000_000 ? 1 : WARMUP_ITERATIONS;
+            int iterations = lines >= 1_000_000 ? 3 : MEASURED_ITERATIONS;
+            for (int mode = 0; mode < names.length; mode++) {
+                if (filter != null && !names[mode].contains(filter)) continue;
+                boolean pipelined = mode == 1;
+                for (int w = 0; w < warmups; w++) batch(file, pipelined);
+                double[] nanos = new double[iterations];
+                for (int m = 0; m < iterations; m++) {
+                    long start = System.nanoTime();
+                    long processed = batch(file, pipelined);
+                    nanos[m] = (double) (System.nanoTime() - start) / processed;
+                }
+                report(names[mode], nanos);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Runs a command file on a fresh database, discarding the output.
+     * @author Arjun Deshpande
+     * @param file the command file
+     * @param pipelined true to run it through a BatchPipeline
+     * @return the number of lines processed
+     * @throws IOException if the file cannot be read
+     */
+    private static long batch(Path file, boolean pipelined) throws IOException {
+        TransactionManager manager = new TransactionManager(new AccountDatabase(), System.in,
+                new PrintStream(OutputStream.nullOutputStream()));
+        if (pipelined) return manager.runPipelined(file.toString(), OutputStream.nullOutputStream());
+        return manager.runBatch(file.toString(), OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Saves the results as name,ns lines.
+     * @author Arjun Deshpande
+     * @param path the file to write
+     * @throws IOException if it cannot be written
+     */
+    public void save(String path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Double> result : results.entrySet()) lines.add(result.getKey() + "," + result.getValue());
+        Files.write(Paths.get(path), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the results with a saved baseline and prints every case that got
+     * more than 10% slower.
+     * @author Arjun Deshpande
+     * @param path the baseline written by save()
+     * @return the number of regressions
+     * @throws IOException if the baseline cannot be read
+     */
+    public int compare(String path) throws IOException {
+        int regressions = 0;
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            int comma = line.lastIndexOf(',');
+            if (comma < 0) continue;
+            Double now = results.get(line.substring(0, comma));
+            if (now == null) continue;
+            double before = Double.parseDouble(line.substring(comma + 1));
+            if (now > before * REGRESSION) {
+                regressions++;
+                System.out.printf("REGRESSION %s: %.1f -> %.1f ns/op (%+.0f%%)%n", line.substring(0, comma),
+                        before, now, (now / before - 1) * 100);
+            }
+        }
+        System.out.println(regressions == 0 ? "no regressions against " + path : regressions + " regressions against " + path);
+        return regressions;
+    }
+
+    /**
+     * Testbed main method: runs the benchmarks.
+     * @author Arjun Deshpande
+     * @param args optional: -filter text, -accounts n (default 100000), -lines list of
+     *             file sizes (default 10000,100000,1000000; add 10000000 for the full run),
+     *             -guard list of guard sizes (default 1000000; add 4000000 for the full run),
+     *             -save file, -baseline file
+     * @throws IOException if a case or the result files fail
+     */
+    public static void main(String[] args) throws IOException {
+        String filter = null;
+        String save = null;
+        String baseline = null;
+        int accounts = 100_000;
+        String lines = "10000,100000,1000000";
+        String guards = "1000000";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-filter": filter = args[i + 1]; break;
+                case "-accounts": accounts = Integer.parseInt(args[i + 1]); break;
+                case "-lines": lines = args[i + 1]; break;
+                case "-guard": guards = args[i + 1]; break;
+                case "-save": save = args[i + 1]; break;
+                case "-baseline": baseline = args[i + 1]; break;
+                default: System.err.println(args[i] + " - unknown option.");
+            }
+        }
+        Benchmark benchmark = new Benchmark(filter);
+        benchmark.parsing();
+        benchmark.database(accounts);
+        for (String size : guards.split(",")) benchmark.guard(Integer.parseInt(size.trim()));
+        for (String size : lines.split(",")) benchmark.endToEnd(Long.parseLong(size.trim()));
+        if (save != null) benchmark.save(save);
+        if (baseline != null && benchmark.compare(baseline) > 0) System.exit(1);
+        System.out.println("(sink " + sink + ")");
+    }//testbed
+}//end class Benchmark
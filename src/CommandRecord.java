@@ -0,0 +1,56 @@
+/**
+ * One command line as it passes through a BatchPipeline. The parse stage fills in the
+ * operation and its checked arguments, the apply stage fills in the result, and the
+ * output stage formats it. Records are reused from a CommandRing, so the fields are
+ * plain and package-private, and each stage only touches them while it owns the record.
+ * @author Arjun Deshpande
+ */
+public class CommandRecord {
+    static final byte TEXT = 0; //nothing to apply; text is the output
+    static final byte OPEN = 1;
+    static final byte CLOSE_NUMBER = 2;
+    static final byte CLOSE_HOLDER = 3;
+    static final byte DEPOSIT = 4;
+    static final byte WITHDRAW = 5;
+    static final byte DEFERRED = 6; //run by TransactionManager itself; text is the line, then its output
+    static final byte QUIT = 7;
+    static final byte END = 8; //end of the input, prints nothing
+
+    static final long OPENED = 0; //results of OPEN
+    static final long DUPLICATE = 1;
+    static final long NO_NUMBERS = 2;
+
+    byte op;
+    String command; //the command name, for the metrics
+    boolean failed; //the command failed with an exception
+    int number; //packed account number, or the number of an opened account
+    long amount; //cents
+    AccountType type;
+    Branch branch;
+    Profile holder;
+    String first; //the words the messages echo, as typed: first name
+    String last; //last name
+    String extra; //date of birth for a close, branch for an open
+    String typed; //account type for an open
+    String text; //finished output, ending with a line separator
+
+    long result; //balance, status, or 1/0 for a close
+    int downgraded; //what a withdrawal did to the account's type: AccountDatabase.KEPT, DOWNGRADED or NO_SAVINGS_NUMBER
+
+    /**
+     * Drops the references of the previous command, so they can be collected.
+     * @author Arjun Deshpande
+     */
+    void clear() {
+        failed = false;
+        type = null;
+        branch = null;
+        holder = null;
+        first = null;
+        last = null;
+        extra = null;
+        typed = null;
+        text = null;
+        downgraded = AccountDatabase.KEPT;
+    }
+}//end class CommandRecord
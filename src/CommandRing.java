@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+/**
+ * A bounded, lock-free ring of reusable command records shared by the stages of a
+ * pipeline. Each stage owns one cursor, the number of records it has finished, and is
+ * the only thread that writes it. A stage may take a record once the stage before it
+ * has finished it, and the first stage may refill a slot once the last stage has
+ * finished with it, so every pair of neighbouring stages is a single-producer,
+ * single-consumer queue and no record is ever copied or allocated. The cursors sit on
+ * separate cache lines. A waiting stage spins, then yields, then parks briefly, so it
+ * costs little on a machine with fewer cores than stages.
+ * @author Arjun Deshpande
+ */
+public class CommandRing {
+    private static final int PAD = 16; //longs from one cursor to the next, so each has its own cache line
+    private static final int SPINS = 100; //busy waits before yielding
+    private static final int YIELDS = 100; //yields before parking
+    private static final long PARK_NANOS = 20_000;
+
+    private final CommandRecord[] records;
+    private final int mask;
+    private final int stages;
+    private final AtomicLongArray cursors; //records finished by each stage, at stage * PAD
+    private volatile boolean halted; //set when a stage fails, so the others stop waiting
+
+    /**
+     * Creates a ring of empty records.
+     * @author Arjun Deshpande
+     * @param capacity the number of records, a power of 2
+     * @param stages the number of stages, in the order records pass through them
+     * @throws IllegalArgumentException if the capacity is not a power of 2
+     */
+    public CommandRing(int capacity, int stages) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(capacity + " - ring capacity must be a power of 2.");
+        }
+        records = new CommandRecord[capacity];
+        for (int i = 0; i < capacity; i++) records[i] = new CommandRecord();
+        mask = capacity - 1;
+        this.stages = stages;
+        cursors = new AtomicLongArray(stages * PAD);
+    }//end constructor
+
+    /**
+     * Gets the record for a sequence number.
+     * @author Arjun Deshpande
+     * @param sequence the sequence number
+     * @return the record in its slot
+     */
+    public CommandRecord get(long sequence) {
+        return records[(int) sequence & mask];
+    }
+
+    /**
+     * Waits until a record is ready for a stage.
+     * @author Arjun Deshpande
+     * @param stage the stage
+     * @param sequence the next record the stage wants
+     * @return the sequence number after the last record the stage may take now, or -1 if the ring was halted
+     */
+    public long await(int stage, long sequence) {
+        int idle = 0;
+        while (true) {
+            long bound = stage == 0 ? cursors.get((stages - 1) * PAD) + records.length : cursors.get((stage - 1) * PAD);
+            if (bound > sequence) return bound;
+            if (halted) return -1;
+            if (idle < SPINS) Thread.onSpinWait();
+            else if (idle < SPINS + YIELDS) Thread.yield();
+            else LockSupport.parkNanos(PARK_NANOS);
+            idle++;
+        }
+    }//await
+
+    /**
+     * Hands records on to the next stage.
+     * @author Arjun Deshpande
+     * @param stage the stage
+     * @param finished the number of records the stage has finished in total
+     */
+    public void release(int stage, long finished) {
+        cursors.lazySet(stage * PAD, finished); //only this stage writes it, so ordered is enough
+    }
+
+    /**
+     * Stops every stage from waiting, after one of them failed.
+     * @author Arjun Deshpande
+     */
+    public void halt() {
+        halted = true;
+    }
+}//end class CommandRing
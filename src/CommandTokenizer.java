@@ -0,0 +1,263 @@
+import java.util.NoSuchElementException;
+/**
+ * A reusable tokenizer for one command line at a time.
+ * Works like StringTokenizer with the default delimiters, but keeps the line in a
+ * char buffer and only records where each token starts and ends, so a token only
+ * becomes a String when nextToken() is called. One instance is reused for every line.
+ * @author Arjun Deshpande
+ */
+public class CommandTokenizer {
+    private static final int INITIAL_LINE = 128;
+    private static final int INITIAL_TOKENS = 8;
+    static final String[] COMMANDS = {"O", "C", "D", "W", "P", "PA", "PB", "PH", "PT", "PP", "UB", "A", "S", "SB", "ST", "BA", "BB", "VG", "Q"};
+
+    private char[] line = new char[INITIAL_LINE]; //the characters of the current line
+    private int length; //number of characters in the line
+    private int[] starts = new int[INITIAL_TOKENS]; //start index of each token
+    private int[] ends = new int[INITIAL_TOKENS]; //end index (exclusive) of each token
+    private int count; //number of tokens in the line
+    private int next; //index of the next token to hand out
+
+    /**
+     * Empties the line so bytes can be appended to it.
+     * @author Arjun Deshpande
+     */
+    public void clear() {
+        length = 0;
+        count = 0;
+        next = 0;
+    }
+
+    /**
+     * Appends ASCII bytes to the current line.
+     * @author Arjun Deshpande
+     * @param bytes the source buffer
+     * @param offset the first byte to copy
+     * @param len the number of bytes to copy
+     */
+    public void append(byte[] bytes, int offset, int len) {
+        ensureLine(length + len);
+        for (int i = 0; i < len; i++) line[length++] = (char) (bytes[offset + i] & 0xFF);
+    }
+
+    /**
+     * Replaces the current line with the given string and tokenizes it.
+     * @author Arjun Deshpande
+     * @param str the line to tokenize
+     */
+    public void setLine(String str) {
+        clear();
+        ensureLine(str.length());
+        str.getChars(0, str.length(), line, 0);
+        length = str.length();
+        tokenize();
+    }
+
+    /**
+     * Finds the tokens of the current line.
+     * @author Arjun Deshpande
+     */
+    public void tokenize() {
+        count = 0;
+        next = 0;
+        int i = 0;
+        while (i < length) {
+            while (i < length && isDelimiter(line[i])) i++;
+            if (i == length) break;
+            int start = i;
+            while (i < length && !isDelimiter(line[i])) i++;
+            if (count == starts.length) {
+                int[] biggerStarts = new int[count * 2];
+                int[] biggerEnds = new int[count * 2];
+                System.arraycopy(starts, 0, biggerStarts, 0, count);
+                System.arraycopy(ends, 0, biggerEnds, 0, count);
+                starts = biggerStarts;
+                ends = biggerEnds;
+            }
+            starts[count] = start;
+            ends[count] = i;
+            count++;
+        }
+    } //tokenize
+
+    /**
+     * Checks if a character is one of StringTokenizer's default delimiters.
+     * @author Arjun Deshpande
+     * @param c the character
+     * @return true for space, tab, newline, carriage return and form feed
+     */
+    private static boolean isDelimiter(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Grows the line buffer to hold at least the given number of characters.
+     * @author Arjun Deshpande
+     * @param capacity the needed capacity
+     */
+    private void ensureLine(int capacity) {
+        if (capacity <= line.length) return;
+        char[] bigger = new char[Math.max(capacity, line.length * 2)];
+        System.arraycopy(line, 0, bigger, 0, length);
+        line = bigger;
+    }
+
+    /**
+     * Gets the number of tokens not yet handed out.
+     * @author Arjun Deshpande
+     * @return the number of remaining tokens
+     */
+    public int countTokens() {
+        return count - next;
+    }
+
+    /**
+     * Checks if there are tokens left.
+     * @author Arjun Deshpande
+     * @return true if nextToken() can be called
+     */
+    public boolean hasMoreTokens() {
+        return next < count;
+    }
+
+    /**
+     * Hands out the index of the next token.
+     * @author Arjun Deshpande
+     * @return the index of the token
+     * @throws NoSuchElementException if the line has no tokens left, as StringTokenizer does
+     */
+    private int advance() {
+        if (next >= count) throw new NoSuchElementException();
+        return next++;
+    }
+
+    /**
+     * Returns the next token as a String.
+     * @author Arjun Deshpande
+     * @return the next token
+     * @throws NoSuchElementException if the line has no tokens left
+     */
+    public String nextToken() {
+        int i = advance();
+        return new String(line, starts[i], ends[i] - starts[i]);
+    }
+
+    /**
+     * Returns the whole current line as a String.
+     * @author Arjun Deshpande
+     * @return the line
+     */
+    public String getLine() {
+        return new String(line, 0, length);
+    }
+
+    /**
+     * Returns the token handed out last, e.g. to echo it in an error message.
+     * @author Aryaman Urs
+     * @return the previous token
+     * @throws NoSuchElementException if no token has been handed out
+     */
+    public String lastToken() {
+        if (next == 0) throw new NoSuchElementException();
+        int i = next - 1;
+        return new String(line, starts[i], ends[i] - starts[i]);
+    }
+
+    /**
+     * Parses the next token as an amount in cents, straight from the line buffer.
+     * @author Aryaman Urs
+     * @return the amount in cents, or Money.INVALID if it is not a number
+     * @throws NoSuchElementException if the line has no tokens left
+     */
+    public long nextAmount() {
+        int i = advance();
+        return Money.parseCents(line, starts[i], ends[i]);
+    }
+
+    /**
+     * Parses the next token as an account number, straight from the line buffer.
+     * @author Arjun Deshpande
+     * @return the packed number, or AccountNumbers.INVALID if it is not a valid number
+     * @throws NoSuchElementException if the line has no tokens left
+     */
+    public int nextAccountNumber() {
+        int i = advance();
+        return AccountNumbers.parse(line, starts[i], ends[i]);
+    }
+
+    /**
+     * Returns the next token as a command name. Known commands come back as shared
+     * constants, so the command switch does not allocate.
+     * @author Arjun Deshpande
+     * @return the command name
+     * @throws NoSuchElementException if the line has no tokens left
+     */
+    public String nextCommand() {
+        if (next >= count) throw new NoSuchElementException();
+        int i = next;
+        int len = ends[i] - starts[i];
+        for (String command : COMMANDS) {
+            if (command.length() != len) continue;
+            boolean same = true;
+            for (int k = 0; k < len && same; k++) same = command.charAt(k) == line[starts[i] + k];
+            if (same) {
+                next++;
+                return command;
+            }
+        }
+        return nextToken();
+    }
+
+    /**
+     * Checks if the next token is made of exactly the given number of digits.
+     * @author Arjun Deshpande
+     * @param digits the number of digits
+     * @return true if the next token is all digits and has that length
+     */
+    public boolean nextIsDigits(int digits) {
+        if (next >= count || ends[next] - starts[next] != digits) return false;
+        for (int k = starts[next]; k < ends[next]; k++) {
+            if (line[k] < '0' || line[k] > '9') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Testbed main method: a short line after a long one must not hand out tokens left
+     * over from the long one.
+     * @author Arjun Deshpande
+     * @param args not used
+     */
+    public static void main(String[] args) {
+        CommandTokenizer tokenizer = new CommandTokenizer();
+        tokenizer.setLine("O C Edison John Doe 2/19/1990 500");
+        boolean pass = tokenizer.countTokens() == 7;
+        tokenizer.setLine("O S Edison John Doe 2/19/1990");
+        pass &= tokenizer.nextCommand().equals("O") && tokenizer.countTokens() == 5;
+        for (int i = 0; i < 5; i++) tokenizer.nextToken();
+        pass &= !tokenizer.hasMoreTokens() && throwsNoSuchElement(tokenizer::nextAmount)
+                && throwsNoSuchElement(tokenizer::nextToken) && throwsNoSuchElement(tokenizer::nextAccountNumber);
+        tokenizer.setLine("C Jane Roe 2/19/1990");
+        tokenizer.setLine("C Jane");
+        pass &= tokenizer.nextCommand().equals("C") && tokenizer.nextToken().equals("Jane")
+                && throwsNoSuchElement(tokenizer::nextToken);
+        tokenizer.setLine("   ");
+        pass &= throwsNoSuchElement(tokenizer::nextCommand) && throwsNoSuchElement(tokenizer::lastToken);
+        System.out.println(pass ? "short line after a long one: PASS" : "short line after a long one: FAIL");
+    }//testbed
+
+    /**
+     * Checks that reading a token fails.
+     * @author Arjun Deshpande
+     * @param read the read to try
+     * @return true if it threw NoSuchElementException
+     */
+    private static boolean throwsNoSuchElement(Runnable read) {
+        try {
+            read.run();
+            return false;
+        } catch (NoSuchElementException e) {
+            return true;
+        }
+    }
+}//end class CommandTokenizer
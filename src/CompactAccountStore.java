@@ -0,0 +1,701 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+/**
+ * A storage engine for large books that keeps the open accounts in parallel primitive
+ * columns instead of Account objects: packed account number, branch and type ordinals,
+ * an interned holder name id, packed date of birth and balance, one array each, so an
+ * account costs about 22 bytes of columns plus its index slots and the GC has a handful
+ * of large arrays to trace instead of several objects per account.
+ * It implements AccountStore, the operations the transaction manager uses on
+ * AccountDatabase, keyed by account number and holder; Account objects are built only
+ * when one is read back. Numbers are drawn from a NumberSequence, as the database does.
+ * There are no activity ledgers, sorted views, velocity guard or archive: a closed
+ * account is dropped, and the last row moves into its place.
+ * Locking follows AccountDatabase: opens and closes take the write lock, postings take
+ * the read lock and a striped lock on the row.
+ * @author Arjun Deshpande
+ */
+public class CompactAccountStore implements AccountStore {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY = -1; //free index slot
+    private static final int NOT_FOUND = -1;
+    private static final int STRIPES = 64; //number of balance locks, must be a power of 2
+    private static final Branch[] BRANCHES = Branch.values();
+    private static final AccountType[] TYPES = AccountType.values();
+
+    private int[] numbers = new int[INITIAL_CAPACITY]; //the 9 digits of the account number
+    private byte[] branches = new byte[INITIAL_CAPACITY]; //Branch ordinal
+    private byte[] types = new byte[INITIAL_CAPACITY]; //AccountType ordinal
+    private int[] holders = new int[INITIAL_CAPACITY]; //id in names
+    private int[] dobs = new int[INITIAL_CAPACITY]; //packed yyyymmdd
+    private long[] balances = new long[INITIAL_CAPACITY]; //in cents
+    private int size;
+    private int[] numberIndex = filled(2 * INITIAL_CAPACITY); //open addressing: row of each account number
+    private int[] holderIndex = filled(2 * INITIAL_CAPACITY); //open addressing: row of each holder + dob + type
+    private final NameTable names = new NameTable();
+    private final NumberSequence sequence = new NumberSequence(); //numbers of the open rows
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock(); //guards the rows and indexes
+    private final Object[] stripes = new Object[STRIPES]; //guards balances
+
+    /**
+     * Interns holder names, ignoring case as Profile.equals does, so each row stores an
+     * int instead of two Strings. Names are never released; a book reuses few of them.
+     * @author Arjun Deshpande
+     */
+    private static class NameTable {
+        String[] firsts = new String[INITIAL_CAPACITY];
+        String[] lasts = new String[INITIAL_CAPACITY];
+        int[] hashes = new int[INITIAL_CAPACITY];
+        int[] table = filled(2 * INITIAL_CAPACITY); //open addressing: id of each name
+        int size;
+
+        static int hash(String first, String last) {
+            int h = 0;
+            for (int i = 0; i < first.length(); i++) h = 31 * h + Character.toLowerCase(first.charAt(i));
+            h = 31 * h + ' ';
+            for (int i = 0; i < last.length(); i++) h = 31 * h + Character.toLowerCase(last.charAt(i));
+            return h;
+        }
+
+        int find(String first, String last) {
+            int h = hash(first, last);
+            int mask = table.length - 1;
+            for (int i = spread(h) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+                int id = table[i];
+                if (hashes[id] == h && firsts[id].equalsIgnoreCase(first) && lasts[id].equalsIgnoreCase(last)) return id;
+            }
+            return NOT_FOUND;
+        }
+
+        int intern(String first, String last) {
+            int id = find(first, last);
+            if (id != NOT_FOUND) return id;
+            if (size == firsts.length) {
+                firsts = Arrays.copyOf(firsts, size * 2);
+                lasts = Arrays.copyOf(lasts, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            id = size++;
+            firsts[id] = first;
+            lasts[id] = last;
+            hashes[id] = hash(first, last);
+            if (2 * size > table.length) {
+                table = filled(table.length * 2);
+                for (int k = 0; k < size; k++) place(k);
+            } else {
+                place(id);
+            }
+            return id;
+        }
+
+        void place(int id) {
+            int mask = table.length - 1;
+            int i = spread(hashes[id]) & mask;
+            while (table[i] != EMPTY) i = (i + 1) & mask;
+            table[i] = id;
+        }
+    }//end klasse
+
+    /**
+     * Creates an empty store.
+     * @author Arjun Deshpande
+     */
+    public CompactAccountStore() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+    }//end constructor
+
+    /**
+     * Makes an index table with every slot free.
+     * @author Arjun Deshpande
+     * @param capacity the number of slots, a power of 2
+     * @return the table
+     */
+    private static int[] filled(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    /**
+     * Spreads a hash code over the low bits used to pick an index slot.
+     * @author Arjun Deshpande
+     * @param h the hash code
+     * @return the spread hash
+     */
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Hashes the holder key of a row: name id, date of birth and type.
+     * @author Arjun Deshpande
+     * @param holder the name id
+     * @param dob the packed date of birth
+     * @param type the type ordinal
+     * @return the hash code
+     */
+    private static int holderHash(int holder, int dob, int type) {
+        return (holder * 31 + dob) * 31 + type;
+    }
+
+    /**
+     * Gets the number of open accounts.
+     * @author Arjun Deshpande
+     * @return the number of rows
+     */
+    @Override
+    public int size() {
+        structure.readLock().lock();
+        try {
+            return size;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the row of an account number. Caller holds the structure lock.
+     * @author Arjun Deshpande
+     * @param number the packed account number
+     * @return the row, or NOT_FOUND
+     */
+    private int findNumber(int number) {
+        int mask = numberIndex.length - 1;
+        for (int i = spread(number) & mask; numberIndex[i] != EMPTY; i = (i + 1) & mask) {
+            if (numbers[numberIndex[i]] == number) return numberIndex[i];
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Finds the row a holder has of a type. Caller holds the structure lock.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @param type the account type
+     * @return the row, or NOT_FOUND
+     */
+    private int findHolder(Profile holder, AccountType type) {
+        int id = names.find(holder.getFname(), holder.getLname());
+        if (id == NOT_FOUND) return NOT_FOUND;
+        int dob = holder.getDob().toInt();
+        int t = type.ordinal();
+        int mask = holderIndex.length - 1;
+        for (int i = spread(holderHash(id, dob, t)) & mask; holderIndex[i] != EMPTY; i = (i + 1) & mask) {
+            int row = holderIndex[i];
+            if (holders[row] == id && dobs[row] == dob && types[row] == t) return row;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Finds the account with the given packed number and builds an Account from its row.
+     * The result is a copy: changing it does not change the store.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return the account, or null if there is no such account
+     */
+    @Override
+    public Account numFind(int packed) {
+        structure.readLock().lock();
+        try {
+            int row = findNumber(packed);
+            if (row == NOT_FOUND) return null;
+            Profile holder = new Profile(names.firsts[holders[row]], names.lasts[holders[row]], Date.fromInt(dobs[row]));
+            synchronized (stripe(row)) {
+                return new Account(AccountNumbers.unpack(numbers[row]), holder, balances[row]);
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if a holder already has an account of the given type.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @param type the account type
+     * @return true if the holder has an account of that type
+     */
+    @Override
+    public boolean containsHolderAndType(Profile holder, AccountType type) {
+        structure.readLock().lock();
+        try {
+            return findHolder(holder, type) != NOT_FOUND;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Draws a new account number that no open account has.
+     * @author Arjun Deshpande
+     * @param branch the branch
+     * @param type the account type
+     * @return the number, or null if every number of the branch and type is open
+     */
+    @Override
+    public AccountNumber newNumber(Branch branch, AccountType type) {
+        int packed = sequence.next(branch, type);
+        return packed == AccountNumbers.INVALID ? null : AccountNumbers.unpack(packed);
+    }
+
+    /**
+     * Opens a new account as a row, unless its holder already has an account of its
+     * type or an open account has its number. A refused account's number, drawn by
+     * newNumber, is given back. There is no ledger, so the date is not kept.
+     * @author Arjun Deshpande
+     * @param account the new account
+     * @param date the packed yyyymmdd date it is opened
+     * @return true if it was added
+     */
+    @Override
+    public boolean open(Account account, int date) {
+        structure.writeLock().lock();
+        try {
+            if (findHolder(account.getHolder(), account.getType()) == NOT_FOUND && insert(account)) return true;
+            if (findNumber(account.getPackedNumber()) == NOT_FOUND) sequence.release(account.getPackedNumber()); //no open account has it
+            return false;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds an account as a new row. Only its number, holder and balance are kept.
+     * @author Arjun Deshpande
+     * @param account the account to add
+     * @return true if it was added, false if an open account already has its number
+     */
+    public boolean add(Account account) {
+        structure.writeLock().lock();
+        try {
+            return insert(account);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    } //add
+
+    /**
+     * Appends a row for an account unless its number is taken. Caller holds the write lock.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @return true if it was added
+     */
+    private boolean insert(Account account) {
+        if (findNumber(account.getPackedNumber()) != NOT_FOUND) return false;
+        if (size == numbers.length) grow();
+        Profile holder = account.getHolder();
+        int row = size++;
+        numbers[row] = account.getPackedNumber();
+        branches[row] = (byte) account.getNumber().getBranch().ordinal();
+        types[row] = (byte) account.getType().ordinal();
+        holders[row] = names.intern(holder.getFname(), holder.getLname());
+        dobs[row] = holder.getDob().toInt();
+        balances[row] = account.getBalance();
+        if (2 * size > numberIndex.length) {
+            rehash();
+        } else {
+            place(numberIndex, spread(numbers[row]), row);
+            place(holderIndex, spread(holderHash(holders[row], dobs[row], types[row])), row);
+        }
+        sequence.reserve(numbers[row]);
+        return true;
+    } //insert
+
+    /**
+     * Doubles the columns.
+     * @author Arjun Deshpande
+     */
+    private void grow() {
+        int capacity = numbers.length * 2;
+        numbers = Arrays.copyOf(numbers, capacity);
+        branches = Arrays.copyOf(branches, capacity);
+        types = Arrays.copyOf(types, capacity);
+        holders = Arrays.copyOf(holders, capacity);
+        dobs = Arrays.copyOf(dobs, capacity);
+        balances = Arrays.copyOf(balances, capacity);
+    }
+
+    /**
+     * Doubles both index tables and places every row again.
+     * @author Arjun Deshpande
+     */
+    private void rehash() {
+        numberIndex = filled(numberIndex.length * 2);
+        holderIndex = filled(holderIndex.length * 2);
+        for (int row = 0; row < size; row++) {
+            place(numberIndex, spread(numbers[row]), row);
+            place(holderIndex, spread(holderHash(holders[row], dobs[row], types[row])), row);
+        }
+    }
+
+    /**
+     * Puts a row in the first free slot at or after its home slot.
+     * @author Arjun Deshpande
+     * @param table the index table
+     * @param hash the spread hash of the row's key
+     * @param row the row
+     */
+    private static void place(int[] table, int hash, int row) {
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != EMPTY) i = (i + 1) & mask;
+        table[i] = row;
+    }
+
+    /**
+     * Finds the slot holding a row.
+     * @author Arjun Deshpande
+     * @param table the index table
+     * @param hash the spread hash of the row's key
+     * @param row the row
+     * @return the slot
+     */
+    private static int slotOf(int[] table, int hash, int row) {
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != row) i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * Frees a slot and shifts later entries of its probe run back, so lookups never
+     * stop early at the hole.
+     * @author Arjun Deshpande
+     * @param table the index table
+     * @param slot the slot to free
+     * @param numberKeys true for the number index, false for the holder index
+     */
+    private void unplace(int[] table, int slot, boolean numberKeys) {
+        int mask = table.length - 1;
+        int hole = slot;
+        for (int i = (hole + 1) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            int row = table[i];
+            int home = spread(numberKeys ? numbers[row] : holderHash(holders[row], dobs[row], types[row])) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) { //home is at or before the hole
+                table[hole] = row;
+                hole = i;
+            }
+        }
+        table[hole] = EMPTY;
+    } //unplace
+
+    /**
+     * Takes a row out of both index tables, before its keys change or it is removed.
+     * Caller holds the write lock.
+     * @author Arjun Deshpande
+     * @param row the row
+     */
+    private void unindex(int row) {
+        unplace(numberIndex, slotOf(numberIndex, spread(numbers[row]), row), true);
+        unplace(holderIndex, slotOf(holderIndex, spread(holderHash(holders[row], dobs[row], types[row])), row), false);
+    }
+
+    /**
+     * Removes a row and moves the last row into its place. Caller holds the write lock.
+     * @author Arjun Deshpande
+     * @param row the row to remove
+     */
+    private void delete(int row) {
+        unindex(row);
+        sequence.release(numbers[row]);
+        int last = --size;
+        if (row == last) return;
+        numberIndex[slotOf(numberIndex, spread(numbers[last]), last)] = row;
+        holderIndex[slotOf(holderIndex, spread(holderHash(holders[last], dobs[last], types[last])), last)] = row;
+        numbers[row] = numbers[last];
+        branches[row] = branches[last];
+        types[row] = types[last];
+        holders[row] = holders[last];
+        dobs[row] = dobs[last];
+        balances[row] = balances[last];
+    } //delete
+
+    /**
+     * Closes the account with the given packed number.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return true if the account was open
+     */
+    @Override
+    public boolean remove(int packed) {
+        structure.writeLock().lock();
+        try {
+            int row = findNumber(packed);
+            if (row == NOT_FOUND) return false;
+            delete(row);
+            return true;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes every account the holder has.
+     * @author Arjun Deshpande
+     * @param holder the holder profile
+     * @return true if the holder had any accounts
+     */
+    @Override
+    public boolean removeByProfile(Profile holder) {
+        structure.writeLock().lock();
+        try {
+            boolean found = false;
+            for (AccountType type : TYPES) {
+                int row = findHolder(holder, type);
+                if (row != NOT_FOUND) {
+                    delete(row);
+                    found = true;
+                }
+            }
+            return found;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the type of the account with the given packed number, keeping its sequence
+     * digits if that number of the new type is free, and drawing a new number otherwise.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param type the new account type
+     * @return true if the type was changed
+     */
+    @Override
+    public boolean changeType(int packed, AccountType type) {
+        structure.writeLock().lock();
+        try {
+            int row = findNumber(packed);
+            return row != NOT_FOUND && retype(row, type);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Downgrades the money market account with the given packed number to savings once
+     * its balance is below AccountDatabase.MONEY_MARKET_MINIMUM.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @return AccountDatabase.DOWNGRADED, AccountDatabase.NO_SAVINGS_NUMBER or AccountDatabase.KEPT
+     */
+    @Override
+    public int downgradeIfBelowMinimum(int packed) {
+        if (AccountNumbers.typeOf(packed) != AccountType.MONEY_MARKET) return AccountDatabase.KEPT;
+        structure.writeLock().lock();
+        try {
+            int row = findNumber(packed);
+            if (row == NOT_FOUND || balances[row] >= AccountDatabase.MONEY_MARKET_MINIMUM) return AccountDatabase.KEPT;
+            return retype(row, AccountType.SAVINGS) ? AccountDatabase.DOWNGRADED : AccountDatabase.NO_SAVINGS_NUMBER;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Re-keys a row under a new type and number. Caller holds the write lock, so no
+     * posting reads the row while it moves.
+     * @author Arjun Deshpande
+     * @param row the row
+     * @param type the new account type
+     * @return true if the type was changed, false if it already has it or every number of the type is open
+     */
+    private boolean retype(int row, AccountType type) {
+        if (types[row] == type.ordinal()) return false;
+        Branch branch = BRANCHES[branches[row]];
+        int packed = AccountNumbers.compose(branch, type, AccountNumbers.sequenceOf(numbers[row]));
+        if (!sequence.claim(packed)) packed = sequence.next(branch, type); //the same digits are taken by another account
+        if (packed == AccountNumbers.INVALID) return false;
+        unindex(row);
+        sequence.release(numbers[row]);
+        numbers[row] = packed;
+        types[row] = (byte) type.ordinal();
+        place(numberIndex, spread(numbers[row]), row);
+        place(holderIndex, spread(holderHash(holders[row], dobs[row], types[row])), row);
+        return true;
+    } //retype
+
+    /**
+     * Gets the balance lock of a row. Rows only move under the write lock.
+     * @author Arjun Deshpande
+     * @param row the row
+     * @return the lock object
+     */
+    private Object stripe(int row) {
+        return stripes[row & (STRIPES - 1)];
+    }
+
+    /**
+     * Deposits into the account with the given packed number.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param amount the amount to deposit, in cents
+     * @return the new balance, AccountDatabase.NOT_OPEN if there is no such account,
+     *         or AccountDatabase.OVERFLOW
+     */
+    @Override
+    public long deposit(int packed, long amount) {
+        structure.readLock().lock();
+        try {
+            int row = findNumber(packed);
+            if (row == NOT_FOUND) return AccountDatabase.NOT_OPEN;
+            synchronized (stripe(row)) {
+                if (amount <= 0) return balances[row];
+                if (balances[row] > Long.MAX_VALUE - amount) return AccountDatabase.OVERFLOW;
+                return balances[row] += amount;
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Withdraws from the account with the given packed number. There is no velocity
+     * guard, so a withdrawal is never BLOCKED.
+     * @author Arjun Deshpande
+     * @param packed the account number as an int
+     * @param amount the amount to withdraw, in cents
+     * @return the new balance, AccountDatabase.NOT_OPEN if there is no such account,
+     *         or AccountDatabase.INSUFFICIENT_FUNDS
+     */
+    @Override
+    public long withdraw(int packed, long amount) {
+        structure.readLock().lock();
+        try {
+            int row = findNumber(packed);
+            if (row == NOT_FOUND) return AccountDatabase.NOT_OPEN;
+            synchronized (stripe(row)) {
+                if (amount > balances[row]) return AccountDatabase.INSUFFICIENT_FUNDS;
+                if (amount > 0) balances[row] -= amount;
+                return balances[row];
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Measures the heap in use after a full collection.
+     * @author Arjun Deshpande
+     * @return the bytes in use
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Sums the collection count and time of every collector.
+     * @author Arjun Deshpande
+     * @return {collections, milliseconds}
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    /**
+     * Makes the i-th account of the testbed book. Its number is unique within its shard
+     * of AccountNumbers.CAPACITY accounts, and its holder is unique in the book.
+     * @author Arjun Deshpande
+     * @param i the index in the book
+     * @return the account
+     */
+    private static Account sample(int i) {
+        return new Account(AccountNumbers.unpack(AccountNumbers.distinct(i % AccountNumbers.CAPACITY)),
+                new Profile("First" + i % 5_000, "Last" + i / 3, new Date(1, 1 + i % 28, 1950 + i % 50)), 100_000 + i);
+    }
+
+    /**
+     * Makes an empty store of either engine.
+     * @author Arjun Deshpande
+     * @param compact true for a CompactAccountStore, false for an AccountDatabase
+     * @return the store
+     */
+    private static AccountStore create(boolean compact) {
+        return compact ? new CompactAccountStore() : new AccountDatabase();
+    }
+
+    /**
+     * Checks an open, a downgrade and a close through the AccountStore operations.
+     * @author Arjun Deshpande
+     * @param store an empty store
+     * @return true if every step did what AccountDatabase does
+     */
+    private static boolean retypes(AccountStore store) {
+        Profile holder = new Profile("Ada", "Byron", new Date(12, 10, 1815));
+        AccountNumber number = store.newNumber(BRANCHES[0], AccountType.MONEY_MARKET);
+        int packed = AccountNumbers.pack(number);
+        boolean pass = store.open(new Account(number, holder, 250_000), 20240115);
+        pass &= !store.open(new Account(store.newNumber(BRANCHES[0], AccountType.MONEY_MARKET), holder, 250_000), 20240115);
+        pass &= store.withdraw(packed, 100_000) == 150_000 && store.downgradeIfBelowMinimum(packed) == AccountDatabase.DOWNGRADED;
+        Account savings = store.numFind(AccountNumbers.compose(BRANCHES[0], AccountType.SAVINGS, AccountNumbers.sequenceOf(packed)));
+        pass &= store.numFind(packed) == null && savings != null && savings.getBalance() == 150_000;
+        pass &= store.containsHolderAndType(holder, AccountType.SAVINGS) && !store.containsHolderAndType(holder, AccountType.MONEY_MARKET);
+        pass &= store.downgradeIfBelowMinimum(savings.getPackedNumber()) == AccountDatabase.KEPT && store.changeType(savings.getPackedNumber(), AccountType.CHECKING);
+        try {
+            pass &= store.removeByProfile(holder) && store.size() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+        return pass;
+    }
+
+    /**
+     * Testbed main method: checks both engines do the same retype, then loads the same
+     * book into AccountDatabases or CompactAccountStores through AccountStore, and
+     * reports heap per account and the collections taken while loading and while posting
+     * to random accounts. Run each engine in its own JVM, with the same -Xmx, so one does
+     * not pay for the other's garbage. A book larger than AccountNumbers.CAPACITY is
+     * split into shards of that many accounts, one store each, as numbers are only
+     * unique within a store.
+     * @author Arjun Deshpande
+     * @param args "objects" or "compact", then the number of accounts (default 10000000)
+     */
+    public static void main(String[] args) {
+        boolean compact = args.length == 0 || args[0].equals("compact");
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+        System.out.println(retypes(create(false)) && retypes(create(true)) ? "retype: PASS" : "retype: FAIL");
+        int[] probes = new int[1024]; //book indexes
+        for (int i = 0; i < probes.length; i++) probes[i] = (int) (i * 7919L % n);
+        long before = usedHeap();
+        long[] gcBefore = gcTotals();
+        long start = System.nanoTime();
+        AccountStore[] shards = new AccountStore[(n - 1) / AccountNumbers.CAPACITY + 1];
+        for (int i = 0; i < shards.length; i++) shards[i] = create(compact);
+        for (int i = 0; i < n; i++) shards[i / AccountNumbers.CAPACITY].open(sample(i), 20240115); //the engine keeps only what it needs
+        long loaded = System.nanoTime() - start;
+        long[] gcLoaded = gcTotals();
+        long heap = usedHeap() - before;
+        long[] gcPosting = gcTotals();
+        start = System.nanoTime();
+        int postings = 5_000_000;
+        for (int i = 0; i < postings; i++) {
+            int probe = probes[i & (probes.length - 1)];
+            AccountStore store = shards[probe / AccountNumbers.CAPACITY];
+            int packed = AccountNumbers.distinct(probe % AccountNumbers.CAPACITY);
+            if ((i & 1) == 0) store.deposit(packed, 500);
+            else store.withdraw(packed, 500);
+        }
+        long posted = System.nanoTime() - start;
+        long[] gcPosted = gcTotals();
+        System.out.printf("%s, %d accounts in %d stores: %d bytes/account; load %d ms with %d collections (%d ms paused); "
+                        + "%d postings %d ms with %d collections (%d ms paused)%n",
+                compact ? "compact store" : "account objects", n, shards.length, heap / n, loaded / 1_000_000,
+                gcLoaded[0] - gcBefore[0], gcLoaded[1] - gcBefore[1], postings, posted / 1_000_000,
+                gcPosted[0] - gcPosting[0], gcPosted[1] - gcPosting[1]);
+        long open = 0;
+        for (AccountStore store : shards) open += store.size();
+        System.out.println("still open: " + open);
+    }//testbed
+}//end class CompactAccountStore
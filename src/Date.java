@@ -1,13 +1,48 @@
+import java.io.PrintStream;
 import java.util.Calendar;
 /**
  * Represents a calendar date with validation and comparison capabilities.
  * Handles dates in the mm/dd/yyyy format and supports basic date operations.
+ * The date is held as one packed yyyymmdd int, so comparing two dates is a single
+ * int comparison. Dates whose parts do not fit (negative, or month or day above 99)
+ * are kept as their original text; they never pass validation.
  * @author Arjun Deshpande
  */
 public class Date implements Comparable<Date> {
-    private int year;
-    private int month;
-    private int day;
+    public static final int VALID = 0;
+    public static final int OUT_OF_RANGE = 1;
+    public static final int NOT_A_CALENDAR_DATE = 2;
+    public static final int FUTURE_OR_TODAY = 3;
+    public static final int UNDER_18 = 4;
+    private static final int UNPACKABLE = Integer.MIN_VALUE;
+    private static final int MAX_YEAR = 200_000; //keeps yyyymmdd inside an int
+    private static final int ADULT = 18 * 10000; //18 years, in packed form
+    private static volatile Today today = new Today(); //refreshed once per day
+
+    private final int packed; //yyyymmdd, or UNPACKABLE
+    private final String unpackable; //"m/d/y" when the parts do not fit, otherwise null
+    private final int unpackableResult; //what validate() says about an unpackable date
+
+    /**
+     Defines today's date together with the time it stops being today.
+     @author Arjun Deshpande
+     */
+    private static class Today {
+        final Date date;
+        final long until; //epoch millis of the next midnight
+
+        Today() {
+            Calendar now = Calendar.getInstance();
+            date = new Date(now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH), now.get(Calendar.YEAR));
+            now.set(Calendar.HOUR_OF_DAY, 0);
+            now.set(Calendar.MINUTE, 0);
+            now.set(Calendar.SECOND, 0);
+            now.set(Calendar.MILLISECOND, 0);
+            now.add(Calendar.DAY_OF_MONTH, 1);
+            until = now.getTimeInMillis();
+        }
+    }//end klasse
+
     /**
      * Constructs a Date object with specified month, day, and year.
      * Note: Does not validate the date. Use isValid() to check validity.
@@ -17,27 +52,40 @@ public class Date implements Comparable<Date> {
      * @param year the year component (any integer)
      */
     public Date(int month, int day, int year) {
-        this.month = month;
-        this.year = year;
-        this.day = day;
+        if (month < 0 || month > 99 || day < 0 || day > 99 || year < 0 || year > MAX_YEAR) {
+            this.packed = UNPACKABLE;
+            this.unpackable = month + "/" + day + "/" + year;
+            if (year < 1900 || month < 1 || month > 12 || day < 1) unpackableResult = OUT_OF_RANGE;
+            else if (!isCalendarDate(month, day, year)) unpackableResult = NOT_A_CALENDAR_DATE;
+            else unpackableResult = FUTURE_OR_TODAY; //a year past MAX_YEAR
+        } else {
+            this.packed = year * 10000 + month * 100 + day;
+            this.unpackable = null;
+            this.unpackableResult = VALID;
+        }
     }//end constructor
+
     /**
-     * Validates the date according to calendar rules.
+     * Constructs a Date from a packed yyyymmdd int.
      * @author Arjun Deshpande
-     * @return true if the date represents a valid calendar date, false otherwise
-     * @implNote Checks:
-     * - Month between 1-12
-     * - Day appropriate for month
-     * - Leap year handling for February
-     * - Negative values prohibited
+     * @param packed the packed date
      */
-    public boolean isValid() {
-        // Debugging print statement to check input values
-        // System.out.println("Checking date validity: " + month + "/" + day + "/" + year);
-        if (year < 1900 || month < 1 || month > 12 || day < 1) {
-            System.out.println("DOB invalid: " + month + "/" + day + "/" + year + " is out of range!");
-            return false;
-        }
+    private Date(int packed) {
+        this.packed = packed;
+        this.unpackable = null;
+        this.unpackableResult = VALID;
+    }
+
+    /**
+     * Checks a date against the calendar: month 1-12 and a day that exists in that
+     * month, with leap years. Does not look at the year's range.
+     * @author Arjun Deshpande
+     * @param month the month
+     * @param day the day
+     * @param year the year
+     * @return true if the month has that day
+     */
+    public static boolean isCalendarDate(int month, int day, int year) {
         final int QUADRENNIAL = 4;
         final int CENTENNIAL = 100;
         final int QUATERCENTENNIAL = 400;
@@ -54,35 +102,69 @@ public class Date implements Comparable<Date> {
                 else maxDay = 28;
                 break;
             default:
-                System.out.println("DOB invalid: " + month + "/" + day + "/" + year + " not a valid calendar date!");
                 return false; // Invalid month
         }
+        return day >= 1 && day <= maxDay;
+    }
 
-        // Ensure the day does not exceed the maximum day for that month
-        if (day > maxDay) {
-            System.out.println("DOB invalid: " + month + "/" + day + "/" + year + " not a valid calendar date!");
-            return false;
-        }
+    /**
+     * Validates the date as a date of birth, without printing anything, so it can run
+     * on any thread. Today's date is cached and refreshed at midnight.
+     * @author Arjun Deshpande
+     * @return VALID, or OUT_OF_RANGE, NOT_A_CALENDAR_DATE, FUTURE_OR_TODAY or UNDER_18
+     * @implNote Checks:
+     * - Year from 1900, month between 1-12, positive day
+     * - Day appropriate for month
+     * - Leap year handling for February
+     * - Not today or later, and at least 18 years ago
+     */
+    public int validate() {
+        if (packed == UNPACKABLE) return unpackableResult;
+        int year = getYear();
+        int month = getMonth();
+        int day = getDay();
+        if (year < 1900 || month < 1 || month > 12 || day < 1) return OUT_OF_RANGE;
+        if (!isCalendarDate(month, day, year)) return NOT_A_CALENDAR_DATE;
+        int now = today().packed;
+        if (packed >= now) return FUTURE_OR_TODAY;
+        if (packed + ADULT > now) return UNDER_18; // 18th birthday is after today
+        return VALID;
+    }
 
-        // Get the current date
-        Calendar today = Calendar.getInstance();
-        int currentYear = today.get(Calendar.YEAR);
-        int currentMonth = today.get(Calendar.MONTH) + 1; // Calendar.MONTH is zero-based
-        int currentDay = today.get(Calendar.DAY_OF_MONTH);
-        if (year > currentYear || (year == currentYear && month > currentMonth) ||
-                (year == currentYear && month == currentMonth && day >= currentDay)) {
-            System.out.println("DOB invalid: " + month + "/" + day + "/" + year + " is in the future or today!");
-            return false;
-        }
-        int age = currentYear - year;
-        if (month > currentMonth || (month == currentMonth && day > currentDay)) {
-            age--; // Adjust if birthday hasn't occurred yet this year
-        }
-        if (age < 18) {
-            System.out.println("DOB invalid: " + month + "/" + day + "/" + year + " is under 18 years old!");
-            return false;
+    /**
+     * Describes why the date failed validation.
+     * @author Arjun Deshpande
+     * @param result a result code from validate()
+     * @return the message to show, or null if the result is VALID
+     */
+    public String describe(int result) {
+        switch (result) {
+            case OUT_OF_RANGE: return "DOB invalid: " + this + " is out of range!";
+            case NOT_A_CALENDAR_DATE: return "DOB invalid: " + this + " not a valid calendar date!";
+            case FUTURE_OR_TODAY: return "DOB invalid: " + this + " is in the future or today!";
+            case UNDER_18: return "DOB invalid: " + this + " is under 18 years old!";
+            default: return null;
         }
-        return true; // All checks passed, date is valid
+    }
+
+    /**
+     * Validates the date according to calendar rules, printing the reason if it is not valid.
+     * @author Arjun Deshpande
+     * @return true if the date represents a valid calendar date, false otherwise
+     */
+    public boolean isValid() {
+        return isValid(System.out);
+    }
+    /**
+     * Validates the date, printing the reason to the given stream if it is not valid.
+     * @author Arjun Deshpande
+     * @param out the stream to print the reason to
+     * @return true if the date represents a valid calendar date, false otherwise
+     */
+    public boolean isValid(PrintStream out) {
+        int result = validate();
+        if (result != VALID) out.println(describe(result));
+        return result == VALID;
     }
     /**
      * Compares this date with another for equality.
@@ -95,7 +177,17 @@ public class Date implements Comparable<Date> {
         if (this == obj) return true;
         if (!(obj instanceof Date)) return false;
         Date other = (Date) obj;
-        return year == other.year && month == other.month && day == other.day;
+        if (packed == UNPACKABLE) return unpackable.equals(other.unpackable);
+        return packed == other.packed;
+    }//end override
+    /**
+     * Hashes the date consistently with equals.
+     * @author Arjun Deshpande
+     * @return the hash code
+     */
+    @Override
+    public int hashCode() {
+        return packed == UNPACKABLE ? unpackable.hashCode() : packed;
     }//end override
     /**
      * Compares this date with another date chronologically.
@@ -105,19 +197,72 @@ public class Date implements Comparable<Date> {
      */
     @Override
     public int compareTo(Date other) {
-        if (year != other.year) return Integer.compare(year, other.year);
-        if (month != other.month) return Integer.compare(month, other.month);
-        return Integer.compare(day, other.day);
+        return Integer.compare(packed, other.packed);
     }//end override
     /**
      * Returns a string representation in mm/dd/yyyy format.
      * @author Arjun Deshpande
-     * @return formatted date string (e.g., "02/19/2000")
+     * @return formatted date string (e.g., "2/19/2000")
      */
     @Override
     public String toString() {
-        return String.format("%d/%d/%d", month, day, year);
+        if (packed == UNPACKABLE) return unpackable;
+        return getMonth() + "/" + getDay() + "/" + getYear();
     }//end override
+    /**
+     * Gets the year.
+     * @author Arjun Deshpande
+     * @return the year
+     */
+    public int getYear() {
+        return packed / 10000;
+    }
+    /**
+     * Gets the month.
+     * @author Arjun Deshpande
+     * @return the month (1-12 when valid)
+     */
+    public int getMonth() {
+        return packed / 100 % 100;
+    }
+    /**
+     * Gets the day of the month.
+     * @author Arjun Deshpande
+     * @return the day
+     */
+    public int getDay() {
+        return packed % 100;
+    }
+    /**
+     * Packs the date into a single int as yyyymmdd, which sorts the same way as compareTo.
+     * @author Arjun Deshpande
+     * @return the packed date (e.g. 20000219)
+     */
+    public int toInt() {
+        return packed;
+    }
+    /**
+     * Unpacks a date packed by toInt().
+     * @author Arjun Deshpande
+     * @param packed the packed yyyymmdd date
+     * @return the Date object
+     */
+    public static Date fromInt(int packed) {
+        return new Date(packed);
+    }
+    /**
+     * Gets today's date. The value is cached and only recomputed after midnight.
+     * @author Arjun Deshpande
+     * @return today's date
+     */
+    public static Date today() {
+        Today current = today;
+        if (System.currentTimeMillis() >= current.until) {
+            current = new Today();
+            today = current;
+        }
+        return current.date;
+    }
     /**
      * Parses a date string in mm/dd/yyyy format.
      *
@@ -126,26 +271,88 @@ public class Date implements Comparable<Date> {
      * @author Arjun Deshpande
      */
     public static Date fromString(String dateStr) {
-        String[] parts = dateStr.split("/");
-        if (parts.length != 3) return null;
-        try {
-            int m = Integer.parseInt(parts[0]);
-            int d = Integer.parseInt(parts[1]);
-            int y = Integer.parseInt(parts[2]);
-            return new Date(m, d, y);
-        } catch (NumberFormatException e) {
-            return null;
-        }
+        return parse(dateStr, 0, dateStr.length());
     }
+    /**
+     * Parses an m/d/y date from part of a character sequence without splitting it.
+     * Each part is an optionally signed integer; trailing slashes are ignored.
+     * @author Arjun Deshpande
+     * @param text the characters
+     * @param start the first character of the date
+     * @param end the character after the date
+     * @return Date object if valid format, null otherwise
+     */
+    public static Date parse(CharSequence text, int start, int end) {
+        while (end > start && text.charAt(end - 1) == '/') end--;
+        int[] parts = new int[3];
+        int i = start;
+        for (int p = 0; p < 3; p++) {
+            if (p > 0) {
+                if (i >= end || text.charAt(i) != '/') return null;
+                i++;
+            }
+            boolean negative = false;
+            if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) negative = text.charAt(i++) == '-';
+            if (i >= end || text.charAt(i) < '0' || text.charAt(i) > '9') return null;
+            long value = 0;
+            while (i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                value = value * 10 + (text.charAt(i++) - '0');
+                if (value > (long) Integer.MAX_VALUE + 1) return null;
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) return null;
+            parts[p] = (int) value;
+        }
+        if (i != end) return null;
+        return new Date(parts[0], parts[1], parts[2]);
+    }//parse
     /**
      * Testbed main method for validating Date class functionality.
+     * With "bench" as the argument, times parsing, validation and comparison instead.
      *
-     * @param args command-line arguments (not used)
+     * @param args command-line arguments ("bench" [iterations])
      * @author Arjun Deshpande
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("bench")) {
+            benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000);
+            return;
+        }
         Date testDate = new Date(5,7 , 2005);//SHOULD BE VALID
         System.out.println(testDate.isValid() ? "Valid" : "Invalid");
+        String[] samples = {"2/29/2000", "2/29/1900", "13/1/2000", "1/1/1899", "-1/5/2000", "1/1/2100", "1/2/3", "1/2", "a/b/c"};
+        for (String sample : samples) {
+            Date date = fromString(sample);
+            System.out.println(sample + " -> " + (date == null ? "not a date" : date.validate() == VALID ? "valid" : date.describe(date.validate())));
+        }
     }//testbed method (MUST WORK)
 
-}//end class Date
\ No newline at end of file
+    /**
+     * Times fromString, validate and compareTo over a fixed set of dates of birth.
+     * Run with a warmed-up JVM, e.g. a few million iterations.
+     * @author Arjun Deshpande
+     * @param iterations the operations per measurement
+     */
+    private static void benchmark(int iterations) {
+        String[] inputs = new String[1024];
+        for (int i = 0; i < inputs.length; i++) inputs[i] = (1 + i % 12) + "/" + (1 + i % 28) + "/" + (1940 + i % 70);
+        Date[] dates = new Date[inputs.length];
+        for (int i = 0; i < inputs.length; i++) dates[i] = fromString(inputs[i]);
+        long sink = 0;
+        for (int round = 0; round < 3; round++) { //the first rounds are warm-up
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) sink += fromString(inputs[i & 1023]).packed;
+            long parse = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) sink += dates[i & 1023].validate();
+            long validate = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) sink += dates[i & 1023].compareTo(dates[(i + 7) & 1023]);
+            long compare = System.nanoTime() - start;
+            System.out.printf("round %d: fromString %.1f ns, validate %.1f ns, compareTo %.1f ns%n", round,
+                    (double) parse / iterations, (double) validate / iterations, (double) compare / iterations);
+        }
+        System.out.println("(sink " + sink + ")");
+    }//benchmark
+
+}//end class Date
@@ -0,0 +1,142 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+/**
+ * Counts latencies into log-linear buckets, like an HDR histogram: every power of 2 is
+ * split into 16 sub-buckets, so any recorded value is reported within 1/16 (6.25%) of
+ * itself, from 1 ns up to the range of a long, in 960 counters. Recording is one array
+ * increment and two adders, with no locks, so many sessions can record at once.
+ * @author Arjun Deshpande
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; //per power of 2
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder(); //sum of the values
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Finds the bucket of a value.
+     * @author Arjun Deshpande
+     * @param value the value, not negative
+     * @return the bucket index
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the largest value that falls in a bucket.
+     * @author Arjun Deshpande
+     * @param bucket the bucket index
+     * @return the bucket's highest value
+     */
+    private static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Records one value.
+     * @author Arjun Deshpande
+     * @param value the latency in nanoseconds; negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Gets the number of values recorded.
+     * @author Arjun Deshpande
+     * @return the count
+     */
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    /**
+     * Gets the mean of the values recorded.
+     * @author Arjun Deshpande
+     * @return the mean, or 0 if nothing was recorded
+     */
+    public double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /**
+     * Gets the largest value recorded.
+     * @author Arjun Deshpande
+     * @return the exact maximum
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Gets the value at a percentile: the highest value of the bucket that holds it,
+     * capped at the maximum. Values recorded while this runs may or may not be counted.
+     * @author Arjun Deshpande
+     * @param percentile from 0 to 100
+     * @return the value, or 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += snapshot[i] = counts.get(i);
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(highest(i), max());
+        }
+        return max();
+    }
+
+    /**
+     * Testbed main method: records known values, checks the percentiles are within
+     * the bucket precision, and times record() on several threads.
+     * @author Arjun Deshpande
+     * @param args not used
+     * @throws InterruptedException if interrupted while joining the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 1_000_000; v++) histogram.record(v);
+        for (double p : new double[] {50, 90, 99, 99.9, 100}) {
+            long expected = (long) (p / 100 * 1_000_000);
+            long got = histogram.percentile(p);
+            System.out.printf("p%s: %d (exact %d) %s%n", p, got, expected,
+                    Math.abs(got - expected) <= expected / SUB_BUCKETS + 1 ? "PASS" : "FAIL");
+        }
+        System.out.printf("count %d, mean %.1f, max %d%n", histogram.count(), histogram.mean(), histogram.max());
+        LatencyHistogram shared = new LatencyHistogram();
+        int threads = 4;
+        int perThread = 5_000_000;
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) shared.record(i & 0xFFFF);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%d records on %d threads: %d ns each, count %s%n", threads * perThread, threads,
+                elapsed / ((long) threads * perThread), shared.count() == (long) threads * perThread ? "PASS" : "FAIL");
+    }//testbed
+}//end class LatencyHistogram
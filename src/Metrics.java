@@ -0,0 +1,238 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+/**
+ * Counters and latency histograms for one database and every session on it: how many
+ * times each command ran, how often it failed, how long it took, and how many opens,
+ * closes, postings, insufficient-funds refusals and money market downgrades happened.
+ * Everything is a LongAdder or a LatencyHistogram, so recording takes no locks.
+ * The numbers are printed by the S command and published over JMX by register().
+ * @author Arjun Deshpande
+ */
+public class Metrics implements MetricsMXBean {
+    public static final String OBJECT_NAME = "bank:type=Metrics";
+    private static final String[] COMMANDS = CommandTokenizer.COMMANDS;
+    private static final int UNKNOWN = COMMANDS.length; //slot for lines that are not a command
+    private static final double NANOS_PER_MICRO = 1_000.0;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length + 1];
+    private final LongAdder[] errors = new LongAdder[COMMANDS.length + 1];
+    private final LongAdder opens = new LongAdder();
+    private final LongAdder closes = new LongAdder();
+    private final LongAdder deposits = new LongAdder();
+    private final LongAdder withdrawals = new LongAdder();
+    private final LongAdder insufficientFunds = new LongAdder();
+    private final LongAdder downgrades = new LongAdder();
+
+    /**
+     * Creates empty metrics.
+     * @author Arjun Deshpande
+     */
+    public Metrics() {
+        for (int i = 0; i <= UNKNOWN; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }//end constructor
+
+    /**
+     * Finds the slot of a command. Known commands are the tokenizer's shared constants,
+     * so they are matched by identity.
+     * @author Arjun Deshpande
+     * @param command the command name
+     * @return the slot, or UNKNOWN
+     */
+    private static int slot(String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i] == command) return i;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Gets the display name of a slot.
+     * @author Arjun Deshpande
+     * @param slot the slot
+     * @return the command name, or ? for lines that are not a command
+     */
+    private static String name(int slot) {
+        return slot == UNKNOWN ? "?" : COMMANDS[slot];
+    }
+
+    /**
+     * Records one command.
+     * @author Arjun Deshpande
+     * @param command the command name, as returned by CommandTokenizer.nextCommand
+     * @param nanos how long it took, including the wait for its commit
+     * @param failed true if it ended in a processing error
+     */
+    public void recordCommand(String command, long nanos, boolean failed) {
+        int slot = slot(command);
+        latencies[slot].record(nanos);
+        if (failed) errors[slot].increment();
+    }
+
+    /**
+     * Records an account being opened.
+     * @author Arjun Deshpande
+     */
+    public void recordOpen() {
+        opens.increment();
+    }
+
+    /**
+     * Records an account being closed.
+     * @author Arjun Deshpande
+     */
+    public void recordClose() {
+        closes.increment();
+    }
+
+    /**
+     * Records a posting.
+     * @author Arjun Deshpande
+     * @param type D, W, I or F; interest and fees are counted by MonthEnd instead
+     * @param refused true if a withdrawal was refused for insufficient funds
+     */
+    public void recordPosting(char type, boolean refused) {
+        if (refused) insufficientFunds.increment();
+        else if (type == 'D') deposits.increment();
+        else if (type == 'W') withdrawals.increment();
+    }
+
+    /**
+     * Records a money market account being downgraded to savings.
+     * @author Arjun Deshpande
+     */
+    public void recordDowngrade() {
+        downgrades.increment();
+    }
+
+    /**
+     * Converts nanoseconds to whole microseconds, rounding up so a nonzero latency
+     * never shows as 0.
+     * @author Arjun Deshpande
+     * @param nanos the nanoseconds
+     * @return the microseconds
+     */
+    private static long micros(long nanos) {
+        return (long) Math.ceil(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * Collects one number per command that has run.
+     * @author Arjun Deshpande
+     * @param what 'n' count, 'e' errors, '5' p50, '9' p99, 'm' max
+     * @return the numbers by command name, in command order
+     */
+    private Map<String, Long> byCommand(char what) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i <= UNKNOWN; i++) {
+            LatencyHistogram histogram = latencies[i];
+            if (histogram.count() == 0) continue;
+            long value;
+            switch (what) {
+                case 'n': value = histogram.count(); break;
+                case 'e': value = errors[i].sum(); break;
+                case '5': value = micros(histogram.percentile(50)); break;
+                case '9': value = micros(histogram.percentile(99)); break;
+                default: value = micros(histogram.max());
+            }
+            values.put(name(i), value);
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return byCommand('n');
+    }
+
+    @Override
+    public Map<String, Long> getCommandErrors() {
+        return byCommand('e');
+    }
+
+    @Override
+    public Map<String, Long> getP50Micros() {
+        return byCommand('5');
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return byCommand('9');
+    }
+
+    @Override
+    public Map<String, Long> getMaxMicros() {
+        return byCommand('m');
+    }
+
+    @Override
+    public long getOpens() {
+        return opens.sum();
+    }
+
+    @Override
+    public long getCloses() {
+        return closes.sum();
+    }
+
+    @Override
+    public long getDeposits() {
+        return deposits.sum();
+    }
+
+    @Override
+    public long getWithdrawals() {
+        return withdrawals.sum();
+    }
+
+    @Override
+    public long getInsufficientFunds() {
+        return insufficientFunds.sum();
+    }
+
+    @Override
+    public long getDowngrades() {
+        return downgrades.sum();
+    }
+
+    /**
+     * Prints a line per command that has run, then the account counters.
+     * @author Arjun Deshpande
+     * @param out where to print
+     */
+    public void print(PrintStream out) {
+        out.println("*Command statistics (latency in microseconds).");
+        for (int i = 0; i <= UNKNOWN; i++) {
+            LatencyHistogram histogram = latencies[i];
+            long count = histogram.count();
+            if (count == 0) continue;
+            out.printf("%-2s count %d, errors %d, mean %.1f, p50 %d, p99 %d, p99.9 %d, max %d%n", name(i), count,
+                    errors[i].sum(), histogram.mean() / NANOS_PER_MICRO, micros(histogram.percentile(50)),
+                    micros(histogram.percentile(99)), micros(histogram.percentile(99.9)), micros(histogram.max()));
+        }
+        out.printf("opens %d, closes %d, deposits %d, withdrawals %d, insufficient funds %d, downgrades %d%n",
+                getOpens(), getCloses(), getDeposits(), getWithdrawals(), getInsufficientFunds(), getDowngrades());
+        out.println("*end of statistics.");
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server as bank:type=Metrics,
+     * replacing metrics registered there before.
+     * @author Arjun Deshpande
+     * @throws JMException if the MBean cannot be registered
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) server.unregisterMBean(name);
+        server.registerMBean(this, name);
+    }
+}//end class Metrics
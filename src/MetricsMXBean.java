@@ -0,0 +1,29 @@
+import java.util.Map;
+/**
+ * The JMX view of a database's Metrics, registered as bank:type=Metrics.
+ * Latencies are in microseconds and keyed by command name.
+ * @author Arjun Deshpande
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getCommandErrors();
+
+    Map<String, Long> getP50Micros();
+
+    Map<String, Long> getP99Micros();
+
+    Map<String, Long> getMaxMicros();
+
+    long getOpens();
+
+    long getCloses();
+
+    long getDeposits();
+
+    long getWithdrawals();
+
+    long getInsufficientFunds();
+
+    long getDowngrades();
+}//end interface MetricsMXBean
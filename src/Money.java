@@ -0,0 +1,150 @@
+/**
+ * Fixed-point money helpers. Amounts are kept as a long number of cents so that
+ * balances stay exact over any number of postings, and are parsed straight from
+ * the command characters without going through a double.
+ * @author Aryaman Urs
+ */
+public final class Money {
+    public static final long INVALID = Long.MIN_VALUE; //returned when an amount does not parse
+    public static final long MAX_CENTS = 99_999_999_999_999_999L; //the largest amount, 15 digits of dollars
+    private static final int CENTS_PER_DOLLAR = 100;
+    private static final int MAX_DIGITS = 15; //more digits than this could overflow a long of cents
+
+    private Money() {
+    }
+
+    /**
+     * Parses an amount like "125", "-3.5" or "10.257" into cents, rounding half up past
+     * the second decimal place. Anything else Double.parseDouble accepts (e.g. "1e3") is
+     * handed to it as a fallback so the accepted inputs stay the same as before.
+     * Amounts larger than MAX_CENTS are not valid; negative ones of any size come back
+     * negative, so they are refused as negative rather than as not a number.
+     * @author Aryaman Urs
+     * @param chars the characters holding the amount
+     * @param start the index of the first character
+     * @param end the index after the last character
+     * @return the amount in cents, or INVALID if it is not a number
+     */
+    public static long parseCents(char[] chars, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) negative = chars[i++] == '-';
+        long dollars = 0;
+        long cents = 0;
+        int digits = 0;
+        while (i < end && chars[i] >= '0' && chars[i] <= '9') {
+            dollars = dollars * 10 + (chars[i++] - '0');
+            digits++;
+        }
+        int fraction = 0;
+        if (i < end && chars[i] == '.') {
+            i++;
+            while (i < end && chars[i] >= '0' && chars[i] <= '9') {
+                if (fraction < 2) cents = cents * 10 + (chars[i] - '0');
+                else if (fraction == 2 && chars[i] >= '5') cents++; //round half up
+                fraction++;
+                i++;
+            }
+        }
+        if (i != end || digits + fraction == 0 || digits > MAX_DIGITS) return parseFallback(chars, start, end);
+        for (; fraction < 2; fraction++) cents *= 10;
+        long total = dollars * CENTS_PER_DOLLAR + cents;
+        return negative ? -total : total;
+    } //parseCents
+
+    /**
+     * Parses an amount through Double.parseDouble for the unusual forms the fast path skips.
+     * @author Aryaman Urs
+     * @param chars the characters holding the amount
+     * @param start the index of the first character
+     * @param end the index after the last character
+     * @return the amount in cents, at least -MAX_CENTS, or INVALID if it is not a finite
+     *         number or is larger than MAX_CENTS
+     */
+    private static long parseFallback(char[] chars, int start, int end) {
+        try {
+            double amount = Double.parseDouble(new String(chars, start, end - start));
+            if (Double.isNaN(amount) || Double.isInfinite(amount)) return INVALID;
+            double cents = amount * CENTS_PER_DOLLAR;
+            if (cents > MAX_CENTS) return INVALID;
+            if (cents < -MAX_CENTS) return -MAX_CENTS; //Math.round would saturate into INVALID
+            return Math.round(cents);
+        } catch (NumberFormatException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Parses an amount string into cents.
+     * @author Aryaman Urs
+     * @param amount the amount string
+     * @return the amount in cents, or INVALID if it is not a number
+     */
+    public static long parseCents(String amount) {
+        return parseCents(amount.toCharArray(), 0, amount.length());
+    }
+
+    /**
+     * Converts cents to a double, for messages that echo the amount the way it used to be printed.
+     * @author Aryaman Urs
+     * @param cents the amount in cents
+     * @return the amount in dollars
+     */
+    public static double toDollars(long cents) {
+        return (double) cents / CENTS_PER_DOLLAR;
+    }
+
+    /**
+     * Appends an amount with exactly two decimal places, e.g. 123456 -> "1234.56".
+     * @author Aryaman Urs
+     * @param sb the builder to append to
+     * @param cents the amount in cents
+     * @return the same builder
+     */
+    public static StringBuilder append(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % CENTS_PER_DOLLAR;
+        sb.append(cents / CENTS_PER_DOLLAR).append('.');
+        if (fraction < 10) sb.append('0');
+        return sb.append(fraction);
+    }
+
+    /**
+     * Formats an amount with exactly two decimal places.
+     * @author Aryaman Urs
+     * @param cents the amount in cents
+     * @return the formatted amount
+     */
+    public static String format(long cents) {
+        return append(new StringBuilder(24), cents).toString();
+    }
+
+    /**
+     * Testbed main method checking exactness and timing the cents path against
+     * the double + String.format path it replaces.
+     * @author Aryaman Urs
+     * @param args the number of postings to time; defaults to 10 million
+     */
+    public static void main(String[] args) {
+        int postings = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        char[] amount = "0.10".toCharArray();
+        double doubleBalance = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < postings; i++) doubleBalance += Double.parseDouble("0.10");
+        String doubleText = String.format("%.2f", doubleBalance);
+        long doubleNs = System.nanoTime() - start;
+        long centsBalance = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < postings; i++) centsBalance += parseCents(amount, 0, amount.length);
+        String centsText = format(centsBalance);
+        long centsNs = System.nanoTime() - start;
+        System.out.println(postings + " deposits of 0.10");
+        System.out.println("double: " + doubleText + " (raw " + doubleBalance + ") in " + doubleNs / 1_000_000 + " ms");
+        System.out.println("cents:  " + centsText + " in " + centsNs / 1_000_000 + " ms");
+        System.out.println(format(parseCents("10.255")) + " " + format(parseCents("-0.5")) + " " + format(parseCents("1e3"))); //10.26 -0.50 1000.00
+        System.out.println((parseCents("1e300") == INVALID) + " " + (parseCents("-1e300") < 0 && parseCents("-1e300") != INVALID)); //true true
+    }//testbed
+}//end class Money
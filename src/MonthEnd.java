@@ -0,0 +1,184 @@
+import java.util.concurrent.atomic.LongAdder;
+/**
+ * The month-end rules: monthly interest by account type, with a loyalty rate, and
+ * monthly fees that are waived above a minimum balance. AccountDatabase.monthEnd runs
+ * them over every open account in one parallel pass; each interest payment and fee is
+ * posted as an activity ('I' or 'F') in the account's ledger. The totals are summed
+ * with LongAdders so the parallel workers do not contend on them.
+ * <p>
+ * Rates, per year: checking 1.5%; savings 2.5%, or 2.75% if the holder also has a
+ * checking account; money market 3.5%, or 3.75% with a balance of $5,000 or more.
+ * Fees, per month: checking $12 under $1,000; savings $25 under $500; money market
+ * $25 under the $2,000 minimum, plus $10 for more than 3 withdrawals in the month.
+ * @author Arjun Deshpande
+ */
+public class MonthEnd {
+    private static final long CHECKING_RATE = 150; //basis points per year
+    private static final long SAVINGS_RATE = 250;
+    private static final long SAVINGS_LOYAL_RATE = 275;
+    private static final long MONEY_MARKET_RATE = 350;
+    private static final long MONEY_MARKET_LOYAL_RATE = 375;
+    private static final long MONEY_MARKET_LOYAL_BALANCE = 500_000; //$5000 in cents
+    private static final long CHECKING_FEE = 1_200;
+    private static final long CHECKING_WAIVER = 100_000;
+    private static final long SAVINGS_FEE = 2_500;
+    private static final long SAVINGS_WAIVER = 50_000;
+    private static final long MONEY_MARKET_FEE = 2_500;
+    private static final long EXCESS_WITHDRAWAL_FEE = 1_000;
+    private static final int FREE_WITHDRAWALS = 3;
+    private static final long BASIS_POINT_MONTHS = 10_000 * 12; //bps per year -> fraction per month
+
+    private final LongAdder settled = new LongAdder();
+    private final LongAdder interestPaid = new LongAdder();
+    private final LongAdder feesCharged = new LongAdder();
+    private final LongAdder notDowngraded = new LongAdder();
+
+    /**
+     * Computes one month of interest on the current balance, rounded half up to the cent.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @param holderHasChecking true if the holder also has an open checking account
+     * @return the interest, in cents
+     */
+    public long interest(Account account, boolean holderHasChecking) {
+        long rate;
+        switch (account.getType()) {
+            case CHECKING: rate = CHECKING_RATE; break;
+            case SAVINGS: rate = holderHasChecking ? SAVINGS_LOYAL_RATE : SAVINGS_RATE; break;
+            default:
+                rate = account.getBalance() >= MONEY_MARKET_LOYAL_BALANCE ? MONEY_MARKET_LOYAL_RATE : MONEY_MARKET_RATE;
+        }
+        return (account.getBalance() * rate + BASIS_POINT_MONTHS / 2) / BASIS_POINT_MONTHS;
+    }
+
+    /**
+     * Computes the month's fee on the current balance and the month's withdrawals.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @param date the packed yyyymmdd month-end date
+     * @return the fee, in cents
+     */
+    public long fee(Account account, int date) {
+        long balance = account.getBalance();
+        switch (account.getType()) {
+            case CHECKING: return balance >= CHECKING_WAIVER ? 0 : CHECKING_FEE;
+            case SAVINGS: return balance >= SAVINGS_WAIVER ? 0 : SAVINGS_FEE;
+            default:
+                long fee = balance >= AccountDatabase.MONEY_MARKET_MINIMUM ? 0 : MONEY_MARKET_FEE;
+                if (withdrawalsInMonth(account.getActivities(), date) > FREE_WITHDRAWALS) fee += EXCESS_WITHDRAWAL_FEE;
+                return fee;
+        }
+    }
+
+    /**
+     * Counts the withdrawals from the first of the month up to the given date.
+     * @author Arjun Deshpande
+     * @param ledger the account's ledger, or null if it has none
+     * @param date the packed yyyymmdd date
+     * @return the number of withdrawals
+     */
+    private static int withdrawalsInMonth(ActivityLedger ledger, int date) {
+        int count = 0;
+        if (ledger == null) return count;
+        for (int i = ledger.upperBound(date / 100 * 100), end = ledger.upperBound(date); i < end; i++) {
+            if (ledger.typeAt(i) == 'W') count++;
+        }
+        return count;
+    }
+
+    /**
+     * Adds one settled account to the totals.
+     * @author Arjun Deshpande
+     * @param interest the interest paid, in cents
+     * @param fee the fee charged, in cents
+     */
+    public void record(long interest, long fee) {
+        settled.increment();
+        interestPaid.add(interest);
+        feesCharged.add(fee);
+    }
+
+    /**
+     * Counts a money market account left under the minimum because its branch has no
+     * savings number left to downgrade it to.
+     * @author Arjun Deshpande
+     */
+    public void recordNotDowngraded() {
+        notDowngraded.increment();
+    }
+
+    /**
+     * Gets the number of accounts settled.
+     * @author Arjun Deshpande
+     * @return the number of accounts
+     */
+    public long getSettled() {
+        return settled.sum();
+    }
+
+    /**
+     * Gets the total interest paid.
+     * @author Arjun Deshpande
+     * @return the interest, in cents
+     */
+    public long getInterestPaid() {
+        return interestPaid.sum();
+    }
+
+    /**
+     * Gets the total fees charged.
+     * @author Arjun Deshpande
+     * @return the fees, in cents
+     */
+    public long getFeesCharged() {
+        return feesCharged.sum();
+    }
+
+    /**
+     * Summarizes the pass.
+     * @author Arjun Deshpande
+     * @return the accounts settled, interest paid and fees charged
+     */
+    @Override
+    public String toString() {
+        long stuck = notDowngraded.sum();
+        return getSettled() + " accounts, interest $" + Money.format(getInterestPaid())
+                + ", fees $" + Money.format(getFeesCharged())
+                + (stuck > 0 ? ", " + stuck + " money market accounts under the minimum not downgraded - no savings numbers left" : "");
+    }
+
+    /**
+     * Testbed main method: runs month-end over a generated book and checks the pass
+     * against its time budget, scaled from 10 seconds per 10 million accounts.
+     * @author Arjun Deshpande
+     * @param args the number of accounts (default, and at most, AccountNumbers.CAPACITY)
+     */
+    public static void main(String[] args) {
+        final long BUDGET_NS_PER_ACCOUNT = 1_000; //10 s for 10M accounts
+        int n = Math.min(args.length > 0 ? Integer.parseInt(args[0]) : Integer.MAX_VALUE, AccountNumbers.CAPACITY);
+        AccountDatabase database = new AccountDatabase();
+        Account[] book = new Account[n];
+        long expected = 0;
+        for (int i = 0; i < n; i++) {
+            long balance = 10_000 + (i * 7919L) % 1_000_000;
+            Account account = book[i] = new Account(AccountNumbers.unpack(AccountNumbers.distinct(i)),
+                    new Profile("First" + i, "Last" + i, new Date(1, 1, 1980)), balance);
+            database.add(account);
+            expected += balance;
+        }
+        for (int round = 0; round < 2; round++) {
+            MonthEnd rules = new MonthEnd();
+            long start = System.nanoTime();
+            database.monthEnd(rules, round == 0 ? 20240131 : 20240229);
+            long elapsed = System.nanoTime() - start;
+            expected += rules.getInterestPaid() - rules.getFeesCharged();
+            long budget = BUDGET_NS_PER_ACCOUNT * n;
+            System.out.printf("month-end over %d accounts on %d threads: %d ms (%d ns/account, budget %d ms) %s; %s%n",
+                    n, Runtime.getRuntime().availableProcessors(), elapsed / 1_000_000, elapsed / n,
+                    budget / 1_000_000, elapsed <= budget ? "PASS" : "OVER BUDGET", rules);
+        }
+        long total = 0;
+        for (Account account : book) total += account.getBalance();
+        System.out.println("book balances add up: " + (total == expected ? "PASS" : "FAIL"));
+    }//testbed
+}//end class MonthEnd
@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+/**
+ * Hands out account numbers without collisions. Each branch and type has its own
+ * 10,000 sequence numbers and a bitmap of the ones taken; drawing a number claims
+ * the first free bit after the previous draw with a compare-and-set, so
+ * concurrent opens never draw the same number and never take a lock. A number is
+ * freed when a refused open gives it back, or when an account changes type and leaves
+ * its old number; AccountDatabase keeps the numbers of closed accounts taken, because
+ * its archive finds them by number. Because the search goes round from the previous
+ * draw, fresh numbers are used before freed ones, and a freed number comes back last.
+ * Numbers opened some other way, e.g. recovered from a log or archive, are reserved.
+ * @author Arjun Deshpande
+ */
+public class NumberSequence {
+    private static final int WORDS = (AccountNumbers.SEQUENCES + 63) / 64; //bitmap words per branch and type
+    private static final long LAST_WORD = -1L >>> (64 * WORDS - AccountNumbers.SEQUENCES); //bits of the last word in use
+    private static final int TYPES = AccountType.values().length;
+
+    private final AtomicLongArray used = new AtomicLongArray(Branch.values().length * TYPES * WORDS); //bit set while taken
+    private final AtomicIntegerArray cursor = new AtomicIntegerArray(Branch.values().length * TYPES); //where the next search starts
+
+    /**
+     * Draws a free number of a branch and type.
+     * @author Arjun Deshpande
+     * @param branch the branch
+     * @param type the account type
+     * @return the packed number, or AccountNumbers.INVALID if all 10,000 are open
+     */
+    public int next(Branch branch, AccountType type) {
+        int kind = branch.ordinal() * TYPES + type.ordinal();
+        int start = cursor.get(kind);
+        int first = start >>> 6;
+        for (int n = 0; n <= WORDS; n++) { //the start word comes round again for the bits below the start
+            int w = (first + n) % WORDS;
+            int at = kind * WORDS + w;
+            long valid = w == WORDS - 1 ? LAST_WORD : -1L;
+            if (n == 0) valid &= -1L << (start & 63);
+            long word = used.get(at);
+            long free;
+            while ((free = ~word & valid) != 0) {
+                long bit = Long.lowestOneBit(free);
+                if (used.compareAndSet(at, word, word | bit)) {
+                    int sequence = w * 64 + Long.numberOfTrailingZeros(bit);
+                    cursor.set(kind, (sequence + 1) % AccountNumbers.SEQUENCES);
+                    return AccountNumbers.compose(branch, type, sequence);
+                }
+                word = used.get(at);
+            }
+        }
+        return AccountNumbers.INVALID;
+    }//next
+
+    /**
+     * Claims a particular number if it is free.
+     * @author Arjun Deshpande
+     * @param packed the packed number
+     * @return true if it was free and is now in use, false if it was already in use
+     */
+    public boolean claim(int packed) {
+        int at = word(packed);
+        if (at < 0) return false;
+        long bit = 1L << (AccountNumbers.sequenceOf(packed) & 63);
+        return (used.getAndUpdate(at, word -> word | bit) & bit) == 0;
+    }
+
+    /**
+     * Marks a number as used, so it is not drawn while its account is open.
+     * @author Arjun Deshpande
+     * @param packed the packed number
+     */
+    public void reserve(int packed) {
+        claim(packed);
+    }
+
+    /**
+     * Frees the number of an account that closed or changed type, so it can be drawn again.
+     * @author Arjun Deshpande
+     * @param packed the packed number
+     */
+    public void release(int packed) {
+        int at = word(packed);
+        if (at < 0) return;
+        long bit = 1L << (AccountNumbers.sequenceOf(packed) & 63);
+        used.getAndUpdate(at, word -> word & ~bit);
+    }
+
+    /**
+     * Finds the bitmap word of a number.
+     * @author Arjun Deshpande
+     * @param packed the packed number
+     * @return the index of its word, or -1 if the branch or type digits are not valid
+     */
+    private static int word(int packed) {
+        Branch branch = AccountNumbers.branchOf(packed);
+        AccountType type = AccountNumbers.typeOf(packed);
+        if (branch == null || type == null) return -1;
+        return (branch.ordinal() * TYPES + type.ordinal()) * WORDS + (AccountNumbers.sequenceOf(packed) >>> 6);
+    }
+}//end class NumberSequence
@@ -0,0 +1,271 @@
+import java.util.Arrays;
+/**
+ * Interns account holders. Each holder that has open accounts gets one entry, found by
+ * a hash of the profile computed once, without building the profile's string, and the
+ * entry lists that holder's accounts directly. Finding a holder's account of a type,
+ * or all of a holder's accounts, costs time in the number of accounts the holder has,
+ * not the size of the book.
+ * Accounts whose holder is spelled exactly like the interned profile share it, so a
+ * holder with several accounts keeps one copy of the name Strings; a holder spelled in
+ * a different case keeps its own profile, so reports print it as it was entered.
+ * Not thread-safe; AccountDatabase guards it with its structure lock.
+ * @author Arjun Deshpande
+ */
+public class ProfileTable {
+    private static final int INITIAL_BUCKETS = 16; //must be a power of 2
+    private static final int INITIAL_ACCOUNTS = 3; //one of each type
+
+    private Holder[] buckets = new Holder[INITIAL_BUCKETS];
+    private int size;
+
+    /**
+     * Defines an interned holder and the open accounts it has.
+     * @author Arjun Deshpande
+     */
+    public static class Holder {
+        private final Profile profile;
+        private final int hash;
+        private Account[] accounts = new Account[INITIAL_ACCOUNTS];
+        private int count;
+        private Holder next;
+
+        Holder(Profile profile, int hash, Holder next) {
+            this.profile = profile;
+            this.hash = hash;
+            this.next = next;
+        }
+
+        /**
+         * Gets the interned profile.
+         * @author Arjun Deshpande
+         * @return the profile
+         */
+        public Profile getProfile() {
+            return profile;
+        }
+
+        /**
+         * Finds the holder's account of a type.
+         * @author Arjun Deshpande
+         * @param type the account type
+         * @return the first such account, or null
+         */
+        public Account find(AccountType type) {
+            for (int i = 0; i < count; i++) {
+                if (accounts[i].getType() == type) return accounts[i];
+            }
+            return null;
+        }
+
+        /**
+         * Copies out the holder's accounts, oldest first.
+         * @author Arjun Deshpande
+         * @return the accounts
+         */
+        public Account[] getAccounts() {
+            return Arrays.copyOf(accounts, count);
+        }
+
+        /**
+         * Gets the number of accounts the holder has.
+         * @author Arjun Deshpande
+         * @return the number of accounts
+         */
+        public int size() {
+            return count;
+        }
+    }//end klasse
+
+    /**
+     * Hashes a profile the way Profile.equals compares it: names ignoring case, and
+     * the date of birth.
+     * @author Arjun Deshpande
+     * @param profile the profile
+     * @return the spread hash code
+     */
+    static int hash(Profile profile) {
+        int h = 0;
+        String first = profile.getFname();
+        String last = profile.getLname();
+        for (int i = 0; i < first.length(); i++) h = 31 * h + Character.toLowerCase(first.charAt(i));
+        h = 31 * h + ' ';
+        for (int i = 0; i < last.length(); i++) h = 31 * h + Character.toLowerCase(last.charAt(i));
+        h = 31 * h + profile.getDob().hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds the entry of a holder.
+     * @author Arjun Deshpande
+     * @param profile the holder profile
+     * @return the entry, or null if the holder has no open accounts
+     */
+    public Holder find(Profile profile) {
+        int h = hash(profile);
+        for (Holder holder = buckets[h & (buckets.length - 1)]; holder != null; holder = holder.next) {
+            if (holder.hash == h && holder.profile.equals(profile)) return holder;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the account a holder has of a type.
+     * @author Arjun Deshpande
+     * @param profile the holder profile
+     * @param type the account type
+     * @return the account, or null if the holder has none of that type
+     */
+    public Account find(Profile profile, AccountType type) {
+        Holder holder = find(profile);
+        return holder == null ? null : holder.find(type);
+    }
+
+    /**
+     * Adds an account to its holder's entry, interning the holder if it is new. If the
+     * account's profile is spelled exactly like the interned one, the account is
+     * switched over to the interned profile.
+     * @author Arjun Deshpande
+     * @param account the account
+     */
+    public void add(Account account) {
+        Profile profile = account.getHolder();
+        Holder holder = find(profile);
+        if (holder == null) {
+            if (size + 1 > buckets.length * 3 / 4) resize();
+            int h = hash(profile);
+            int b = h & (buckets.length - 1);
+            holder = buckets[b] = new Holder(profile, h, buckets[b]);
+            size++;
+        } else if (profile != holder.profile && sameSpelling(profile, holder.profile)) {
+            account.setHolder(holder.profile);
+        }
+        if (holder.count == holder.accounts.length) holder.accounts = Arrays.copyOf(holder.accounts, holder.count * 2);
+        holder.accounts[holder.count++] = account;
+    } //add
+
+    /**
+     * Removes an account from its holder's entry, and drops the entry once the holder
+     * has no accounts left.
+     * @author Arjun Deshpande
+     * @param account the account, matched by identity
+     * @return true if the account was listed
+     */
+    public boolean remove(Account account) {
+        Holder holder = find(account.getHolder());
+        if (holder == null) return false;
+        int i = 0;
+        while (i < holder.count && holder.accounts[i] != account) i++;
+        if (i == holder.count) return false;
+        System.arraycopy(holder.accounts, i + 1, holder.accounts, i, holder.count - i - 1);
+        holder.accounts[--holder.count] = null;
+        if (holder.count == 0) unlink(holder);
+        return true;
+    } //remove
+
+    /**
+     * Takes an empty entry out of its bucket.
+     * @author Arjun Deshpande
+     * @param holder the entry
+     */
+    private void unlink(Holder holder) {
+        int b = holder.hash & (buckets.length - 1);
+        if (buckets[b] == holder) {
+            buckets[b] = holder.next;
+        } else {
+            Holder prev = buckets[b];
+            while (prev.next != holder) prev = prev.next;
+            prev.next = holder.next;
+        }
+        size--;
+    }
+
+    /**
+     * Doubles the buckets.
+     * @author Arjun Deshpande
+     */
+    private void resize() {
+        Holder[] bigger = new Holder[buckets.length * 2];
+        for (Holder head : buckets) {
+            for (Holder holder = head; holder != null; ) {
+                Holder next = holder.next;
+                int b = holder.hash & (bigger.length - 1);
+                holder.next = bigger[b];
+                bigger[b] = holder;
+                holder = next;
+            }
+        }
+        buckets = bigger;
+    }
+
+    /**
+     * Checks if two equal profiles are also spelled the same, case included.
+     * @author Arjun Deshpande
+     * @param a one profile
+     * @param b the other profile
+     * @return true if they print the same
+     */
+    private static boolean sameSpelling(Profile a, Profile b) {
+        return a.getFname().equals(b.getFname()) && a.getLname().equals(b.getLname());
+    }
+
+    /**
+     * Gets the number of interned holders.
+     * @author Arjun Deshpande
+     * @return the number of holders with open accounts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Measures the heap in use after a full collection.
+     * @author Arjun Deshpande
+     * @return the bytes in use
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Testbed main method: opens three accounts per holder, each with its own copy of
+     * the holder's profile as the command parser would make, and measures the heap
+     * they take with and without interning.
+     * @author Arjun Deshpande
+     * @param args the number of holders (default 300000)
+     */
+    public static void main(String[] args) {
+        int holders = args.length > 0 ? Integer.parseInt(args[0]) : 300_000;
+        AccountType[] types = AccountType.values();
+        Branch[] branches = Branch.values();
+        long[] heap = new long[2];
+        for (int round = 0; round < 2; round++) {
+            boolean intern = round == 1;
+            long before = usedHeap();
+            ProfileTable table = intern ? new ProfileTable() : null;
+            Account[] book = new Account[holders * types.length];
+            for (int i = 0; i < book.length; i++) {
+                int h = i / types.length;
+                Profile profile = new Profile(new String("Firstname" + h % 20_000), new String("Lastname" + h),
+                        Date.fromInt(19500101 + h % 50 * 10_000 + h % 12 * 100 + h % 28));
+                book[i] = new Account(new AccountNumber(branches[h % branches.length], types[i % types.length]), profile, 1_000);
+                if (intern) table.add(book[i]);
+            }
+            heap[round] = usedHeap() - before;
+            System.out.printf("%s: %d accounts, %d bytes/account%n", intern ? "interned" : "plain",
+                    book.length, heap[round] / book.length);
+            if (intern) {
+                long start = System.nanoTime();
+                int found = 0;
+                for (int i = 0; i < book.length; i++) {
+                    if (table.find(book[i].getHolder(), types[(i + 1) % types.length]) != null) found++;
+                }
+                System.out.printf("holders %d, lookups %d ns each, found %d of %d%n", table.size(),
+                        (System.nanoTime() - start) / book.length, found, book.length);
+            }
+            book = null;
+        }
+        System.out.printf("saved %d bytes/account%n", (heap[0] - heap[1]) / (holders * types.length));
+    }//testbed
+}//end class ProfileTable
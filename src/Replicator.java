@@ -0,0 +1,337 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ships a primary's transaction log to a warm Standby over a local socket.
+ * The standby first gets the snapshot taken when it attaches, then the records logged
+ * while that snapshot was being written, read back from the log file, then every batch
+ * of records the log's flusher writes after it, in the log's own record format, so it
+ * applies them with the same code as recovery. Only records already fsynced on the
+ * primary are shipped. Batches are copied into a bounded queue and a sender thread
+ * writes whatever has queued up in one go, so a flush is held up by no more than a copy.
+ * <p>
+ * The standby acknowledges the records it has applied. Once more than maxLag records
+ * are unacknowledged, or the queue is full, the flusher waits, which in turn makes
+ * commands wait for room in the log, so the standby is never more than maxLag records
+ * and one batch behind. If the standby goes away, shipping stops and the primary
+ * carries on alone.
+ * @author Arjun Deshpande
+ */
+public class Replicator implements AutoCloseable {
+    public static final long DEFAULT_MAX_LAG = 100_000; //records
+    static final int MAGIC = 0x52504C31; //"RPL1", the start of the stream
+    private static final int QUEUE_BATCHES = 8;
+    private static final int SOCKET_BUFFER = 1 << 16;
+    private static final long POLL_MS = 10;
+    private static final byte[] END = new byte[0]; //queued by close()
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final long maxLag;
+    private final ArrayBlockingQueue<byte[]> batches = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private final Object lock = new Object(); //guards everything below
+    private FileChannel snapshot; //sent first
+    private FileChannel tail; //then the records logged while it was written
+    private long tailBytes;
+    private long base; //log records before the snapshot
+    private long shipped; //log records queued for the standby, counting those before the snapshot
+    private long applied; //log records the standby has applied, counting those before the snapshot
+    private long sent; //bytes of records written to the socket
+    private long largestBatch; //the most records shipped at once, counting the tail
+    private boolean closed;
+    private IOException failure; //set if the standby went away
+    private Thread sender;
+    private Thread acker;
+
+    /**
+     * Connects to a standby listening on a loopback port.
+     * @author Arjun Deshpande
+     * @param port the standby's port
+     * @param maxLag the most records the standby may have unapplied before the primary waits
+     * @throws IOException if the standby cannot be reached
+     */
+    private Replicator(int port, long maxLag) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.maxLag = maxLag;
+    }//end constructor
+
+    /**
+     * Starts replicating a persistent database to a standby. Takes a snapshot, which the
+     * standby starts from, so it briefly holds up every command while it is captured,
+     * like any checkpoint.
+     * @author Arjun Deshpande
+     * @param database the primary database
+     * @param port the standby's loopback port
+     * @param maxLag the most records the standby may have unapplied before the primary waits
+     * @return the replicator, which the log closes when it is closed
+     * @throws IOException if the standby cannot be reached or the snapshot cannot be written
+     * @throws IllegalStateException if the database has no log, or already has a standby
+     */
+    public static Replicator attach(AccountDatabase database, int port, long maxLag) throws IOException {
+        TransactionLog log = database.getLog();
+        if (log == null) throw new IllegalStateException("only a persistent database can be replicated");
+        Replicator replicator = new Replicator(port, maxLag);
+        log.replicate(replicator);
+        database.checkpoint();
+        return replicator;
+    }
+
+    /**
+     * Starts sending, once the log has written the snapshot. Called by the log with its
+     * lock held, so no batch is flushed between the tail and the first batch shipped.
+     * @author Arjun Deshpande
+     * @param snapshot the snapshot file, open for reading
+     * @param base the number of log records before the snapshot
+     * @param tail the log generation that follows the snapshot, open for reading
+     * @param tailBytes the bytes of it that are durable
+     * @param through the number of log records once the tail is applied
+     */
+    void start(FileChannel snapshot, long base, FileChannel tail, long tailBytes, long through) {
+        synchronized (lock) {
+            this.snapshot = snapshot;
+            this.tail = tail;
+            this.tailBytes = tailBytes;
+            this.base = base;
+            shipped = through;
+            applied = base;
+            largestBatch = through - base;
+            sender = new Thread(this::sendLoop, "replica-sender");
+            acker = new Thread(this::ackLoop, "replica-acker");
+            sender.setDaemon(true);
+            acker.setDaemon(true);
+            sender.start();
+            acker.start();
+        }
+    }
+
+    /**
+     * Queues a batch the flusher has just written, waiting while the standby is too far
+     * behind or the queue is full. Called only by the log's flusher.
+     * @author Arjun Deshpande
+     * @param batch the records, from position to limit
+     * @param through the number of log records once this batch is applied
+     */
+    void ship(ByteBuffer batch, long through) {
+        synchronized (lock) {
+            while (failure == null && shipped - applied > maxLag) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (failure != null) return;
+            largestBatch = Math.max(largestBatch, through - shipped);
+            shipped = through;
+        }
+        byte[] copy = new byte[batch.remaining()];
+        batch.get(copy);
+        try {
+            while (!batches.offer(copy, POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (isFailed()) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }//ship
+
+    /**
+     * Sender thread: sends the snapshot and the tail, then each batch as it is queued,
+     * flushing the socket only once the queue is empty so batches that piled up go out together.
+     * @author Arjun Deshpande
+     */
+    private void sendLoop() {
+        try (FileChannel file = snapshot; FileChannel records = tail) {
+            long size = file.size();
+            out.writeInt(MAGIC);
+            out.writeLong(size);
+            ByteBuffer chunk = ByteBuffer.allocate(SOCKET_BUFFER);
+            send(file, size, chunk);
+            send(records, tailBytes, chunk);
+            synchronized (lock) {
+                sent += tailBytes;
+            }
+            while (true) {
+                byte[] batch = batches.take();
+                long bytes = 0;
+                do {
+                    if (batch == END) {
+                        out.flush();
+                        socket.shutdownOutput(); //the standby finishes and closes its end
+                        return;
+                    }
+                    out.write(batch);
+                    bytes += batch.length;
+                    batch = batches.poll();
+                } while (batch != null);
+                out.flush();
+                synchronized (lock) {
+                    sent += bytes;
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new IOException("interrupted while sending", e));
+        }
+    }//sendLoop
+
+    /**
+     * Copies the start of a file to the socket.
+     * @author Arjun Deshpande
+     * @param file the file
+     * @param size the bytes to send
+     * @param chunk the buffer to copy through
+     * @throws IOException if the file ends early or the socket fails
+     */
+    private void send(FileChannel file, long size, ByteBuffer chunk) throws IOException {
+        for (long at = 0; at < size; at += chunk.position()) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), size - at));
+            if (file.read(chunk, at) < 0) throw new EOFException(size + " bytes expected, the file ended at " + at);
+            out.write(chunk.array(), 0, chunk.position());
+        }
+    }
+
+    /**
+     * Acknowledgement thread: reads how many records the standby has applied and wakes
+     * the flusher if it is waiting for the standby to catch up.
+     * @author Arjun Deshpande
+     */
+    private void ackLoop() {
+        try {
+            while (true) {
+                long count = in.readLong();
+                synchronized (lock) {
+                    applied = base + count;
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                if (closed && shipped == applied) return; //the standby closed its end after the last record
+            }
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops shipping after the standby went away.
+     * @author Arjun Deshpande
+     * @param e what went wrong
+     */
+    private void fail(IOException e) {
+        synchronized (lock) {
+            if (failure != null) return;
+            failure = e;
+            lock.notifyAll();
+        }
+        System.err.println("Replication stopped: " + e.getMessage());
+        batches.clear();
+        try {
+            socket.close(); //unblocks the other thread
+        } catch (IOException ignored) {
+            //already closing
+        }
+    }
+
+    /**
+     * Checks whether shipping has stopped because the standby went away.
+     * @author Arjun Deshpande
+     * @return true if the standby is no longer being shipped to
+     */
+    public boolean isFailed() {
+        synchronized (lock) {
+            return failure != null;
+        }
+    }
+
+    /**
+     * Gets the number of records shipped to the standby but not yet applied by it.
+     * @author Arjun Deshpande
+     * @return the replication lag, in log records
+     */
+    public long getLag() {
+        synchronized (lock) {
+            return shipped - applied;
+        }
+    }
+
+    /**
+     * Gets the most records shipped at once: a flushed batch, or the tail sent after
+     * the snapshot. The lag stays within maxLag plus this.
+     * @author Arjun Deshpande
+     * @return the largest batch, in log records
+     */
+    public long getLargestBatch() {
+        synchronized (lock) {
+            return largestBatch;
+        }
+    }
+
+    /**
+     * Gets the number of records the standby has applied since its snapshot.
+     * @author Arjun Deshpande
+     * @return the records applied
+     */
+    public long getApplied() {
+        synchronized (lock) {
+            return applied - base;
+        }
+    }
+
+    /**
+     * Gets the number of bytes of records sent to the standby, not counting the snapshot.
+     * @author Arjun Deshpande
+     * @return the bytes sent
+     */
+    public long getBytesSent() {
+        synchronized (lock) {
+            return sent;
+        }
+    }
+
+    /**
+     * Sends what is queued, tells the standby the stream is over, and waits until it has
+     * acknowledged every record. Called by the log when it is closed, after its last flush.
+     * @author Arjun Deshpande
+     * @throws IOException if the socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        Thread sending;
+        Thread acking;
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            sending = sender;
+            acking = acker;
+        }
+        try {
+            if (sending != null) {
+                while (!batches.offer(END, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (isFailed()) break;
+                }
+                sending.join();
+                acking.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        socket.close();
+    }
+}//end class Replicator
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+/**
+ * Writes report lines into one reusable byte buffer and hands it to an NIO channel a
+ * large block at a time, instead of a println per account. Each account is formatted
+ * into a reused StringBuilder by Account.appendTo rather than String.format.
+ * Call flush() when the report is done; nothing reaches the channel before that
+ * unless the buffer fills.
+ * @author Arjun Deshpande
+ */
+public class ReportWriter {
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private final byte[] bytes = block.array();
+    private final StringBuilder line = new StringBuilder(128); //reused for every account
+
+    /**
+     * Creates a writer on a channel.
+     * @author Arjun Deshpande
+     * @param channel where the blocks are written
+     */
+    public ReportWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a writer on an output stream, such as a session's PrintStream, so report
+     * blocks land in the stream in order with the rest of its output.
+     * @author Arjun Deshpande
+     * @param out the stream to write to
+     */
+    public ReportWriter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    /**
+     * Writes one account as a report line.
+     * @author Arjun Deshpande
+     * @param account the account
+     * @throws IOException if a full block cannot be written
+     */
+    public void write(Account account) throws IOException {
+        line.setLength(0);
+        account.appendTo(line);
+        writeLine(line);
+    }
+
+    /**
+     * Writes a line of text followed by a newline, encoding it as UTF-8.
+     * @author Arjun Deshpande
+     * @param text the line without its newline
+     * @throws IOException if a full block cannot be written
+     */
+    public void writeLine(CharSequence text) throws IOException {
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (block.remaining() < 4) drain(); //room for the longest encoding
+            int p = block.position();
+            if (c < 0x80) {
+                bytes[p++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[p++] = (byte) (0xC0 | c >> 6);
+                bytes[p++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                bytes[p++] = (byte) (0xF0 | cp >> 18);
+                bytes[p++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                bytes[p++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                bytes[p++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                bytes[p++] = (byte) (0xE0 | c >> 12);
+                bytes[p++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[p++] = (byte) (0x80 | c & 0x3F);
+            }
+            block.position(p);
+        }
+        if (!block.hasRemaining()) drain();
+        block.put((byte) '\n');
+    } //writeLine
+
+    /**
+     * Writes out the buffered block and empties the buffer.
+     * @author Arjun Deshpande
+     * @throws IOException if the block cannot be written
+     */
+    private void drain() throws IOException {
+        block.flip();
+        while (block.hasRemaining()) channel.write(block);
+        block.clear();
+    }
+
+    /**
+     * Writes out everything buffered so far.
+     * @author Arjun Deshpande
+     * @throws IOException if the block cannot be written
+     */
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Testbed main method: formats a book of accounts through println with String.format
+     * and through a ReportWriter, both to a null stream, and compares the times.
+     * @author Arjun Deshpande
+     * @param args the number of accounts (default 1000000)
+     * @throws IOException never, the output is discarded
+     */
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Branch[] branches = Branch.values();
+        AccountType[] types = AccountType.values();
+        Account[] book = new Account[n];
+        for (int i = 0; i < n; i++) {
+            book[i] = new Account(new AccountNumber(branches[i % branches.length], types[i % types.length]),
+                    new Profile("First" + i, "Last" + i, new Date(1, 1, 1990)), 123_456 + i);
+        }
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (Account account : book) {
+                sink.println(String.format("Account#[%s] Holder[%s] Balance[$%s] Branch [%s]", account.getNumber(),
+                        account.getHolder(), Money.format(account.getBalance()), account.getNumber().getBranch().name()));
+            }
+            long formatted = System.nanoTime() - start;
+            start = System.nanoTime();
+            ReportWriter writer = new ReportWriter(sink);
+            for (Account account : book) writer.write(account);
+            writer.flush();
+            long written = System.nanoTime() - start;
+            System.out.printf("round %d, %d accounts: String.format + println %d ms, ReportWriter %d ms%n",
+                    round, n, formatted / 1_000_000, written / 1_000_000);
+        }
+    }//testbed
+}//end class ReportWriter
@@ -1,5 +1,33 @@
 public class RunProject2 {
-    public static void main(String [] args) {
-        new TransactionManager().run();
+    public static void main(String [] args) throws Exception {
+        String data = null;
+        int arg = 0;
+        if (args.length > 1 && args[0].equals("-data")) { //recover from and log to a data directory
+            data = args[1];
+            arg = 2;
+        }
+        if (args.length > arg + 2 && args[arg].equals("-standby")) { //follow a primary, then serve once it is gone
+            Standby.follow(Integer.parseInt(args[arg + 1]), Integer.parseInt(args[arg + 2]), data);
+            return;
+        }
+        AccountDatabase database = data == null ? new AccountDatabase() : TransactionLog.open(data);
+        if (data != null && args.length > arg + 1 && args[arg].equals("-replicate")) { //ship the log to a standby
+            Replicator.attach(database, Integer.parseInt(args[arg + 1]), Replicator.DEFAULT_MAX_LAG);
+            arg += 2;
+        }
+        if (args.length > arg && args[arg].equals("-guard")) { //check withdrawals against the velocity rules
+            database.setGuard(new VelocityGuard());
+            arg++;
+        }
+        boolean pipelined = args.length > arg + 1 && args[arg].equals("-pipelined"); //batch file in overlapping stages
+        if (pipelined) arg++;
+        boolean batch = args.length > arg && !args[arg].equals("-server");
+        if (!batch) database.getMetrics().register(); //long-running, so watchable over JMX
+        if (args.length > arg + 1 && args[arg].equals("-server")) TransactionServer.serve(database, Integer.parseInt(args[arg + 1]));
+        else if (pipelined) new TransactionManager(database, System.in, System.out).runPipelined(args[arg]);
+        else if (batch) new TransactionManager(database, System.in, System.out).runBatch(args[arg]);
+        else new TransactionManager(database, System.in, System.out).run();
+        database.sync();
+        if (database.getLog() != null && database.getLog().getReplica() != null) database.getLog().close(); //let the standby catch up
     }
 }
\ No newline at end of file
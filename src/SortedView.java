@@ -0,0 +1,169 @@
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+/**
+ * Keeps a set of accounts sorted on one order as they are added and removed, so a
+ * report is an in-order walk instead of a sort. It is a skip list: each node is linked
+ * on level 0 and, with probability 1/4 per level, on higher levels that skip ahead,
+ * giving O(log n) adds and removes. Accounts that compare equal stay in the order
+ * they were added, like the stable insertion sort the reports used before.
+ * Not thread-safe; AccountDatabase guards it with its structure lock.
+ * @author Arjun Deshpande
+ */
+public class SortedView implements Iterable<Account> {
+    private static final int MAX_LEVEL = 24; //enough for 4^24 accounts
+
+    private final Comparator<Account> order;
+    private final Node head = new Node(null, MAX_LEVEL);
+    private final Node[] update = new Node[MAX_LEVEL]; //scratch: the predecessor on each level
+    private int level = 1; //levels in use
+    private int size;
+    private int seed = 0x2545F491;
+
+    /**
+     * Defines a skip list node.
+     * @author Arjun Deshpande
+     */
+    private static class Node {
+        final Account account;
+        final Node[] next;
+        Node(Account account, int height) {
+            this.account = account;
+            this.next = new Node[height];
+        }
+    }//end klasse
+
+    /**
+     * Creates an empty view.
+     * @author Arjun Deshpande
+     * @param order the order to keep the accounts in
+     */
+    public SortedView(Comparator<Account> order) {
+        this.order = order;
+    }
+
+    /**
+     * Picks the height of a new node: 1, then one more level with probability 1/4 each.
+     * @author Arjun Deshpande
+     * @return the height
+     */
+    private int randomHeight() {
+        seed ^= seed << 13; //xorshift
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        int height = 1;
+        for (int bits = seed; (bits & 3) == 0 && height < MAX_LEVEL; bits >>>= 2) height++;
+        return height;
+    }
+
+    /**
+     * Adds an account after every account that sorts before or equal to it.
+     * @author Arjun Deshpande
+     * @param account the account to add
+     */
+    public void add(Account account) {
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && order.compare(x.next[i].account, account) <= 0) x = x.next[i];
+            update[i] = x;
+        }
+        int height = randomHeight();
+        for (int i = level; i < height; i++) update[i] = head;
+        if (height > level) level = height;
+        Node node = new Node(account, height);
+        for (int i = 0; i < height; i++) {
+            node.next[i] = update[i].next[i];
+            update[i].next[i] = node;
+        }
+        size++;
+    } //add
+
+    /**
+     * Removes an account. Its sort key must not have changed since it was added, so
+     * re-key an account by removing it, changing it, and adding it back.
+     * @author Arjun Deshpande
+     * @param account the account to remove
+     * @return true if the account was in the view
+     */
+    public boolean remove(Account account) {
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && order.compare(x.next[i].account, account) < 0) x = x.next[i];
+            update[i] = x;
+        }
+        Node target = update[0].next[0];
+        while (target != null && target.account != account) { //walk the run of equal accounts
+            if (order.compare(target.account, account) != 0) return false;
+            target = target.next[0];
+        }
+        if (target == null) return false;
+        for (int i = 0; i < target.next.length; i++) {
+            Node prev = update[i];
+            while (prev.next[i] != target) prev = prev.next[i];
+            prev.next[i] = target.next[i];
+        }
+        while (level > 1 && head.next[level - 1] == null) level--;
+        size--;
+        return true;
+    } //remove
+
+    /**
+     * Gets the number of accounts in the view.
+     * @author Arjun Deshpande
+     * @return the number of accounts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Walks the accounts in order. The view must not change during the walk.
+     * @author Arjun Deshpande
+     * @return an iterator from the first account
+     */
+    @Override
+    public Iterator<Account> iterator() {
+        return walk(head.next[0]);
+    }
+
+    /**
+     * Walks the accounts that sort after a cursor, for continuing a paged report.
+     * The cursor need not be in the view; the walk starts at the first account that
+     * sorts strictly after it. The view must not change during the walk.
+     * @author Arjun Deshpande
+     * @param cursor the last account already reported
+     * @return an iterator from the account following the cursor
+     */
+    public Iterator<Account> after(Account cursor) {
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && order.compare(x.next[i].account, cursor) <= 0) x = x.next[i];
+        }
+        return walk(x.next[0]);
+    }
+
+    /**
+     * Walks level 0 from a node.
+     * @author Arjun Deshpande
+     * @param first the first node to return, or null
+     * @return the iterator
+     */
+    private Iterator<Account> walk(Node first) {
+        return new Iterator<Account>() {
+            private Node next = first;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Account next() {
+                if (next == null) throw new NoSuchElementException();
+                Account account = next.account;
+                next = next.next[0];
+                return account;
+            }
+        };
+    }
+}//end class SortedView
@@ -0,0 +1,340 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+/**
+ * A warm standby for a primary whose log is shipped by a Replicator. Listens on a
+ * loopback port for the primary, loads the snapshot it sends first into a database of
+ * its own, then applies each log record as it arrives with the same code recovery uses,
+ * after checking its checksum. It acknowledges how many records it has applied whenever
+ * it has caught up with what has arrived, and at least every ACK_EVERY records.
+ * <p>
+ * With a data directory, the standby starts a log of its own there from the snapshot,
+ * so its copy survives a restart too; whatever was in the directory is replaced.
+ * Promoting the standby stops following and hands over the database, which is never
+ * further behind the primary than the primary's lag bound.
+ * @author Arjun Deshpande
+ */
+public class Standby implements AutoCloseable {
+    private static final int ACK_EVERY = 1024;
+    private static final int SOCKET_BUFFER = 1 << 16;
+
+    private final ServerSocket server;
+    private final String directory;
+    private final Thread follower;
+    private volatile Socket primary;
+    private volatile AccountDatabase database;
+    private volatile long applied; //records applied since the snapshot
+    private volatile boolean promoted;
+    private volatile IOException failure;
+
+    /**
+     * Starts listening for a primary on a loopback port.
+     * @author Arjun Deshpande
+     * @param port the port to listen on, or 0 for any free port
+     * @param directory the standby's own data directory, or null to keep its copy in memory only
+     * @throws IOException if the port cannot be bound
+     */
+    public Standby(int port, String directory) throws IOException {
+        this.directory = directory;
+        this.server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1);
+        this.follower = new Thread(this::follow, "standby-follower");
+        follower.start();
+    }//end constructor
+
+    /**
+     * Gets the port the standby is listening on.
+     * @author Arjun Deshpande
+     * @return the local port
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Follower thread: accepts the primary, loads its snapshot, then applies records
+     * until the primary stops shipping or the standby is promoted.
+     * @author Arjun Deshpande
+     */
+    private void follow() {
+        long count = 0;
+        try (Socket socket = server.accept()) {
+            primary = socket;
+            server.close(); //one primary only
+            if (promoted) return; //promote() may have looked before primary was set
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), SOCKET_BUFFER));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != Replicator.MAGIC) throw new IOException("not a replication stream");
+            database = load(in, in.readLong());
+            CRC32 check = new CRC32();
+            byte[] body = new byte[256];
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length <= 0) throw new IOException("corrupt record after " + count + " records");
+                    if (length > body.length) body = new byte[Math.max(length, 2 * body.length)];
+                    in.readFully(body, 0, length);
+                    check.reset();
+                    check.update(body, 0, length);
+                    if ((int) check.getValue() != crc) throw new IOException("bad checksum after " + count + " records");
+                    TransactionLog.apply(ByteBuffer.wrap(body, 0, length), database);
+                    applied = ++count;
+                    if (count % ACK_EVERY == 0 || in.available() == 0) {
+                        out.writeLong(count);
+                        out.flush();
+                    }
+                }
+            } catch (EOFException e) {
+                //the primary stopped shipping; a record cut off halfway is dropped, like a torn log tail
+            }
+            out.writeLong(count);
+            out.flush();
+        } catch (IOException e) {
+            if (!promoted) failure = e;
+        }
+    }//follow
+
+    /**
+     * Builds the standby's database from the primary's snapshot. The snapshot is copied
+     * from the socket to a file as it arrives, the data directory's bank.snap or a
+     * temporary file, and loaded from there, so it never has to fit in the heap.
+     * @author Arjun Deshpande
+     * @param in the stream from the primary, at the snapshot
+     * @param size the bytes in the snapshot
+     * @return the database
+     * @throws IOException if the snapshot is cut off or corrupt, or cannot be written
+     */
+    private AccountDatabase load(DataInputStream in, long size) throws IOException {
+        Path file;
+        if (directory == null) {
+            file = Files.createTempFile("standby", ".snap");
+        } else {
+            Path dir = Paths.get(directory);
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, "bank.*")) {
+                for (Path old : stale) Files.delete(old); //start over from the primary's state
+            }
+            file = dir.resolve("bank.snap");
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            byte[] chunk = new byte[SOCKET_BUFFER];
+            for (long left = size; left > 0; ) {
+                int read = in.read(chunk, 0, (int) Math.min(chunk.length, left));
+                if (read < 0) throw new EOFException("snapshot cut off " + left + " bytes before its end");
+                out.write(chunk, 0, read);
+                left -= read;
+            }
+        }
+        if (directory != null) return TransactionLog.open(directory);
+        try {
+            AccountDatabase loaded = new AccountDatabase();
+            TransactionLog.readSnapshot(file, loaded);
+            return loaded;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Gets the standby's database, for reading only while it is following.
+     * @author Arjun Deshpande
+     * @return the database, or null if the snapshot has not arrived yet
+     */
+    public AccountDatabase getDatabase() {
+        return database;
+    }
+
+    /**
+     * Gets the number of records applied since the snapshot.
+     * @author Arjun Deshpande
+     * @return the records applied
+     */
+    public long getApplied() {
+        return applied;
+    }
+
+    /**
+     * Waits until the primary stops shipping, because it closed its log or went away.
+     * @author Arjun Deshpande
+     * @throws IOException if the stream from the primary was corrupt
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitPrimary() throws IOException, InterruptedException {
+        follower.join();
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Stops following and makes the standby's database the one to use. Records the
+     * primary shipped but the standby had not read yet are lost.
+     * @author Arjun Deshpande
+     * @return the database, with every change applied so far made durable
+     * @throws IOException if the primary never sent a snapshot, or the stream was corrupt
+     */
+    public AccountDatabase promote() throws IOException {
+        close();
+        if (failure != null) throw failure;
+        if (database == null) throw new IOException("the primary never sent a snapshot");
+        database.sync();
+        return database;
+    }
+
+    /**
+     * Stops following, closing the connection to the primary.
+     * @author Arjun Deshpande
+     * @throws IOException if the sockets cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        promoted = true;
+        server.close();
+        Socket socket = primary;
+        if (socket != null) socket.close();
+        try {
+            follower.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Follows a primary until it stops shipping, then promotes itself and serves the
+     * command language on a port.
+     * @author Arjun Deshpande
+     * @param port the port to listen for the primary on
+     * @param servePort the port to serve on once promoted
+     * @param directory the standby's own data directory, or null
+     * @throws IOException if a port cannot be bound or the stream was corrupt
+     * @throws InterruptedException if interrupted while following or serving
+     */
+    public static void follow(int port, int servePort, String directory) throws IOException, InterruptedException {
+        Standby standby = new Standby(port, directory);
+        System.out.println("Standby is listening for its primary on port " + standby.getPort() + ".");
+        standby.awaitPrimary();
+        AccountDatabase promoted = standby.promote();
+        System.out.println("Standby promoted after " + standby.getApplied() + " records.");
+        TransactionServer.serve(promoted, servePort);
+    }
+
+    /**
+     * Summarizes a database for comparing a primary with its standby: the number of open
+     * accounts, their total and a checksum of the full account listing.
+     * @author Arjun Deshpande
+     * @param database the database
+     * @return the summary
+     * @throws IOException if the archive cannot be read
+     */
+    private static String digest(AccountDatabase database) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+        database.print(out);
+        database.printArchive(out);
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        return database.size() + " accounts, $" + Money.format(database.getAggregates().total(null, null))
+                + ", listing crc " + Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Testbed main method: a replication harness. Starts a standby in a second process,
+     * attaches a primary to it, runs a generated command file on the primary while
+     * sampling the replication lag, then closes the primary and checks that the standby
+     * ends up with the same accounts and that the lag never went past the bound plus
+     * the largest batch shipped. With "follow" as the argument, it is the standby
+     * process instead.
+     * @author Arjun Deshpande
+     * @param args the number of command lines (default 200000) and the lag bound in records
+     *             (default Replicator.DEFAULT_MAX_LAG), or "follow"
+     * @throws Exception if the harness fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("follow")) {
+            Standby standby = new Standby(0, null);
+            System.out.println(standby.getPort());
+            System.out.flush();
+            standby.awaitPrimary();
+            System.out.println(standby.getApplied() + " records applied; " + digest(standby.getDatabase()));
+            return;
+        }
+        long lines = args.length > 0 ? Long.parseLong(args[0]) : 200_000;
+        long maxLag = args.length > 1 ? Long.parseLong(args[1]) : Replicator.DEFAULT_MAX_LAG;
+        Path dir = Files.createTempDirectory("primary");
+        Path commands = Files.createTempFile("commands", ".txt");
+        new WorkloadGenerator(2024).write(commands.toString(), lines);
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Standby", "follow")
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader fromChild = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+        int port = Integer.parseInt(fromChild.readLine().trim());
+        AccountDatabase database = TransactionLog.open(dir.toString(), Long.MAX_VALUE);
+        Replicator replicator = Replicator.attach(database, port, maxLag);
+        long[] worst = new long[1];
+        long[] samples = new long[2]; //count, sum
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                long lag = replicator.getLag();
+                worst[0] = Math.max(worst[0], lag);
+                samples[0]++;
+                samples[1] += lag;
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+        long start = System.nanoTime();
+        new TransactionManager(database, System.in, System.out).runBatch(commands.toString(), OutputStream.nullOutputStream());
+        database.sync();
+        long ran = System.nanoTime() - start;
+        database.getLog().close(); //waits until the standby has applied everything
+        long caughtUp = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+        String standbySays = fromChild.readLine();
+        child.waitFor();
+        String expected = replicator.getApplied() + " records applied; " + digest(database);
+        System.out.printf("%d lines on the primary in %d ms (%.0f lines/s); standby caught up after %d ms%n",
+                lines, ran / 1_000_000, lines * 1e9 / ran, caughtUp / 1_000_000);
+        long largest = replicator.getLargestBatch();
+        System.out.printf("shipped %d records, %.1f MB (%.1f MB/s); lag bound %d records, largest batch %d, worst sampled lag %d, mean %.0f%n",
+                replicator.getApplied(), replicator.getBytesSent() / 1e6, replicator.getBytesSent() * 1e3 / caughtUp,
+                maxLag, largest, worst[0], samples[0] == 0 ? 0.0 : (double) samples[1] / samples[0]);
+        System.out.println("primary: " + expected);
+        System.out.println("standby: " + standbySays);
+        boolean bounded = worst[0] <= maxLag + largest;
+        if (!bounded) System.out.println("worst lag " + worst[0] + " is past the bound of " + (maxLag + largest));
+        boolean passed = expected.equals(standbySays) && bounded;
+        System.out.println(passed ? "PASS" : "FAIL");
+        Files.delete(commands);
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        Files.delete(dir);
+        if (!passed) System.exit(1);
+    }//testbed
+}//end class Standby
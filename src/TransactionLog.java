@@ -0,0 +1,1010 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log and snapshots for an AccountDatabase and its archive.
+ * Every open, close, deposit, withdrawal, type change, interest payment and fee is appended to an in-memory
+ * buffer as a binary record; a flusher thread writes the buffer out and fsyncs it every
+ * couple of milliseconds, so many commands share one fsync (group commit). Commands wait
+ * in sync() until their records are durable.
+ * Every so often the whole database is written to a compact snapshot and the log starts
+ * a new generation file, so recovery only loads the latest snapshot and replays the log
+ * files written after it. Commands wait only while the snapshot is captured, not while
+ * it is written.
+ * <p>
+ * Files in the data directory: bank.snap (the latest snapshot) and bank.wal.N (log
+ * generation N). Each log record is [int length][int crc32][byte op][payload].
+ * The same records, batch by batch as they are flushed, are what a Replicator ships to
+ * a Standby.
+ * @author Arjun Deshpande
+ */
+public class TransactionLog implements AutoCloseable {
+    public static final byte OPEN = 'O';
+    public static final byte CLOSE = 'C';
+    public static final byte DEPOSIT = 'D';
+    public static final byte WITHDRAW = 'W';
+    public static final byte RETYPE = 'T';
+    public static final byte INTEREST = 'I';
+    public static final byte FEE = 'F';
+    private static final int SNAPSHOT_MAGIC = 0x424E4B31; //"BNK1"
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int HEADER = 8; //length + crc
+    private static final long FLUSH_INTERVAL_MS = 2;
+    private static final long DEFAULT_SNAPSHOT_EVERY = 1_000_000; //records between snapshots
+    private static final Branch[] BRANCHES = Branch.values();
+    private static final AccountType[] TYPES = AccountType.values();
+    public static final int MAX_NAME_BYTES = Short.MAX_VALUE; //names are stored with a short length
+
+    private final Path dir;
+    private final AccountDatabase database;
+    private final long snapshotEvery;
+    private final Object lock = new Object(); //guards everything below
+    private FileChannel channel; //the current generation
+    private int generation;
+    private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_SIZE); //records being appended
+    private ByteBuffer flushing = ByteBuffer.allocateDirect(BUFFER_SIZE); //records being written
+    private final CRC32 crc = new CRC32();
+    private int recordStart; //position of the record being written in the active buffer
+    private long appended; //records appended so far
+    private long durable; //records written and fsynced so far
+    private long durableBytes; //bytes of the current generation written and fsynced
+    private long sinceSnapshot; //records appended since the last snapshot
+    private boolean snapshotDue;
+    private boolean closed;
+    private IOException failure; //set if the flusher could not write
+    private Replicator replica; //ships every flushed batch to a standby, or null
+    private Replicator joining; //a standby waiting for the next snapshot to start from
+    private final Thread flusher;
+    private final Thread snapshotter;
+
+    /**
+     * Attaches a log to a recovered database, appending to the given generation.
+     * @author Arjun Deshpande
+     * @param dir the data directory
+     * @param database the database being logged
+     * @param generation the generation to append to
+     * @param snapshotEvery the number of records between snapshots
+     * @throws IOException if the log file cannot be opened
+     */
+    private TransactionLog(Path dir, AccountDatabase database, int generation, long snapshotEvery) throws IOException {
+        this.dir = dir;
+        this.database = database;
+        this.generation = generation;
+        this.snapshotEvery = snapshotEvery;
+        this.channel = openGeneration(generation);
+        this.durableBytes = channel.position();
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.snapshotter = new Thread(this::snapshotLoop, "wal-snapshotter");
+        flusher.setDaemon(true);
+        snapshotter.setDaemon(true);
+        flusher.start();
+        snapshotter.start();
+    }
+
+    /**
+     * Opens a log generation file for appending.
+     * @author Arjun Deshpande
+     * @param gen the generation number
+     * @return the channel, positioned at the end
+     * @throws IOException if the file cannot be opened
+     */
+    private FileChannel openGeneration(int gen) throws IOException {
+        FileChannel file = FileChannel.open(walPath(gen), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        file.position(file.size());
+        return file;
+    }
+
+    /**
+     * Gets the path of a log generation file.
+     * @author Arjun Deshpande
+     * @param gen the generation number
+     * @return the path
+     */
+    private Path walPath(int gen) {
+        return dir.resolve("bank.wal." + gen);
+    }
+
+    /**
+     * Recovers a database from a data directory and attaches a log to it.
+     * Loads the latest snapshot if there is one, replays the log generations after it,
+     * and cuts off a torn record at the end of the last generation. Only the last one can
+     * have been cut short by a crash; a bad record in an earlier one fails recovery.
+     * @author Arjun Deshpande
+     * @param directory the data directory, created if missing
+     * @return the recovered database, logging to the directory
+     * @throws IOException if the directory cannot be read, or an earlier generation is corrupt
+     */
+    public static AccountDatabase open(String directory) throws IOException {
+        return open(directory, DEFAULT_SNAPSHOT_EVERY);
+    }
+
+    /**
+     * Recovers a database from a data directory and attaches a log to it.
+     * @author Arjun Deshpande
+     * @param directory the data directory, created if missing
+     * @param snapshotEvery the number of records between snapshots
+     * @return the recovered database, logging to the directory
+     * @throws IOException if the directory cannot be read, or an earlier generation is corrupt
+     */
+    public static AccountDatabase open(String directory, long snapshotEvery) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        AccountDatabase database = new AccountDatabase();
+        int gen = readSnapshot(dir.resolve("bank.snap"), database);
+        while (Files.exists(dir.resolve("bank.wal." + (gen + 1)))) {
+            replay(dir.resolve("bank.wal." + gen), database, false);
+            gen++;
+        }
+        replay(dir.resolve("bank.wal." + gen), database, true);
+        database.setLog(new TransactionLog(dir, database, gen, snapshotEvery));
+        return database;
+    }
+
+    /**
+     * Appends an open record. It ends with the date of the opening deposit, or 0 if
+     * the ledger does not start with one, so replay records the same deposit.
+     * @author Arjun Deshpande
+     * @param account the account that was opened
+     */
+    public void logOpen(Account account) {
+        Profile holder = account.getHolder();
+        byte[] first = holder.getFname().getBytes(StandardCharsets.UTF_8);
+        byte[] last = holder.getLname().getBytes(StandardCharsets.UTF_8);
+        ActivityLedger ledger = account.getActivities();
+        boolean opening = ledger != null && ledger.size() == 1 && ledger.typeAt(0) == 'D' && ledger.amountAt(0) == account.getBalance();
+        synchronized (lock) {
+            ByteBuffer buffer = begin(OPEN, 4 + 2 + first.length + 2 + last.length + 4 + 8 + 4);
+            buffer.putInt(account.getPackedNumber());
+            putBytes(buffer, first);
+            putBytes(buffer, last);
+            buffer.putInt(holder.getDob().toInt());
+            buffer.putLong(account.getBalance());
+            buffer.putInt(opening ? ledger.dateAt(0) : 0);
+            end(buffer);
+        }
+    }
+
+    /**
+     * Appends a close record. The holder is recorded too, because two open accounts
+     * may share a number and replay must close the same one.
+     * @author Arjun Deshpande
+     * @param account the account that was closed
+     * @param date the date of the closing withdrawal, or 0 if the balance was 0
+     */
+    public void logClose(Account account, int date) {
+        Profile holder = account.getHolder();
+        byte[] first = holder.getFname().getBytes(StandardCharsets.UTF_8);
+        byte[] last = holder.getLname().getBytes(StandardCharsets.UTF_8);
+        synchronized (lock) {
+            ByteBuffer buffer = begin(CLOSE, 4 + 2 + first.length + 2 + last.length + 4 + 4);
+            buffer.putInt(account.getPackedNumber());
+            putBytes(buffer, first);
+            putBytes(buffer, last);
+            buffer.putInt(holder.getDob().toInt());
+            buffer.putInt(date);
+            end(buffer);
+        }
+    }
+
+    /**
+     * Appends a posting record: a deposit, withdrawal, interest payment or fee. Every
+     * posting thread takes the log's monitor here, so the append is kept to a copy into
+     * the buffer.
+     * @author Arjun Deshpande
+     * @param account the account posted to
+     * @param type D, W, I or F, which is also the record's op
+     * @param amount the amount, in cents
+     * @param date the packed yyyymmdd date
+     * @param location the branch where it happened
+     * @param atm true if made at an ATM
+     */
+    public void logPosting(Account account, char type, long amount, int date, Branch location, boolean atm) {
+        synchronized (lock) {
+            ByteBuffer buffer = begin((byte) type, 4 + 8 + 4 + 1 + 1);
+            buffer.putInt(account.getPackedNumber());
+            buffer.putLong(amount);
+            buffer.putInt(date);
+            buffer.put((byte) location.ordinal());
+            buffer.put((byte) (atm ? 1 : 0));
+            end(buffer);
+        }
+    }
+
+    /**
+     * Appends a type change record, e.g. a money market downgrade. It ends with the
+     * new number, which need not keep the old sequence digits.
+     * @author Arjun Deshpande
+     * @param account the account, still under its old number
+     * @param type the new account type
+     * @param packed the account's new number
+     */
+    public void logRetype(Account account, AccountType type, int packed) {
+        synchronized (lock) {
+            ByteBuffer buffer = begin(RETYPE, 4 + 1 + 4);
+            buffer.putInt(account.getPackedNumber());
+            buffer.put((byte) type.ordinal());
+            buffer.putInt(packed);
+            end(buffer);
+        }
+    }
+
+    /**
+     * Reserves room for a record in the active buffer, waiting for the flusher if it is full.
+     * Caller holds the lock.
+     * @author Arjun Deshpande
+     * @param op the record type
+     * @param payload the payload size after the op byte
+     * @return the active buffer, positioned after the op byte
+     */
+    private ByteBuffer begin(byte op, int payload) {
+        int needed = HEADER + 1 + payload;
+        while (active.remaining() < needed) {
+            lock.notifyAll();
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for the log", e);
+            }
+        }
+        recordStart = active.position();
+        active.putInt(1 + payload);
+        active.putInt(0); //crc, filled in by end()
+        active.put(op);
+        return active;
+    }
+
+    /**
+     * Fills in the checksum of the record just written. Caller holds the lock.
+     * @author Arjun Deshpande
+     * @param buffer the active buffer
+     */
+    private void end(ByteBuffer buffer) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(recordStart + HEADER).limit(buffer.position());
+        crc.reset();
+        crc.update(body);
+        buffer.putInt(recordStart + 4, (int) crc.getValue());
+        appended++;
+        if (++sinceSnapshot >= snapshotEvery && !snapshotDue) {
+            snapshotDue = true;
+            lock.notifyAll();
+        }
+        if (buffer.position() > BUFFER_SIZE / 2) lock.notifyAll();
+    }
+
+    /**
+     * Starts shipping the log to a standby. The standby starts from the next snapshot,
+     * which is taken when the database is next checkpointed, and then gets every batch
+     * the flusher writes after it.
+     * @author Arjun Deshpande
+     * @param replicator the connection to the standby
+     * @throws IllegalStateException if the log already has a standby
+     */
+    void replicate(Replicator replicator) {
+        synchronized (lock) {
+            if (replica != null || joining != null) throw new IllegalStateException("the log already has a standby");
+            joining = replicator;
+        }
+    }
+
+    /**
+     * Gets the standby the log is shipped to.
+     * @author Arjun Deshpande
+     * @return the replicator, or null if the log is not replicated
+     */
+    public Replicator getReplica() {
+        synchronized (lock) {
+            return replica;
+        }
+    }
+
+    /**
+     * Waits until every record appended so far is on disk.
+     * @author Arjun Deshpande
+     * @throws IOException if the flusher failed to write
+     */
+    public void sync() throws IOException {
+        synchronized (lock) {
+            long target = appended;
+            lock.notifyAll();
+            while (durable < target && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**
+     * Flusher thread: swaps the buffers, writes and fsyncs the full one, then wakes
+     * every command waiting on a record in it.
+     * @author Arjun Deshpande
+     */
+    private void flushLoop() {
+        while (true) {
+            long target;
+            FileChannel file;
+            synchronized (lock) {
+                while (active.position() == 0 && !closed) {
+                    try {
+                        lock.wait(FLUSH_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (active.position() == 0) return;
+                ByteBuffer full = active;
+                active = flushing;
+                flushing = full;
+                target = appended;
+                file = channel;
+                lock.notifyAll(); //appenders waiting for room
+            }
+            Replicator shipTo;
+            try {
+                flushing.flip();
+                while (flushing.hasRemaining()) file.write(flushing);
+                file.force(false);
+                synchronized (lock) { //a standby attached from here on is sent this batch from the file instead
+                    durable = target;
+                    durableBytes = file.position();
+                    shipTo = replica;
+                    lock.notifyAll();
+                }
+                if (shipTo != null) shipTo.ship(flushing.rewind(), target); //only durable records leave the primary
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            } finally {
+                flushing.clear();
+            }
+        }
+    } //flushLoop
+
+    /**
+     * Snapshot thread: takes a snapshot whenever enough records have been appended.
+     * @author Arjun Deshpande
+     */
+    private void snapshotLoop() {
+        while (true) {
+            synchronized (lock) {
+                while (!snapshotDue && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+            }
+            try {
+                database.checkpoint();
+            } catch (IOException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+                synchronized (lock) {
+                    snapshotDue = false;
+                    sinceSnapshot = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * What a snapshot writes, taken with the database's write lock held: the open
+     * accounts with their numbers and balances at that point, with their ledgers frozen,
+     * and a reader over the archive as it was. An account with no ledger yet is written
+     * with none, even if a posting creates one before it is written.
+     * @author Arjun Deshpande
+     */
+    static final class Capture {
+        private final Account[] open;
+        private final int[] numbers;
+        private final long[] balances;
+        private final ActivityLedger[] ledgers; //null where an account had no ledger
+        private final int archived;
+        private final Archive.Reader closed;
+        private final int generation; //the generation the snapshot replaces
+        private final long base; //log records before the snapshot
+
+        private Capture(Account[] open, int[] numbers, long[] balances, ActivityLedger[] ledgers, int archived,
+                        Archive.Reader closed, int generation, long base) {
+            this.open = open;
+            this.numbers = numbers;
+            this.balances = balances;
+            this.ledgers = ledgers;
+            this.archived = archived;
+            this.closed = closed;
+            this.generation = generation;
+            this.base = base;
+        }
+    }//end klasse
+
+    /**
+     * Takes what the next snapshot holds and starts a new log generation. Called by
+     * AccountDatabase with its write lock held, so no records are appended meanwhile;
+     * it only copies the numbers and balances and freezes the ledgers, and the snapshot
+     * itself is written by snapshot() after the lock is released.
+     * @author Arjun Deshpande
+     * @param open the open accounts
+     * @param count the number of open accounts
+     * @param archive the closed accounts
+     * @return the capture to write
+     * @throws IOException if the log cannot be flushed or the new generation cannot be opened
+     */
+    Capture capture(Account[] open, int count, Archive archive) throws IOException {
+        sync();
+        Account[] accounts = new Account[count];
+        int[] numbers = new int[count];
+        long[] balances = new long[count];
+        ActivityLedger[] ledgers = new ActivityLedger[count];
+        for (int i = 0; i < count; i++) {
+            Account account = accounts[i] = open[i];
+            numbers[i] = account.getPackedNumber();
+            balances[i] = account.getBalance();
+            ledgers[i] = account.getActivities();
+            if (ledgers[i] != null) ledgers[i].freeze();
+        }
+        Archive.Reader closed = archive.oldestFirst();
+        synchronized (lock) { //the flusher is idle: everything is durable and nothing can be appended
+            int replaced = generation;
+            channel.close();
+            generation = replaced + 1;
+            channel = openGeneration(generation);
+            durableBytes = 0;
+            sinceSnapshot = 0;
+            snapshotDue = false;
+            return new Capture(accounts, numbers, balances, ledgers, archive.size(), closed, replaced, appended);
+        }
+    } //capture
+
+    /**
+     * Writes a captured snapshot while commands carry on, then deletes the generations
+     * it replaces. It goes to a temporary file that is renamed into place, so until then
+     * recovery uses the previous snapshot and replays the new generation after the old.
+     * A standby waiting for a snapshot starts from this one.
+     * @author Arjun Deshpande
+     * @param capture what to write, from capture()
+     * @param stripes the balance lock of each account, held while its frozen entries are taken
+     * @throws IOException if the snapshot cannot be written
+     */
+    void snapshot(Capture capture, Function<Account, Object> stripes) throws IOException {
+        Account[] open = capture.open;
+        int written = 0;
+        Path temp = dir.resolve("bank.snap.tmp");
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(capture.generation + 1).putInt(open.length);
+            for (; written < open.length; written++) {
+                Account account = open[written];
+                ActivityLedger entries = capture.ledgers[written];
+                if (entries != null) {
+                    synchronized (stripes.apply(account)) {
+                        entries = entries.thaw();
+                    }
+                }
+                buffer = putAccount(file, buffer, capture.numbers[written], account.getHolder(), capture.balances[written], entries);
+            }
+            buffer = ensure(file, buffer, 4);
+            buffer.putInt(capture.archived);
+            for (Account account = capture.closed.next(); account != null; account = capture.closed.next()) {
+                buffer = putAccount(file, buffer, account);
+            }
+            drain(file, buffer);
+            file.force(true);
+        } finally {
+            for (int i = written; i < open.length; i++) { //if the write failed, end the freeze of the rest
+                if (capture.ledgers[i] == null) continue;
+                synchronized (stripes.apply(open[i])) {
+                    capture.ledgers[i].thaw();
+                }
+            }
+        }
+        Files.move(temp, dir.resolve("bank.snap"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (lock) {
+            if (joining != null) { //the snapshot, then the new generation so far, then every batch flushed after that
+                joining.start(FileChannel.open(dir.resolve("bank.snap"), StandardOpenOption.READ), capture.base,
+                        FileChannel.open(walPath(capture.generation + 1), StandardOpenOption.READ), durableBytes, durable);
+                replica = joining;
+                joining = null;
+            }
+        }
+        for (int gen = capture.generation; gen >= 0 && Files.deleteIfExists(walPath(gen)); gen--) {
+            //delete the generations the snapshot replaces
+        }
+    } //snapshot
+
+    /**
+     * Writes one account and its ledger to a buffer, draining it to the file when full.
+     * Also used by the Archive for its on-disk segment.
+     * @author Arjun Deshpande
+     * @param file the file the buffer is drained to
+     * @param buffer the buffer
+     * @param account the account
+     * @return the buffer to keep writing to
+     * @throws IOException if the buffer cannot be drained
+     */
+    static ByteBuffer putAccount(FileChannel file, ByteBuffer buffer, Account account) throws IOException {
+        return putAccount(file, buffer, account.getPackedNumber(), account.getHolder(), account.getBalance(), account.getActivities());
+    }
+
+    /**
+     * Writes one account as putAccount(file, buffer, account) does, from its parts.
+     * @author Arjun Deshpande
+     * @param file the file the buffer is drained to
+     * @param buffer the buffer
+     * @param packed the account number, packed
+     * @param holder the holder
+     * @param balance the balance, in cents
+     * @param ledger the ledger entries to write, or null for none
+     * @return the buffer to keep writing to
+     * @throws IOException if the buffer cannot be drained
+     */
+    private static ByteBuffer putAccount(FileChannel file, ByteBuffer buffer, int packed, Profile holder, long balance,
+                                         ActivityLedger ledger) throws IOException {
+        byte[] first = holder.getFname().getBytes(StandardCharsets.UTF_8);
+        byte[] last = holder.getLname().getBytes(StandardCharsets.UTF_8);
+        buffer = ensure(file, buffer, 4 + 2 + first.length + 2 + last.length + 4 + 8 + 4);
+        buffer.putInt(packed);
+        putBytes(buffer, first);
+        putBytes(buffer, last);
+        buffer.putInt(holder.getDob().toInt());
+        buffer.putLong(balance);
+        int entries = ledger == null ? 0 : ledger.size();
+        buffer.putInt(entries);
+        for (int i = 0; i < entries; i++) {
+            buffer = ensure(file, buffer, 4 + 1 + 1 + 1 + 8);
+            buffer.putInt(ledger.dateAt(i));
+            buffer.put((byte) ledger.locationAt(i).ordinal());
+            buffer.put((byte) ledger.typeAt(i));
+            buffer.put((byte) (ledger.atmAt(i) ? 1 : 0));
+            buffer.putLong(ledger.amountAt(i));
+        }
+        return buffer;
+    }
+
+    /**
+     * Makes room in the snapshot buffer, writing it out if needed.
+     * @author Arjun Deshpande
+     * @param file the snapshot file
+     * @param buffer the snapshot buffer
+     * @param needed the bytes about to be written
+     * @return the buffer with enough room
+     * @throws IOException if the buffer cannot be written
+     */
+    private static ByteBuffer ensure(FileChannel file, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() >= needed) return buffer;
+        drain(file, buffer);
+        return buffer;
+    }
+
+    /**
+     * Writes out and clears the snapshot buffer.
+     * @author Arjun Deshpande
+     * @param file the snapshot file
+     * @param buffer the snapshot buffer
+     * @throws IOException if the buffer cannot be written
+     */
+    private static void drain(FileChannel file, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) file.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Loads a snapshot into an empty database. The file is mapped a window at a time,
+     * so a snapshot larger than one mapping can hold is read too. Also used by a Standby
+     * for the snapshot its primary sends first.
+     * @author Arjun Deshpande
+     * @param path the snapshot file
+     * @param database the database to fill
+     * @return the log generation that follows the snapshot, or 0 if there is no snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    static int readSnapshot(Path path, AccountDatabase database) throws IOException {
+        if (!Files.exists(path)) return 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            SnapshotWindow window = new SnapshotWindow(file);
+            ByteBuffer header = window.next(12);
+            if (header.getInt() != SNAPSHOT_MAGIC) throw new IOException("not a snapshot");
+            int gen = header.getInt();
+            int count = header.getInt();
+            for (int i = 0; i < count; i++) database.add(window.nextAccount());
+            int archived = window.next(4).getInt();
+            for (int i = 0; i < archived; i++) database.restoreArchived(window.nextAccount());
+            return gen;
+        }
+    }
+
+    /**
+     Maps a snapshot file a window at a time. An account that runs past the end of the
+     window is read again from a window that starts at it, twice as large if need be.
+     @author Arjun Deshpande
+     */
+    private static final class SnapshotWindow {
+        private static final int WINDOW = 64 << 20;
+
+        private final FileChannel file;
+        private final long size;
+        private long start; //file offset of the window
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+        SnapshotWindow(FileChannel file) throws IOException {
+            this.file = file;
+            this.size = file.size();
+        }
+
+        /**
+         * Makes sure the window holds the next bytes.
+         * @author Arjun Deshpande
+         * @param needed the bytes about to be read
+         * @return the window, positioned at them
+         * @throws IOException if the file ends first
+         */
+        ByteBuffer next(int needed) throws IOException {
+            if (buffer.remaining() >= needed) return buffer;
+            slide(Math.max(needed, WINDOW));
+            if (buffer.remaining() < needed) throw new IOException("snapshot is truncated");
+            return buffer;
+        }
+
+        /**
+         * Reads the next account, sliding the window if it does not hold all of it.
+         * @author Arjun Deshpande
+         * @return the account
+         * @throws IOException if the file ends before the account does
+         */
+        Account nextAccount() throws IOException {
+            while (true) {
+                int at = buffer.position();
+                try {
+                    return getAccount(buffer);
+                } catch (BufferUnderflowException e) {
+                    buffer.position(at);
+                    if (at > 0) { //start the window at the account
+                        slide(WINDOW);
+                        continue;
+                    }
+                    if (start + buffer.limit() == size) throw new IOException("snapshot is truncated");
+                    if (buffer.limit() == Integer.MAX_VALUE) throw new IOException("snapshot account larger than 2 GB");
+                    slide(Math.min(Integer.MAX_VALUE, 2L * buffer.limit()));
+                }
+            }
+        }
+
+        /**
+         * Maps a new window starting at the current position.
+         * @author Arjun Deshpande
+         * @param length the bytes to map, fewer if the file ends first
+         * @throws IOException if the file cannot be mapped
+         */
+        private void slide(long length) throws IOException {
+            start += buffer.position();
+            buffer = file.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, length));
+        }
+    }//end klasse
+
+    /**
+     * Reads one account and its ledger written by putAccount.
+     * @author Arjun Deshpande
+     * @param buffer the encoded account
+     * @return the account
+     */
+    static Account getAccount(ByteBuffer buffer) {
+        AccountNumber number = AccountNumbers.unpack(buffer.getInt());
+        String first = getString(buffer);
+        String last = getString(buffer);
+        Date dob = Date.fromInt(buffer.getInt());
+        Account account = new Account(number, new Profile(first, last, dob), buffer.getLong());
+        int entries = buffer.getInt();
+        for (int i = 0; i < entries; i++) {
+            int date = buffer.getInt();
+            Branch location = BRANCHES[buffer.get()];
+            char type = (char) buffer.get();
+            boolean atm = buffer.get() != 0;
+            account.record(date, location, type, buffer.getLong(), atm);
+        }
+        return account;
+    }
+
+    /**
+     * Replays one log generation into the database. A bad length or checksum at the end
+     * of the last generation is a record torn by a crash, and is truncated; anywhere in an
+     * earlier generation, which was complete when the next one was started, it is corruption.
+     * @author Arjun Deshpande
+     * @param path the log file
+     * @param database the database to apply the records to
+     * @param last true if this is the generation being appended to
+     * @throws IOException if the log cannot be read, or an earlier generation is corrupt
+     */
+    private static void replay(Path path, AccountDatabase database, boolean last) throws IOException {
+        if (!Files.exists(path)) return;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            CRC32 check = new CRC32();
+            long good = 0;
+            while (buffer.remaining() >= HEADER) {
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) break;
+                ByteBuffer body = buffer.slice(buffer.position(), length);
+                check.reset();
+                check.update(body.duplicate());
+                if ((int) check.getValue() != crc) break;
+                apply(body, database);
+                buffer.position(buffer.position() + length);
+                good = buffer.position();
+            }
+            if (good < file.size() && !last) {
+                throw new IOException(path + " is corrupt at byte " + good + " of " + file.size()
+                        + "; only the last log generation may end in a torn record");
+            }
+            if (good < file.size()) file.truncate(good);
+        }
+    }
+
+    /**
+     * Applies one log record. Also used by a Standby for the records its primary ships.
+     * @author Arjun Deshpande
+     * @param body the record, starting at the op byte
+     * @param database the database to apply it to
+     * @throws IOException if a closed account cannot be archived
+     */
+    static void apply(ByteBuffer body, AccountDatabase database) throws IOException {
+        byte op = body.get();
+        int number = body.getInt();
+        switch (op) {
+            case OPEN:
+                String first = getString(body);
+                String last = getString(body);
+                Date dob = Date.fromInt(body.getInt());
+                Account opened = new Account(AccountNumbers.unpack(number), new Profile(first, last, dob), body.getLong());
+                int openedOn = body.remaining() >= 4 ? body.getInt() : 0; //logs from before the date was recorded lack it
+                if (openedOn != 0) opened.record(openedOn, opened.getNumber().getBranch(), 'D', opened.getBalance(), false);
+                database.add(opened);
+                break;
+            case CLOSE:
+                Profile holder = new Profile(getString(body), getString(body), Date.fromInt(body.getInt()));
+                int closedOn = body.remaining() >= 4 ? body.getInt() : 0;
+                Account closed = null;
+                for (AccountType type : TYPES) {
+                    Account held = database.holderFind(holder, type);
+                    if (held != null && held.getPackedNumber() == number) closed = held;
+                }
+                if (closed == null) closed = database.numFind(number);
+                if (closed != null && closedOn != 0) database.remove(closed, closedOn);
+                else if (closed != null) database.remove(closed);
+                break;
+            case DEPOSIT:
+            case WITHDRAW:
+                Account account = database.numFind(number);
+                long amount = body.getLong();
+                int date = body.getInt();
+                Branch location = BRANCHES[body.get()];
+                boolean atm = body.get() != 0;
+                if (account == null) break;
+                if (op == DEPOSIT) database.deposit(account, amount, date, location, atm);
+                else database.withdraw(account, amount, date, location, atm);
+                break;
+            case INTEREST:
+            case FEE:
+                Account settled = database.numFind(number);
+                long posted = body.getLong();
+                int postedOn = body.getInt();
+                Branch postedAt = BRANCHES[body.get()];
+                if (settled != null) database.postMonthEnd(settled, (char) op, posted, postedOn, postedAt);
+                break;
+            case RETYPE:
+                Account retyped = database.numFind(number);
+                AccountType type = TYPES[body.get()];
+                int renumbered = body.remaining() >= 4 ? body.getInt() : AccountNumbers.INVALID; //older logs kept the digits
+                if (retyped != null) database.changeType(retyped, type, renumbered);
+                break;
+            default:
+                break;
+        }
+    } //apply
+
+    /**
+     * Checks that a name fits the short length it is stored with.
+     * @author Arjun Deshpande
+     * @param name the first or last name
+     * @return true if its UTF-8 bytes are at most MAX_NAME_BYTES
+     */
+    public static boolean fits(String name) {
+        return name.length() <= MAX_NAME_BYTES / 3 || name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+    }
+
+    /**
+     * Writes a length-prefixed byte string.
+     * @author Arjun Deshpande
+     * @param buffer the buffer
+     * @param bytes the bytes, at most MAX_NAME_BYTES
+     * @throws IllegalArgumentException if there are too many bytes for the length
+     */
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes.length > MAX_NAME_BYTES) throw new IllegalArgumentException("name longer than " + MAX_NAME_BYTES + " bytes");
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     * @author Arjun Deshpande
+     * @param buffer the buffer
+     * @return the string
+     */
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Flushes everything, stops the background threads and closes the log file, then
+     * closes the connection to the standby once it has been sent every record.
+     * @author Arjun Deshpande
+     * @throws IOException if the final flush fails
+     */
+    @Override
+    public void close() throws IOException {
+        sync();
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+            snapshotter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            channel.close();
+        }
+        Replicator shipping = getReplica();
+        if (shipping != null) shipping.close(); //the flusher is done, so the standby has been sent everything
+    }
+
+    /**
+     * Testbed main method measuring commit throughput and recovery time. Opens the given
+     * number of accounts, runs deposits from several threads that each wait for their own
+     * commit, takes a snapshot, appends a log tail, then recovers from scratch.
+     * @author Arjun Deshpande
+     * @param args the number of accounts (default 100000) and committing threads (default 8)
+     * @throws Exception if the data directory cannot be used
+     */
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        final int COMMITS = 20_000;
+        Path dir = Files.createTempDirectory("bank");
+        AccountDatabase database = open(dir.toString(), Long.MAX_VALUE);
+        Account[] book = new Account[accounts];
+        int collisions = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < accounts; i++) {
+            AccountNumber number = new AccountNumber(BRANCHES[i % BRANCHES.length], TYPES[i % TYPES.length]);
+            if (database.numFind(number) != null) { //replay goes by number, so keep numbers unique
+                collisions++;
+                i--;
+                if (collisions > 10 * accounts) throw new IllegalStateException("ran out of account numbers");
+                continue;
+            }
+            book[i] = new Account(number, new Profile("First" + i, "Last" + i, new Date(1, 1, 1990)), 100_000);
+            database.add(book[i]);
+        }
+        database.sync();
+        report("opened " + accounts + " accounts", accounts, System.nanoTime() - start);
+        Thread[] workers = new Thread[threads];
+        start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < COMMITS / threads; i++) {
+                        database.deposit(book[(int) ((id * 7919L + i * 104729L) % accounts)], 100, 20240101, Branch.EDISON, false);
+                        database.sync();
+                    }
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        report(COMMITS + " deposits, each waiting for its commit, on " + threads + " threads", COMMITS, System.nanoTime() - start);
+        long[] slowest = new long[1];
+        Thread poster = new Thread(() -> {
+            for (int i = 0; i < COMMITS; i++) {
+                long began = System.nanoTime();
+                int date = i % 10 == 0 ? 20231231 : 20240102; //every tenth goes in among the entries being written
+                database.deposit(book[(int) (i * 7919L % accounts)], 100, date, Branch.EDISON, false);
+                slowest[0] = Math.max(slowest[0], System.nanoTime() - began);
+            }
+        });
+        start = System.nanoTime();
+        poster.start();
+        database.checkpoint();
+        report("snapshot of " + accounts + " accounts while posting", accounts, System.nanoTime() - start);
+        poster.join();
+        System.out.println(COMMITS + " postings alongside it, the slowest held up " + slowest[0] / 1_000 + " us");
+        database.sync();
+        database.getLog().close();
+        start = System.nanoTime();
+        AccountDatabase recovered = open(dir.toString(), Long.MAX_VALUE);
+        report("recovery (snapshot + " + COMMITS + " record tail)", accounts, System.nanoTime() - start);
+        int differing = 0;
+        for (Account account : book) {
+            Account again = recovered.numFind(account.getNumber());
+            if (again == null || again.getBalance() != account.getBalance()
+                    || (again.getActivities() == null) != (account.getActivities() == null)
+                    || again.getActivities() != null && again.getActivities().size() != account.getActivities().size()) differing++;
+        }
+        System.out.println("recovered " + recovered.size() + " accounts, " + differing + " differing from the primary: "
+                + (differing == 0 ? "PASS" : "FAIL"));
+        recovered.getLog().close();
+        delete(dir);
+
+        Path corrupt = Files.createTempDirectory("bank"); //a bad record before the last generation fails recovery
+        AccountDatabase small = open(corrupt.toString(), Long.MAX_VALUE);
+        small.add(new Account(new AccountNumber(Branch.EDISON, AccountType.CHECKING),
+                new Profile("Torn", "Earlier", new Date(1, 1, 1990)), 100));
+        small.sync();
+        small.getLog().close();
+        try (FileChannel file = FileChannel.open(corrupt.resolve("bank.wal.0"), StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[] {0x55}), file.size() - 1);
+        }
+        Files.write(corrupt.resolve("bank.wal.1"), new byte[0]);
+        boolean refused = false;
+        try {
+            open(corrupt.toString(), Long.MAX_VALUE).getLog().close();
+        } catch (IOException e) {
+            refused = true;
+        }
+        System.out.println("corrupt earlier generation refused: " + (refused ? "PASS" : "FAIL"));
+        delete(corrupt);
+    }//testbed
+
+    /**
+     * Deletes a testbed data directory.
+     * @author Arjun Deshpande
+     * @param dir the directory
+     * @throws IOException if it cannot be listed or deleted
+     */
+    private static void delete(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Prints a timing line for the testbed.
+     * @author Arjun Deshpande
+     * @param what what was timed
+     * @param count the number of operations
+     * @param nanos the elapsed time
+     */
+    private static void report(String what, long count, long nanos) {
+        System.out.println(what + ": " + nanos / 1_000_000 + " ms (" + count * 1_000_000_000L / Math.max(1, nanos) + "/sec)");
+    }
+}//end class TransactionLog
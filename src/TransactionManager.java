@@ -1,5 +1,15 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
-import java.util.StringTokenizer;
 /**
  * Manages transactions for a bank account database.
  * Handles account operations such as opening, closing, deposits, withdrawals, and printing account details.
@@ -8,7 +18,33 @@ import java.util.StringTokenizer;
  * @author Aryaman Urs
  */
 public class TransactionManager {
-    private AccountDatabase database = new AccountDatabase();
+    private AccountDatabase database;
+    private AccountStore accounts; //the same database, through the operations the O, C, D and W commands use
+    private InputStream in; //where commands are read from
+    private PrintStream out; //where results are written to
+
+    /**
+     * Creates a transaction manager on the console with its own database.
+     * @author Arjun Deshpande
+     */
+    public TransactionManager() {
+        this(new AccountDatabase(), System.in, System.out);
+    }
+
+    /**
+     * Creates a transaction manager for one session on a shared database.
+     * @author Arjun Deshpande
+     * @param database the database, possibly shared with other sessions
+     * @param in where commands are read from
+     * @param out where results are written to
+     */
+    public TransactionManager(AccountDatabase database, InputStream in, PrintStream out) {
+        this.database = database;
+        this.accounts = database;
+        this.in = in;
+        this.out = out;
+    }
+
     /**
      * Runs the transaction manager, processing user commands in a loop.
      * Recognized commands:
@@ -21,142 +57,471 @@ public class TransactionManager {
      * PB - Print accounts by branch
      * PH - Print accounts by holder
      * PT - Print accounts by type
+     * PP - Print one page of a report, continuing after an account number
+     * UB - Month-end interest and fees, dated today or on a given date
+     * A - Apply an ATM activity file
+     * S - Print command counts, latencies and account statistics
+     * SB - Print account counts and balances by branch, for all branches or one
+     * BA - Print an account's balance as of a date
+     * BB - Print the balances of a branch's accounts as of a date
+     * ST - Print account counts and balances by type, for all types or one
      * Q - Quit
+     * Output is flushed after every command; the loop also ends when the input does.
      * @author Arjun Deshpande
      */
     public void run() {//Made by arjun
-        System.out.println("Transaction Manager is running.");
-        Scanner scanner = new Scanner(System.in);
-        while (true) {
-            String line = scanner.nextLine().trim();
-            if (line.isEmpty()) continue;
-            StringTokenizer tokenizer = new StringTokenizer(line);
+        out.println("Transaction Manager is running.");
+        out.flush();
+        Scanner scanner = new Scanner(in);
+        CommandTokenizer tokenizer = new CommandTokenizer();
+        while (scanner.hasNextLine()) {
+            tokenizer.setLine(scanner.nextLine());
             if (!tokenizer.hasMoreTokens()) continue;
-            String command = tokenizer.nextToken();
-            try {
-                switch (command) {
-                    case "O": processOpen(tokenizer); break;
-                    case "C": processClose(tokenizer); break;
-                    case "D": processDeposit(tokenizer); break;
-                    case "W": processWithdraw(tokenizer); break;
-                    case "P": database.print(); break;
-                    case "PA": database.printArchive(); break;
-                    case "PB": database.printByBranch(); break;
-                    case "PH": database.printByHolder(); break;
-                    case "PT": database.printByType(); break;
-                    case "Q":
-                        System.out.println("Transaction Manager is terminated.");
-                        return;
-                    default: System.out.println("Invalid command.");
+            boolean running = execute(tokenizer);
+            out.flush();
+            if (!running) return;
+        }
+    }
+
+    /**
+     * Runs the transaction manager over a command file instead of standard input.
+     * The file is read through a FileChannel in large blocks and each line is
+     * tokenized in place; console output is buffered and flushed at the end.
+     * Stops at Q or at the end of the file, then reports lines/sec on standard error.
+     * @author Arjun Deshpande
+     * @param path the command file
+     * @throws IOException if the file cannot be read
+     */
+    public void runBatch(String path) throws IOException {
+        long start = System.nanoTime();
+        long lines = runBatch(path, new FileOutputStream(FileDescriptor.out));
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        System.err.printf("Processed %d lines in %d ms (%d lines/sec).%n",
+                lines, elapsed / 1_000_000, lines * 1_000_000_000L / elapsed);
+    }
+
+    /**
+     * Runs a command file as runBatch(path) does, writing the output to a given stream.
+     * @author Arjun Deshpande
+     * @param path the command file
+     * @param sink where the output goes; it is flushed, not closed
+     * @return the number of lines processed
+     * @throws IOException if the file cannot be read
+     */
+    public long runBatch(String path, OutputStream sink) throws IOException {
+        final int BLOCK_SIZE = 1 << 20;
+        final int OUTPUT_BUFFER = 1 << 16;
+        PrintStream console = out;
+        PrintStream buffered = new PrintStream(new BufferedOutputStream(sink, OUTPUT_BUFFER), false);
+        out = buffered;
+        long lines = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            out.println("Transaction Manager is running.");
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            byte[] bytes = block.array();
+            CommandTokenizer tokenizer = new CommandTokenizer();
+            boolean running = true;
+            int read;
+            while (running && (read = channel.read(block)) != -1) {
+                int lineStart = 0;
+                for (int i = 0; i < read && running; i++) {
+                    if (bytes[i] != '\n') continue;
+                    tokenizer.append(bytes, lineStart, i - lineStart);
+                    lineStart = i + 1;
+                    lines++;
+                    tokenizer.tokenize();
+                    if (tokenizer.hasMoreTokens()) running = execute(tokenizer);
+                    tokenizer.clear();
                 }
-            } catch (Exception e) {
-                System.out.println("Processing error.");
+                if (running) tokenizer.append(bytes, lineStart, read - lineStart);
+                block.clear();
             }
+            if (running) {
+                tokenizer.tokenize();
+                if (tokenizer.hasMoreTokens()) {
+                    lines++;
+                    execute(tokenizer);
+                }
+            }
+        } finally {
+            buffered.flush();
+            out = console;
         }
+        return lines;
+    }//runBatch
+
+    /**
+     * Runs a command file through a BatchPipeline: parsing and checking, applying and
+     * output run on separate threads and overlap, with the same output as runBatch.
+     * Reports lines/sec on standard error.
+     * @author Arjun Deshpande
+     * @param path the command file
+     * @throws IOException if the file cannot be read or the log cannot commit
+     */
+    public void runPipelined(String path) throws IOException {
+        long start = System.nanoTime();
+        long lines = runPipelined(path, new FileOutputStream(FileDescriptor.out));
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        System.err.printf("Processed %d lines in %d ms (%d lines/sec, pipelined).%n",
+                lines, elapsed / 1_000_000, lines * 1_000_000_000L / elapsed);
+    }
+
+    /**
+     * Runs a command file as runPipelined(path) does, writing the output to a given stream.
+     * @author Arjun Deshpande
+     * @param path the command file
+     * @param sink where the output goes; it is flushed, not closed
+     * @return the number of lines processed
+     * @throws IOException if the file cannot be read or the log cannot commit
+     */
+    public long runPipelined(String path, OutputStream sink) throws IOException {
+        return new BatchPipeline(database).run(path, sink);
     }
+
+    /**
+     * Executes one tokenized command line. Its latency, including the wait for its
+     * commit, is recorded in the database's metrics. BatchPipeline runs its rare
+     * commands through here.
+     * @author Arjun Deshpande
+     * @param tokenizer the tokenizer holding the line
+     * @return false if the command was Q, true otherwise
+     */
+    boolean execute(CommandTokenizer tokenizer) {
+        String command = tokenizer.nextCommand();
+        long start = System.nanoTime();
+        boolean running = true;
+        boolean failed = false;
+        try {
+            switch (command) {
+                case "O": processOpen(tokenizer); break;
+                case "C": processClose(tokenizer); break;
+                case "D": processDeposit(tokenizer); break;
+                case "W": processWithdraw(tokenizer); break;
+                case "P": database.print(out); break;
+                case "PA": database.printArchive(out); break;
+                case "PB": database.printByBranch(out); break;
+                case "PH": database.printByHolder(out); break;
+                case "PT": database.printByType(out); break;
+                case "PP": processPage(tokenizer); break;
+                case "UB": processMonthEnd(tokenizer); break;
+                case "A": processActivities(tokenizer); break;
+                case "S": database.getMetrics().print(out); break;
+                case "SB": processSummary(tokenizer, true); break;
+                case "ST": processSummary(tokenizer, false); break;
+                case "BA": processBalanceAsOf(tokenizer); break;
+                case "BB": processBranchAsOf(tokenizer); break;
+                case "VG": processGuard(); break;
+                case "Q":
+                    out.println("Transaction Manager is terminated.");
+                    running = false;
+                    break;
+                default: out.println("Invalid command.");
+            }
+            if (running) database.sync(); //wait for the group commit of this command's changes
+        } catch (Exception e) {
+            out.println("Processing error.");
+            failed = true;
+        }
+        database.getMetrics().recordCommand(command, System.nanoTime() - start, failed);
+        return running;
+    }//execute
     /**
      * Processes the opening of a new account.
      *
      * @param tokenizer the tokenizer containing account details
      * @author Aryaman Urs
      */
-    private void processOpen(StringTokenizer tokenizer) {
-        if (tokenizer.countTokens() < 5) {
-            System.out.println("Invalid command!");
+    private void processOpen(CommandTokenizer tokenizer) {
+        if (tokenizer.countTokens() < 6) { //type, branch, first name, last name, date of birth, amount
+            out.println("Invalid command!");
             return;
         }
         String typeStr = tokenizer.nextToken();
         AccountType type = AccountType.fromString(typeStr);
         if (type == null) {
-            System.out.println(typeStr + " - invalid account type.");
+            out.println(typeStr + " - invalid account type.");
             return;
         }
 
         String branchStr = tokenizer.nextToken();
         Branch branch = Branch.fromCity(branchStr);
         if (branch == null) {
-            System.out.println(branchStr + " - invalid branch.");
+            out.println(branchStr + " - invalid branch.");
             return;
         }
 
         String firstName = tokenizer.nextToken();
         String lastName = tokenizer.nextToken();
+        if (!TransactionLog.fits(firstName) || !TransactionLog.fits(lastName)) {
+            out.println("Name is too long.");
+            return;
+        }
         String dobStr = tokenizer.nextToken();
         Date dob = Date.fromString(dobStr);
 
-        if (dob == null || !dob.isValid()) {
+        if (dob == null || !dob.isValid(out)) {
             return;
         }
 
-        String amountStr = tokenizer.nextToken();
-        double initialDeposit;
-        try {
-            initialDeposit = Double.parseDouble(amountStr);
-            if (initialDeposit <= 0) {
-                System.out.println("Initial deposit cannot be 0 or negative.");
-                return;
-            }
-        } catch (NumberFormatException e) {
-            System.out.println("For input string: \"" + amountStr + "\" - not a valid amount.");
+        long initialDeposit = tokenizer.nextAmount();
+        if (initialDeposit == Money.INVALID) {
+            out.println("For input string: \"" + tokenizer.lastToken() + "\" - not a valid amount.");
+            return;
+        }
+        if (initialDeposit <= 0) {
+            out.println("Initial deposit cannot be 0 or negative.");
             return;
         }
         Profile profile = new Profile(firstName, lastName, dob);
-        if (database.containsHolderAndType(profile, type)) {
-            System.out.println(firstName + " " + lastName + " already has a " + typeStr.toLowerCase() + " account.");
+        if (accounts.containsHolderAndType(profile, type)) {
+            out.println(firstName + " " + lastName + " already has a " + typeStr.toLowerCase() + " account.");
+            return;
+        }
+        AccountNumber accNumber = accounts.newNumber(branch, type);
+        if (accNumber == null) {
+            out.println(branchStr + " - no account numbers left at this branch.");
             return;
         }
-        AccountNumber accNumber = new AccountNumber(branch, type);
         Account newAccount = new Account(accNumber, profile, initialDeposit);
-        database.add(newAccount);
-        System.out.println(type.name() + " account " + accNumber + " has been opened.");
+        if (!accounts.open(newAccount, Date.today().toInt())) { //another session opened one in the meantime
+            out.println(firstName + " " + lastName + " already has a " + typeStr.toLowerCase() + " account.");
+            return;
+        }
+        out.println(type.name() + " account " + accNumber + " has been opened.");
     }
     /**
      * Processes the closing of an existing account.
      *
      * @param tokenizer the tokenizer containing account details
+     * @throws IOException if the archive cannot spill to disk
      * @author Aryaman Urs
      */
-    private void processClose(StringTokenizer tokenizer) {
-        if (tokenizer.countTokens() < 1) {
-            System.out.println("Invalid command!");
+    private void processClose(CommandTokenizer tokenizer) throws IOException {
+        boolean isNumber = tokenizer.nextIsDigits(AccountNumbers.DIGITS);
+        if (tokenizer.countTokens() < (isNumber ? 1 : 3)) { //a number, or first name, last name and date of birth
+            out.println("Invalid command!");
             return;
         }
         String identifier = tokenizer.nextToken();
-        if (identifier.matches("\\d{9}")) { // Case 1: If it's a numeric account number
-            AccountNumber number = AccountNumber.fromString(identifier);
-            if (number == null) {
-                System.out.println(identifier + " - invalid account number.");
+        if (isNumber) { // Case 1: If it's a numeric account number
+            int number = AccountNumbers.parse(identifier);
+            if (number == AccountNumbers.INVALID) {
+                out.println(identifier + " - invalid account number.");
                 return;
             }
-            Account account = database.numFind(number);
-            if (account == null) {
-                System.out.println(identifier + " account does not exist.");
+            if (!accounts.remove(number)) {
+                out.println(identifier + " account does not exist.");
                 return;
             }
-            database.remove(account);
-            System.out.println(identifier + " is closed and moved to archive; balance set to 0.");
+            out.println(identifier + " is closed and moved to archive; balance set to 0.");
             return;
         }
         String firstName = identifier;
         String lastName = tokenizer.nextToken();
         String dobStr = tokenizer.nextToken();
         Date dob = Date.fromString(dobStr);
-        if (dob == null || !dob.isValid()) {
-            System.out.println("DOB invalid: " + dobStr + " not a valid calendar date!");
+        if (dob == null || !dob.isValid(out)) {
+            out.println("DOB invalid: " + dobStr + " not a valid calendar date!");
             return;
         }
 
         Profile profile = new Profile(firstName, lastName, dob);
-        if (!database.containsHolderAndType(profile, AccountType.CHECKING) &&
-                !database.containsHolderAndType(profile, AccountType.SAVINGS) &&
-                !database.containsHolderAndType(profile, AccountType.MONEY_MARKET)) {
-            System.out.println(firstName + " " + lastName + " " + dobStr + " does not have any accounts in the database.");
+        if (!accounts.removeByProfile(profile)) {
+            out.println(firstName + " " + lastName + " " + dobStr + " does not have any accounts in the database.");
+            return;
+        }
+        out.println("All accounts for " + firstName + " " + lastName + " " + dobStr + " are closed and moved to archive; balance set to 0.");
+    }//end method
+
+
+    /**
+     * Processes a paged report: PP report limit [account number], where report is
+     * P, PB, PH or PT. The page ends with the cursor to pass for the next page.
+     *
+     * @param tokenizer the tokenizer containing the report, page size and cursor
+     * @throws IOException if the report cannot be written
+     * @author Arjun Deshpande
+     */
+    private void processPage(CommandTokenizer tokenizer) throws IOException {
+        if (tokenizer.countTokens() < 2) {
+            out.println("Invalid command!");
+            return;
+        }
+        String report = tokenizer.nextToken();
+        char key;
+        switch (report.toUpperCase()) {
+            case "P": key = AccountDatabase.BY_NUMBER; break;
+            case "PB": key = AccountDatabase.BY_BRANCH; break;
+            case "PH": key = AccountDatabase.BY_HOLDER; break;
+            case "PT": key = AccountDatabase.BY_TYPE; break;
+            default:
+                out.println(report + " - invalid report.");
+                return;
+        }
+        String limitStr = tokenizer.nextToken();
+        int limit;
+        try {
+            limit = Integer.parseInt(limitStr);
+        } catch (NumberFormatException e) {
+            limit = 0;
+        }
+        if (limit <= 0) {
+            out.println(limitStr + " - page size must be a positive number.");
+            return;
+        }
+        AccountNumber after = null;
+        if (tokenizer.hasMoreTokens()) {
+            String cursor = tokenizer.nextToken();
+            after = AccountNumber.fromString(cursor);
+            if (after == null) {
+                out.println(cursor + " - invalid account number.");
+                return;
+            }
+        }
+        if (!database.printPage(key, limit, after, out)) {
+            out.println(after + " - no such account to continue after.");
+        }
+    }//end method
+
+    /**
+     * Processes month-end: UB [date]. Pays interest and charges fees on every open
+     * account, dated the given date or today.
+     *
+     * @param tokenizer the tokenizer containing the optional date
+     * @author Arjun Deshpande
+     */
+    private void processMonthEnd(CommandTokenizer tokenizer) {
+        Date date = tokenizer.hasMoreTokens() ? calendarDate(tokenizer.nextToken()) : Date.today();
+        if (date == null) return;
+        MonthEnd rules = new MonthEnd();
+        database.monthEnd(rules, date.toInt());
+        out.println("Month-end processing for " + date + ": " + rules + ".");
+    }//end method
+
+    /**
+     * Processes VG: prints the velocity rules, how often they fired and the recently
+     * flagged withdrawals.
+     *
+     * @author Arjun Deshpande
+     */
+    private void processGuard() {
+        VelocityGuard guard = database.getGuard();
+        if (guard == null) out.println("Velocity guard is off.");
+        else guard.print(out);
+    }
+
+    /**
+     * Processes a summary: SB [branch] or ST [type]. Reads the running aggregates,
+     * so it takes the same time however many accounts there are.
+     *
+     * @param tokenizer the tokenizer containing the optional branch or type
+     * @param byBranch true for SB, false for ST
+     * @author Arjun Deshpande
+     */
+    private void processSummary(CommandTokenizer tokenizer, boolean byBranch) {
+        Aggregates aggregates = database.getAggregates();
+        if (!tokenizer.hasMoreTokens()) {
+            if (byBranch) aggregates.printByBranch(out, null);
+            else aggregates.printByType(out, null);
+            return;
+        }
+        String name = tokenizer.nextToken();
+        if (byBranch) {
+            Branch branch = Branch.fromCity(name);
+            if (branch == null) out.println(name + " - invalid branch.");
+            else aggregates.printByBranch(out, branch);
+        } else {
+            AccountType type = AccountType.fromString(name);
+            if (type == null) out.println(name + " - invalid account type.");
+            else aggregates.printByType(out, type);
+        }
+    }//end method
+
+    /**
+     * Processes an as-of balance query: BA number date. Closed accounts are found in
+     * the archive.
+     *
+     * @param tokenizer the tokenizer containing the account number and date
+     * @throws IOException if the archive cannot be read
+     * @author Arjun Deshpande
+     */
+    private void processBalanceAsOf(CommandTokenizer tokenizer) throws IOException {
+        if (tokenizer.countTokens() < 2) {
+            out.println("Invalid command!");
+            return;
+        }
+        int number = tokenizer.nextAccountNumber();
+        String numberStr = tokenizer.lastToken();
+        if (number == AccountNumbers.INVALID) {
+            out.println(numberStr + " - invalid account number.");
+            return;
+        }
+        Date date = calendarDate(tokenizer.nextToken());
+        if (date == null) return;
+        long balance = database.balanceAsOf(number, date.toInt());
+        if (balance == AccountDatabase.NOT_OPEN) out.println(numberStr + " account does not exist.");
+        else out.println("Balance of " + numberStr + " as of " + date + ": $" + Money.format(balance));
+    }//end method
+
+    /**
+     * Processes a branch-wide as-of report: BB city date.
+     *
+     * @param tokenizer the tokenizer containing the branch and date
+     * @throws IOException if the archive cannot be read or the report cannot be written
+     * @author Arjun Deshpande
+     */
+    private void processBranchAsOf(CommandTokenizer tokenizer) throws IOException {
+        if (tokenizer.countTokens() < 2) {
+            out.println("Invalid command!");
+            return;
+        }
+        String branchStr = tokenizer.nextToken();
+        Branch branch = Branch.fromCity(branchStr);
+        if (branch == null) {
+            out.println(branchStr + " - invalid branch.");
             return;
         }
-        database.removeByProfile(profile);
-        System.out.println("All accounts for " + firstName + " " + lastName + " " + dobStr + " are closed and moved to archive; balance set to 0.");
+        Date date = calendarDate(tokenizer.nextToken());
+        if (date != null) database.printBalancesAsOf(branch, date.toInt(), out);
     }//end method
 
+    /**
+     * Parses the date of a month-end or as-of command, printing why if it is not a calendar date.
+     *
+     * @param dateStr the date as typed
+     * @return the date, or null if it is not valid
+     * @author Arjun Deshpande
+     */
+    private Date calendarDate(String dateStr) {
+        Date date = Date.fromString(dateStr);
+        if (date == null || !Date.isCalendarDate(date.getMonth(), date.getDay(), date.getYear())) {
+            out.println(dateStr + " - not a valid calendar date!");
+            return null;
+        }
+        return date;
+    }
+
+    /**
+     * Processes an ATM activity file with the bulk loader.
+     *
+     * @param tokenizer the tokenizer containing the file name
+     * @author Arjun Deshpande
+     */
+    private void processActivities(CommandTokenizer tokenizer) {
+        if (tokenizer.countTokens() < 1) {
+            out.println("Invalid command!");
+            return;
+        }
+        String path = tokenizer.nextToken();
+        ActivityLoader loader = new ActivityLoader(database);
+        try {
+            loader.load(path);
+        } catch (IOException e) {
+            out.println(path + " - cannot read activity file.");
+            return;
+        }
+        out.println("Activities in " + path + " processed: " + loader);
+    }//end method
 
     /**
      * Processes a deposit transaction for an account.
@@ -164,37 +529,34 @@ public class TransactionManager {
      * @param tokenizer the tokenizer containing the account number and deposit amount
      * @author Arjun Deshpande
      */
-    private void processDeposit(StringTokenizer tokenizer) {//made by Arjun
+    private void processDeposit(CommandTokenizer tokenizer) {//made by Arjun
 
         if (tokenizer.countTokens() < 2) {
-            System.out.println("Invalid command!");
+            out.println("Invalid command!");
             return;
         }
-        String accNumberStr = tokenizer.nextToken();
+        int number = tokenizer.nextAccountNumber();
 
-        String amountStr = tokenizer.nextToken();
-        AccountNumber number = AccountNumber.fromString(accNumberStr);
-        if (number == null) {
-            System.out.println("Invalid account number");
+        long amount = tokenizer.nextAmount();
+        if (number == AccountNumbers.INVALID) {
+            out.println("Invalid account number");
             return;
         }
-        double amount;
-        try {
-            amount = Double.parseDouble(amountStr);
-            if (amount <= 0) {
-                System.out.println(amount+" - deposit amount cannot be 0 or negative.");
-                return;
-            }
-        } catch (NumberFormatException e) {
-            System.out.println("For input string: \"" + amountStr + "\" - not a valid amount.");
+        if (amount == Money.INVALID) {
+            out.println("For input string: \"" + tokenizer.lastToken() + "\" - not a valid amount.");
+            return;
+        }
+        if (amount <= 0) {
+            out.println(Money.toDollars(amount) + " - deposit amount cannot be 0 or negative.");
             return;
         }
-        Account acc = database.numFind(number);//PROBLEM LINE
-        if (acc != null) {
-            database.deposit(number, amount);
-            System.out.printf("Deposit successful. New balance: $%.2f%n", acc.getBalance());
+        long balance = accounts.deposit(number, amount);
+        if (balance == AccountDatabase.OVERFLOW) {
+            out.println("Deposit refused - the balance would be too large.");
+        } else if (balance != AccountDatabase.NOT_OPEN) {
+            out.println("Deposit successful. New balance: $" + Money.format(balance));
         } else {
-            System.out.println("Account not found");
+            out.println("Account not found");
         }
     }//end methods
     /**
@@ -203,49 +565,59 @@ public class TransactionManager {
      * @param tokenizer the tokenizer containing the account number and withdrawal amount
      * @author Arjun Deshpande
      */
-    private void processWithdraw(StringTokenizer tokenizer) {//made by arjun
+    private void processWithdraw(CommandTokenizer tokenizer) {//made by arjun
         if (tokenizer.countTokens() < 2) {
-            System.out.println("Invalid command!");
+            out.println("Invalid command!");
             return;
         }
-        String accNumberStr = tokenizer.nextToken();
-        String amountStr = tokenizer.nextToken();
-        AccountNumber number = AccountNumber.fromString(accNumberStr);
-        if (number == null) {
-            System.out.println("Invalid account number");
+        int number = tokenizer.nextAccountNumber();
+        long amount = tokenizer.nextAmount();
+        if (number == AccountNumbers.INVALID) {
+            out.println("Invalid account number");
             return;
         }
-        double amount;
-        try {
-            amount = Double.parseDouble(amountStr);
-            if (amount <= 0) {
-                System.out.println(amount+" withdrawal amount cannot be 0 or negative.");
-                return;
-            }
-        } catch (NumberFormatException e) {
-            System.out.println("For input string: \"" + amountStr + "\" - not a valid amount.");
+        if (amount == Money.INVALID) {
+            out.println("For input string: \"" + tokenizer.lastToken() + "\" - not a valid amount.");
+            return;
+        }
+        if (amount <= 0) {
+            out.println(Money.toDollars(amount) + " withdrawal amount cannot be 0 or negative.");
             return;
         }
 
-        Account acc = database.numFind(number);//PROBLEM LINE
-        if (acc != null) {
+        long balance = accounts.withdraw(number, amount);
+        if (balance != AccountDatabase.NOT_OPEN) {
             String status = "";
-            boolean success = database.withdraw(number, amount);
-            if (!success) {
-                System.out.println("Insufficient funds");
+            if (balance == AccountDatabase.INSUFFICIENT_FUNDS) {
+                out.println("Insufficient funds");
                 return;
             }
-
-            if (acc.getType() == AccountType.MONEY_MARKET && acc.getBalance() < 2000) {
-                acc.getNumber().setType(AccountType.SAVINGS); //Downgrades the acc type
-                status = " Account downgraded to Savings";
+            if (balance == AccountDatabase.BLOCKED) {
+                out.println("Withdrawal blocked - unusual activity on this account.");
+                return;
             }
 
-            System.out.printf("Withdrawal successful. New balance: $%.2f.%s%n",
-                    acc.getBalance(), status);
+            status = downgradeStatus(accounts.downgradeIfBelowMinimum(number)); //Downgrades the acc type
+
+            out.println("Withdrawal successful. New balance: $" + Money.format(balance) + "." + status);
         }
         else {
-            System.out.println("Account not found");
+            out.println("Account not found");
+        }
+    }//end methode
+
+    /**
+     * Gets the note a successful withdrawal prints after the new balance for what the
+     * money market downgrade did.
+     * @author Arjun Deshpande
+     * @param downgrade AccountDatabase.KEPT, DOWNGRADED or NO_SAVINGS_NUMBER
+     * @return the note, empty if the account kept its type as it should
+     */
+    static String downgradeStatus(int downgrade) {
+        if (downgrade == AccountDatabase.DOWNGRADED) return " Account downgraded to Savings";
+        if (downgrade == AccountDatabase.NO_SAVINGS_NUMBER) {
+            return " Account is below the minimum balance but cannot be downgraded - no savings numbers left at this branch.";
         }
+        return "";
     }//end methode
 }//end class
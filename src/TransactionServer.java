@@ -0,0 +1,203 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Serves many command sessions over local sockets against one shared database.
+ * Each connection gets its own TransactionManager speaking the usual command
+ * language, running on its own virtual thread, so thousands of mostly idle
+ * sessions cost little more than their sockets. Virtual threads (Thread.ofVirtual)
+ * need JDK 21 or later, so this class, and with it the project, does too.
+ * @author Arjun Deshpande
+ */
+public class TransactionServer implements AutoCloseable {
+    private static final int BACKLOG = 1024;
+    private static final int SESSION_BUFFER = 8192;
+
+    private final AccountDatabase database;
+    private final ServerSocket server;
+    private final Thread acceptor;
+
+    /**
+     * Starts a server on a loopback port.
+     * @author Arjun Deshpande
+     * @param database the database shared by all sessions
+     * @param port the port to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public TransactionServer(AccountDatabase database, int port) throws IOException {
+        this.database = database;
+        this.server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        this.acceptor = Thread.ofVirtual().name("acceptor").start(this::acceptLoop);
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     * @author Arjun Deshpande
+     * @return the local port
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server socket is closed.
+     * @author Arjun Deshpande
+     */
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread.ofVirtual().start(() -> serve(socket));
+            } catch (IOException e) {
+                if (!server.isClosed()) System.err.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs one session until the client sends Q or disconnects.
+     * @author Arjun Deshpande
+     * @param socket the client connection
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), SESSION_BUFFER), false);
+            new TransactionManager(database, socket.getInputStream(), out).run();
+            out.flush();
+        } catch (IOException e) {
+            //the client went away; nothing to clean up beyond the socket
+        }
+    }
+
+    /**
+     * Stops accepting new sessions. Sessions already running finish on their own.
+     * @author Arjun Deshpande
+     * @throws IOException if the server socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a server on the given port until the process is killed.
+     * @author Arjun Deshpande
+     * @param database the database shared by all sessions
+     * @param port the port to listen on
+     * @throws IOException if the port cannot be bound
+     * @throws InterruptedException if interrupted while serving
+     */
+    public static void serve(AccountDatabase database, int port) throws IOException, InterruptedException {
+        TransactionServer server = new TransactionServer(database, port);
+        System.out.println("Transaction Server is listening on port " + server.getPort() + ".");
+        server.acceptor.join();
+    }
+
+    /**
+     * Testbed main method: a loopback load harness. Starts a server, connects the given
+     * number of clients at once, has each open an account and then alternate deposits and
+     * withdrawals, and reports round-trip latency percentiles.
+     * @author Arjun Deshpande
+     * @param args the number of clients (default 10000) and requests per client (default 20)
+     * @throws Exception if the harness fails
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long[][] latencies = new long[clients][];
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch done = new CountDownLatch(clients);
+        try (TransactionServer server = new TransactionServer(new AccountDatabase(), 0)) {
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                int id = c;
+                Thread.ofVirtual().start(() -> {
+                    try {
+                        latencies[id] = runClient(server.getPort(), id, requests, connected);
+                    } catch (IOException | InterruptedException e) {
+                        System.err.println("client " + id + " failed: " + e);
+                        connected.countDown();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            int total = 0;
+            for (long[] l : latencies) total += l == null ? 0 : l.length;
+            long[] all = new long[total];
+            int k = 0;
+            for (long[] l : latencies) {
+                if (l == null) continue;
+                System.arraycopy(l, 0, all, k, l.length);
+                k += l.length;
+            }
+            Arrays.sort(all);
+            int failed = 0;
+            for (long[] l : latencies) if (l == null) failed++;
+            System.out.printf("%d concurrent sessions (%d failed), %d requests in %d ms: p50 %d us, p99 %d us, max %d us%n",
+                    clients, failed, total, elapsed / 1_000_000, all[total / 2] / 1000,
+                    all[(int) (total * 0.99)] / 1000, all[total - 1] / 1000);
+        }
+    }//testbed
+
+    /**
+     * One harness client: connects, waits until every client is connected, opens an
+     * account, then times each deposit/withdrawal round trip.
+     * @author Arjun Deshpande
+     * @param port the server port
+     * @param id the client number, used to make a unique holder
+     * @param requests the number of timed requests
+     * @param connected counted down once this client is connected
+     * @return the round-trip latencies in nanoseconds
+     * @throws IOException if the connection fails
+     * @throws InterruptedException if interrupted while waiting for the other clients
+     */
+    private static long[] runClient(int port, int id, int requests, CountDownLatch connected)
+            throws IOException, InterruptedException {
+        Branch[] branches = Branch.values();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream writer = socket.getOutputStream();
+            reader.readLine(); //Transaction Manager is running.
+            connected.countDown();
+            connected.await();
+            writer.write(("O checking " + branches[id % branches.length].name().toLowerCase() + " Client" + id
+                    + " Harness 1/1/1990 1000\n").getBytes(StandardCharsets.US_ASCII));
+            String opened = reader.readLine(); //CHECKING account 100010001 has been opened.
+            String number = opened.split(" ")[2];
+            byte[] deposit = ("D " + number + " 10\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] withdraw = ("W " + number + " 10\n").getBytes(StandardCharsets.US_ASCII);
+            long[] latencies = new long[requests];
+            for (int i = 0; i < requests; i++) {
+                long start = System.nanoTime();
+                writer.write((i & 1) == 0 ? deposit : withdraw);
+                reader.readLine();
+                latencies[i] = System.nanoTime() - start;
+            }
+            writer.write("Q\n".getBytes(StandardCharsets.US_ASCII));
+            reader.readLine();
+            return latencies;
+        }
+    }
+}//end class TransactionServer
@@ -0,0 +1,378 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Velocity rules on the withdrawal path. Every withdrawal attempt is counted against
+ * its account, its holder and the branch where it is made, in sliding windows of days,
+ * with ATM withdrawals weighing more than teller ones. A rule per scope flags the
+ * withdrawal for review, or blocks it, once the weighted count in its window goes over
+ * a limit. Blocked attempts count too, so a burst stays blocked until it slides out of
+ * the window. Flagged withdrawals go through and are kept in a short list of recent ones.
+ * <p>
+ * Windows are counted in days because activities are dated by day. Each key keeps a
+ * ring of BUCKETS day counters in a flat primitive array, found by open addressing,
+ * so checking a withdrawal allocates nothing once the tables have grown to the book.
+ * Each scope's table is striped by key, so concurrent withdrawals lock only the
+ * stripes of their own keys.
+ * Holders are keyed by a hash of the profile; two holders whose hashes collide would
+ * share a window, which can only make a rule fire early.
+ * @author Arjun Deshpande
+ */
+public class VelocityGuard {
+    public static final int ALLOW = 0; //verdicts, in increasing severity
+    public static final int FLAG = 1;
+    public static final int BLOCK = 2;
+    public static final int ACCOUNT = 0; //scopes
+    public static final int HOLDER = 1;
+    public static final int BRANCH = 2;
+    public static final int BUCKETS = 8; //days of history per key, the longest window; a power of 2
+    private static final int TELLER_WEIGHT = 1;
+    private static final int ATM_WEIGHT = 2;
+    private static final int RECENT = 64; //recently flagged withdrawals kept for review
+    private static final String[] SCOPES = {"account", "holder", "branch"};
+
+    private final int[] days = {1, 1, 1}; //window of each scope's rule
+    private final int[] flagOver = {10, 20, 50_000}; //weighted withdrawals in the window; 0 never flags
+    private final int[] blockOver = {20, 40, 0}; //0 never blocks
+    private final Window[] windows = {new Window(), new Window(), new Window()};
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder[] flagged = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private final LongAdder[] blocked = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private final int[] recentNumbers = new int[RECENT]; //ring of recently flagged withdrawals
+    private final int[] recentDates = new int[RECENT];
+    private final byte[] recentScopes = new byte[RECENT];
+    private long recentCount;
+
+    /**
+     * Sliding day windows for one scope, split into STRIPES stripes by the high bits of
+     * the key's hash, each with its own table and lock, so withdrawals on different keys
+     * rarely wait for each other.
+     * @author Arjun Deshpande
+     */
+    private static class Window {
+        private static final int STRIPE_BITS = 6;
+        private static final int STRIPES = 1 << STRIPE_BITS;
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        /**
+         * Makes the empty stripes.
+         * @author Arjun Deshpande
+         */
+        Window() {
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        }//end constructor
+
+        /**
+         * Counts a withdrawal in the stripe of its key and sums its window.
+         * @author Arjun Deshpande
+         * @param key the account, holder or branch
+         * @param day the day of the withdrawal
+         * @param weight the weight of the withdrawal
+         * @param span the window, in days up to BUCKETS
+         * @return the weighted count in the window ending on the day, this withdrawal included
+         */
+        int add(long key, int day, int weight, int span) {
+            return stripes[spread(key) >>> 32 - STRIPE_BITS].add(key, day, weight, span);
+        }
+
+        /**
+         * Gets the number of keys counted.
+         * @author Arjun Deshpande
+         * @return the number of keys in every stripe
+         */
+        int size() {
+            int size = 0;
+            for (Stripe stripe : stripes) size += stripe.size();
+            return size;
+        }
+
+        /**
+         * Mixes a key so neighbouring keys land in different stripes and slots.
+         * @author Arjun Deshpande
+         * @param key the key
+         * @return the mixed hash
+         */
+        private static int spread(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }//end klasse
+
+    /**
+     * One stripe of a Window: an open-addressing table from a key to a ring of day
+     * counters. Counters saturate instead of wrapping. Slots are found by the low bits
+     * of the hash, which the choice of stripe leaves alone.
+     * @author Arjun Deshpande
+     */
+    private static class Stripe {
+        private static final int EMPTY = Integer.MIN_VALUE; //newest day of an unused slot
+        private long[] keys = new long[64];
+        private int[] newest = filled(64); //newest day counted for each key
+        private char[] counts = new char[64 * BUCKETS]; //BUCKETS counters per key, by day modulo BUCKETS
+        private int size;
+
+        /**
+         * Counts a withdrawal and sums its window.
+         * @author Arjun Deshpande
+         * @param key the account, holder or branch
+         * @param day the day of the withdrawal
+         * @param weight the weight of the withdrawal
+         * @param span the window, in days up to BUCKETS
+         * @return the weighted count in the window ending on the day, this withdrawal included
+         */
+        synchronized int add(long key, int day, int weight, int span) {
+            int slot = slot(key);
+            int base = slot * BUCKETS;
+            int last = newest[slot];
+            if (last == EMPTY || day - last >= BUCKETS) { //nothing in the ring is recent enough to keep
+                Arrays.fill(counts, base, base + BUCKETS, (char) 0);
+                newest[slot] = last = day;
+            } else if (day > last) { //slide the ring forward, clearing the days that come back around
+                for (int d = last + 1; d <= day; d++) counts[base + (d & BUCKETS - 1)] = 0;
+                newest[slot] = last = day;
+            } else if (last - day >= BUCKETS) {
+                return weight; //older than the ring; judged on its own
+            }
+            int at = base + (day & BUCKETS - 1);
+            counts[at] = (char) Math.min(Character.MAX_VALUE, counts[at] + weight);
+            int sum = 0;
+            for (int d = Math.max(day - span + 1, last - BUCKETS + 1); d <= day; d++) sum += counts[base + (d & BUCKETS - 1)];
+            return sum;
+        }//add
+
+        /**
+         * Finds the slot of a key, claiming one if it is new and doubling the table at 3/4 load.
+         * @author Arjun Deshpande
+         * @param key the key
+         * @return the slot
+         */
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int i = Window.spread(key) & mask;
+            while (newest[i] != EMPTY) {
+                if (keys[i] == key) return i;
+                i = (i + 1) & mask;
+            }
+            if (4 * (size + 1) > 3 * keys.length) {
+                grow();
+                return slot(key);
+            }
+            keys[i] = key;
+            size++;
+            return i;
+        }
+
+        /**
+         * Doubles the table, moving every key and its ring.
+         * @author Arjun Deshpande
+         */
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldNewest = newest;
+            char[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            newest = filled(keys.length);
+            counts = new char[keys.length * BUCKETS];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldNewest[j] == EMPTY) continue;
+                int i = Window.spread(oldKeys[j]) & mask;
+                while (newest[i] != EMPTY) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                newest[i] = oldNewest[j];
+                System.arraycopy(oldCounts, j * BUCKETS, counts, i * BUCKETS, BUCKETS);
+            }
+        }
+
+        /**
+         * Makes an array of empty slots.
+         * @author Arjun Deshpande
+         * @param n the length
+         * @return the array, every slot EMPTY
+         */
+        private static int[] filled(int n) {
+            int[] array = new int[n];
+            Arrays.fill(array, EMPTY);
+            return array;
+        }
+
+        /**
+         * Gets the number of keys counted.
+         * @author Arjun Deshpande
+         * @return the number of keys
+         */
+        synchronized int size() {
+            return size;
+        }
+    }//end klasse
+
+    /**
+     * Changes the rule of a scope.
+     * @author Arjun Deshpande
+     * @param scope ACCOUNT, HOLDER or BRANCH
+     * @param window the window, in days from 1 to BUCKETS
+     * @param flagAbove flag a withdrawal when the weighted count in the window is over this, or 0 for never
+     * @param blockAbove block it when the count is over this, or 0 for never
+     * @throws IllegalArgumentException if the window or a limit is out of range
+     */
+    public void setRule(int scope, int window, int flagAbove, int blockAbove) {
+        if (window < 1 || window > BUCKETS) throw new IllegalArgumentException(window + " - window must be 1 to " + BUCKETS + " days.");
+        if (flagAbove < 0 || blockAbove < 0) throw new IllegalArgumentException("limits cannot be negative.");
+        days[scope] = window;
+        flagOver[scope] = flagAbove;
+        blockOver[scope] = blockAbove;
+    }
+
+    /**
+     * Counts a withdrawal attempt against its account, holder and branch, and judges it.
+     * @author Arjun Deshpande
+     * @param account the account withdrawn from
+     * @param date the packed yyyymmdd date of the withdrawal
+     * @param location the branch where it is made
+     * @param atm true if made at an ATM
+     * @return ALLOW, FLAG or BLOCK
+     */
+    public int check(Account account, int date, Branch location, boolean atm) {
+        return check(account.getPackedNumber(), holderKey(account.getHolder()), location.ordinal(), date, atm);
+    }
+
+    /**
+     * Counts a withdrawal attempt by its keys, and judges it.
+     * @author Arjun Deshpande
+     * @param number the packed account number
+     * @param holder the holder's key, from holderKey
+     * @param branch the ordinal of the branch where it is made
+     * @param date the packed yyyymmdd date of the withdrawal
+     * @param atm true if made at an ATM
+     * @return ALLOW, FLAG or BLOCK
+     */
+    public int check(int number, long holder, int branch, int date, boolean atm) {
+        int day = day(date);
+        int weight = atm ? ATM_WEIGHT : TELLER_WEIGHT;
+        int verdict = ALLOW;
+        int worst = ACCOUNT;
+        for (int scope = ACCOUNT; scope <= BRANCH; scope++) {
+            long key = scope == ACCOUNT ? number : scope == HOLDER ? holder : branch;
+            int count = windows[scope].add(key, day, weight, days[scope]);
+            int judged = blockOver[scope] > 0 && count > blockOver[scope] ? BLOCK
+                    : flagOver[scope] > 0 && count > flagOver[scope] ? FLAG : ALLOW;
+            if (judged == BLOCK) blocked[scope].increment();
+            else if (judged == FLAG) flagged[scope].increment();
+            if (judged > verdict) {
+                verdict = judged;
+                worst = scope;
+            }
+        }
+        checked.increment();
+        if (verdict == FLAG) remember(number, date, worst);
+        return verdict;
+    }//check
+
+    /**
+     * Keeps a flagged withdrawal in the ring of recent ones.
+     * @author Arjun Deshpande
+     * @param number the packed account number
+     * @param date the date of the withdrawal
+     * @param scope the scope whose rule flagged it
+     */
+    private synchronized void remember(int number, int date, int scope) {
+        int i = (int) (recentCount++ % RECENT);
+        recentNumbers[i] = number;
+        recentDates[i] = date;
+        recentScopes[i] = (byte) scope;
+    }
+
+    /**
+     * Computes the key of a holder, as ProfileTable hashes it, with the date of birth
+     * in the low bits.
+     * @author Arjun Deshpande
+     * @param holder the holder
+     * @return the key
+     */
+    public static long holderKey(Profile holder) {
+        return (long) ProfileTable.hash(holder) << 32 | (holder.getDob().toInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Converts a packed yyyymmdd date to a count of days, so consecutive dates are
+     * consecutive numbers across months and years.
+     * @author Arjun Deshpande
+     * @param date the packed date
+     * @return the days since 1970-01-01
+     */
+    static int day(int date) {
+        int year = date / 10_000;
+        int month = date / 100 % 100;
+        int y = month <= 2 ? year - 1 : year; //years start in March, so leap days come last
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + date % 100 - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097 + dayOfEra - 719_468;
+    }
+
+    /**
+     * Prints the rules with how often each fired, and the recently flagged withdrawals.
+     * @author Arjun Deshpande
+     * @param out the stream to print to
+     */
+    public void print(PrintStream out) {
+        out.println("*Velocity guard: " + checked.sum() + " withdrawals checked.*");
+        for (int scope = ACCOUNT; scope <= BRANCH; scope++) {
+            out.println(SCOPES[scope] + ": " + days[scope] + (days[scope] == 1 ? " day" : " days")
+                    + ", flag over " + (flagOver[scope] == 0 ? "-" : flagOver[scope])
+                    + ", block over " + (blockOver[scope] == 0 ? "-" : blockOver[scope])
+                    + "; " + flagged[scope].sum() + " flagged, " + blocked[scope].sum() + " blocked, "
+                    + windows[scope].size() + " tracked");
+        }
+        synchronized (this) {
+            long first = Math.max(0, recentCount - RECENT);
+            if (recentCount > 0) out.println("*Recently flagged.*");
+            for (long k = recentCount - 1; k >= first; k--) {
+                int i = (int) (k % RECENT);
+                out.println(AccountNumbers.unpack(recentNumbers[i]) + " " + Date.fromInt(recentDates[i])
+                        + " by the " + SCOPES[recentScopes[i]] + " rule");
+            }
+        }
+        out.println("*end of velocity guard.*");
+    }
+
+    /**
+     * Testbed main method: checks the windows against a simple count, then measures a
+     * check over millions of accounts and holders.
+     * @author Arjun Deshpande
+     * @param args the number of accounts (default 2000000) and checks (default 20000000)
+     */
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int checks = args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000;
+        VelocityGuard guard = new VelocityGuard();
+        guard.setRule(ACCOUNT, 3, 4, 6);
+        int[] expected = {ALLOW, ALLOW, ALLOW, FLAG, BLOCK}; //teller, teller, ATM, ATM, teller on 2024-02-28
+        boolean pass = true;
+        for (int i = 0; i < expected.length; i++) pass &= guard.check(7, 1, 0, 20240228, i == 2 || i == 3) == expected[i];
+        pass &= guard.check(7, 1, 0, 20240301, false) == BLOCK; //2/28 is still in the 3 day window
+        pass &= guard.check(7, 1, 0, 20240302, false) == ALLOW; //now it is not
+        pass &= guard.check(7, 1, 0, 20240220, true) == ALLOW; //older than the ring
+        pass &= day(20240301) - day(20240228) == 2 && day(19700101) == 0 && day(20000301) - day(20000228) == 2;
+        System.out.println(pass ? "windows: PASS" : "windows: FAIL");
+
+        guard = new VelocityGuard();
+        long[] holders = new long[accounts / 2];
+        for (int i = 0; i < holders.length; i++) holders[i] = i * 0x9E3779B97F4A7C15L;
+        long start = System.nanoTime();
+        for (int i = 0; i < accounts; i++) guard.check(i, holders[i >> 1], i % 5, 20240101, false); //every key gets its slot
+        long filled = System.nanoTime() - start;
+        int verdicts = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < checks; i++) {
+            int account = (int) ((i * 2654435761L) % accounts);
+            verdicts += guard.check(account, holders[account >> 1], account % 5, 20240101 + i / (checks / 8), (i & 7) == 0);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("first check of %d accounts: %.0f ns each%n", accounts, (double) filled / accounts);
+        System.out.printf("%d checks over %d accounts and %d holders: %.0f ns each (verdicts %d)%n",
+                checks, accounts, holders.length, (double) elapsed / checks, verdicts);
+    }//testbed
+}//end class VelocityGuard
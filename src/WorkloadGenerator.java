@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+/**
+ * Writes synthetic command files for TransactionManager.runBatch, with configurable
+ * mixes of commands, branches and account types, for benchmarks and regression runs.
+ * A mix is a comma-separated list of name=weight, e.g. "O=5,D=45,W=45,C=5"; names are
+ * command names, branch cities or account type names as the commands spell them.
+ * Holders are F&lt;i&gt; L&lt;i&gt; with a date of birth derived from i, so closes by
+ * holder name a holder opened earlier in the file. Account numbers are drawn in
+ * sequence per branch and type when accounts open, so deposits, withdrawals and closes
+ * by number pick a sequence number already drawn at their branch and type: most of
+ * them hit an account the file opened, unless it was closed or downgraded.
+ * The same seed and settings always write the same file.
+ * @author Arjun Deshpande
+ */
+public class WorkloadGenerator {
+    public static final String DEFAULT_COMMANDS = "O=5,D=45,W=45,C=4,P=0.001,PB=0.001,PH=0.001,PT=0.001";
+    public static final String DEFAULT_BRANCHES = "edison=1,bridgewater=1,princeton=1,piscataway=1,warren=1";
+    public static final String DEFAULT_TYPES = "checking=1,savings=1,moneymarket=1";
+    private static final String[] COMMANDS = {"O", "C", "D", "W", "P", "PA", "PB", "PH", "PT", "PP", "UB", "S", "SB", "ST"};
+    private static final String[] BRANCHES = new String[Branch.values().length]; //cities, as O spells them
+    private static final String[] TYPES = new String[AccountType.values().length]; //as O spells them
+    private static final String[][] PREFIXES = new String[BRANCHES.length][TYPES.length]; //branch and type digits
+    private static final String[] REPORTS = {"P", "PB", "PH", "PT"};
+    private static final int PAGE_SIZE = 50;
+
+    static {
+        for (Branch branch : Branch.values()) {
+            BRANCHES[branch.ordinal()] = branch.name().toLowerCase();
+            for (AccountType type : AccountType.values()) {
+                TYPES[type.ordinal()] = type.name().replace("_", "").toLowerCase();
+                PREFIXES[branch.ordinal()][type.ordinal()] = new AccountNumber(branch, type).toString().substring(0, 5);
+            }
+        }
+    }
+
+    private final SplittableRandom random;
+    private double[] commandWeights;
+    private double[] branchWeights;
+    private double[] typeWeights;
+    private int opened; //holders opened so far
+    private final int[][] drawn = new int[BRANCHES.length][TYPES.length]; //numbers drawn so far, by branch and type
+    private final StringBuilder line = new StringBuilder(64);
+
+    /**
+     * Creates a generator with the default mixes.
+     * @author Arjun Deshpande
+     * @param seed the random seed
+     */
+    public WorkloadGenerator(long seed) {
+        random = new SplittableRandom(seed);
+        commandWeights = weights(DEFAULT_COMMANDS, COMMANDS); //not the setters, which a subclass could override
+        branchWeights = weights(DEFAULT_BRANCHES, BRANCHES);
+        typeWeights = weights(DEFAULT_TYPES, TYPES);
+    }//end constructor
+
+    /**
+     * Sets the command mix.
+     * @author Arjun Deshpande
+     * @param mix e.g. "O=5,D=45,W=45,C=5"
+     * @throws IllegalArgumentException if a name is not a command or a weight is not a number
+     */
+    public void setCommandMix(String mix) {
+        commandWeights = weights(mix, COMMANDS);
+    }
+
+    /**
+     * Sets the branch mix.
+     * @author Arjun Deshpande
+     * @param mix e.g. "edison=3,warren=1"
+     * @throws IllegalArgumentException if a name is not a branch or a weight is not a number
+     */
+    public void setBranchMix(String mix) {
+        branchWeights = weights(mix, BRANCHES);
+    }
+
+    /**
+     * Sets the account type mix.
+     * @author Arjun Deshpande
+     * @param mix e.g. "checking=2,savings=1"
+     * @throws IllegalArgumentException if a name is not a type or a weight is not a number
+     */
+    public void setTypeMix(String mix) {
+        typeWeights = weights(mix, TYPES);
+    }
+
+    /**
+     * Parses a mix into cumulative weights over a list of names.
+     * @author Arjun Deshpande
+     * @param mix the name=weight list
+     * @param names the allowed names
+     * @return the running totals of the weights, in the order of names
+     * @throws IllegalArgumentException if the mix is malformed or all zero
+     */
+    private static double[] weights(String mix, String[] names) {
+        double[] cumulative = new double[names.length];
+        for (String part : mix.split(",")) {
+            int eq = part.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException(part + " - expected name=weight.");
+            String name = part.substring(0, eq).trim();
+            int k = 0;
+            while (k < names.length && !names[k].equalsIgnoreCase(name)) k++;
+            if (k == names.length) throw new IllegalArgumentException(name + " - unknown name in mix.");
+            double weight = Double.parseDouble(part.substring(eq + 1).trim());
+            if (weight < 0) throw new IllegalArgumentException(part + " - weight cannot be negative.");
+            cumulative[k] += weight;
+        }
+        for (int k = 1; k < names.length; k++) cumulative[k] += cumulative[k - 1];
+        if (cumulative[names.length - 1] <= 0) throw new IllegalArgumentException(mix + " - mix is empty.");
+        return cumulative;
+    }
+
+    /**
+     * Picks an index by weight.
+     * @author Arjun Deshpande
+     * @param cumulative the running totals of the weights
+     * @return the index
+     */
+    private int pick(double[] cumulative) {
+        double x = random.nextDouble() * cumulative[cumulative.length - 1];
+        int k = 0;
+        while (k < cumulative.length - 1 && x >= cumulative[k]) k++;
+        return k;
+    }
+
+    /**
+     * Appends holder i: F&lt;i&gt; L&lt;i&gt; m/d/y.
+     * @author Arjun Deshpande
+     * @param i the holder
+     */
+    private void appendHolder(int i) {
+        line.append('F').append(i).append(" L").append(i).append(' ')
+                .append(1 + i % 12).append('/').append(1 + i % 28).append('/').append(1940 + i % 60);
+    }
+
+    /**
+     * Appends a random amount from $0.01 to $5000.00.
+     * @author Arjun Deshpande
+     */
+    private void appendAmount() {
+        Money.append(line, 1 + random.nextLong(500_000));
+    }
+
+    /**
+     * Appends a random account number of the configured branches and types, with a
+     * sequence number already drawn at its branch and type.
+     * @author Arjun Deshpande
+     */
+    private void appendNumber() {
+        int branch = pick(branchWeights);
+        int type = pick(typeWeights);
+        line.append(PREFIXES[branch][type]);
+        int digits = random.nextInt(Math.max(1, Math.min(drawn[branch][type], AccountNumbers.SEQUENCES)));
+        for (int d = 1000; d > 0; d /= 10) line.append((char) ('0' + digits / d % 10));
+    }
+
+    /**
+     * Builds the next command line.
+     * @author Arjun Deshpande
+     * @return the line, without its newline
+     */
+    public CharSequence nextLine() {
+        line.setLength(0);
+        String command = COMMANDS[pick(commandWeights)];
+        line.append(command).append(' ');
+        switch (command) {
+            case "O":
+                int branch = pick(branchWeights);
+                int type = pick(typeWeights);
+                line.append(TYPES[type]).append(' ').append(BRANCHES[branch]).append(' ');
+                drawn[branch][type]++;
+                appendHolder(opened++);
+                line.append(' ');
+                appendAmount();
+                break;
+            case "C":
+                if (opened > 0 && random.nextBoolean()) appendHolder(random.nextInt(opened));
+                else appendNumber();
+                break;
+            case "D":
+            case "W":
+                appendNumber();
+                line.append(' ');
+                appendAmount();
+                break;
+            case "PP":
+                line.append(REPORTS[random.nextInt(REPORTS.length)]).append(' ').append(PAGE_SIZE);
+                break;
+            default:
+                line.setLength(command.length());
+        }
+        return line;
+    } //nextLine
+
+    /**
+     * Writes a command file ending with Q.
+     * @author Arjun Deshpande
+     * @param path the file to write, replaced if it exists
+     * @param lines the number of lines before the Q
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String path, long lines) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ReportWriter writer = new ReportWriter(channel);
+            for (long i = 0; i < lines; i++) writer.writeLine(nextLine());
+            writer.writeLine("Q");
+            writer.flush();
+        }
+    }
+
+    /**
+     * Testbed main method: writes a command file.
+     * @author Arjun Deshpande
+     * @param args the file, the number of lines, then optional -seed n, -commands mix,
+     *             -branches mix and -types mix
+     * @throws IOException if the file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: WorkloadGenerator file lines [-seed n] [-commands mix] [-branches mix] [-types mix]");
+            return;
+        }
+        long seed = 2024;
+        for (int i = 2; i + 1 < args.length; i += 2) if (args[i].equals("-seed")) seed = Long.parseLong(args[i + 1]);
+        WorkloadGenerator generator = new WorkloadGenerator(seed);
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-commands": generator.setCommandMix(args[i + 1]); break;
+                case "-branches": generator.setBranchMix(args[i + 1]); break;
+                case "-types": generator.setTypeMix(args[i + 1]); break;
+                default: break;
+            }
+        }
+        long lines = Long.parseLong(args[1]);
+        long start = System.nanoTime();
+        generator.write(args[0], lines);
+        System.out.printf("wrote %d lines to %s in %d ms%n", lines + 1, args[0], (System.nanoTime() - start) / 1_000_000);
+    }//testbed
+}//end class WorkloadGenerator